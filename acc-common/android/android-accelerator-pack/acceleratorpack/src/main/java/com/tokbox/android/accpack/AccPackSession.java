@@ -1,6 +1,10 @@
 package com.tokbox.android.accpack;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
 import com.opentok.android.Connection;
@@ -8,7 +12,18 @@ import com.opentok.android.OpentokError;
 import com.opentok.android.Session;
 import com.opentok.android.Stream;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by mserrano on 11/04/16.
@@ -17,55 +32,598 @@ public class AccPackSession extends Session {
 
     private final String LOG_TAG = this.getClass().getSimpleName();
 
-    private ArrayList<SessionListener> mSessionListeners = new ArrayList<>();
-    private ArrayList<ConnectionListener> mConnectionsListeners = new ArrayList<>();
-    private ArrayList<SignalListener> mSignalListeners = new ArrayList<>();
-    private ArrayList<ArchiveListener> mArchiveListeners = new ArrayList<>();
-    private ArrayList<StreamPropertiesListener> mStreamPropertiesListeners = new ArrayList<>();
-    private ArrayList<ReconnectionListener> mReconnectionListeners = new ArrayList<>();
+    public static final int SIGNAL_PRIORITY_CONTROL = SignalScheduler.PRIORITY_CONTROL;
+    public static final int SIGNAL_PRIORITY_NORMAL = SignalScheduler.PRIORITY_NORMAL;
+    public static final int SIGNAL_PRIORITY_LOW = SignalScheduler.PRIORITY_LOW;
+
+    private static final float DEFAULT_SIGNAL_RATE = 20;
+    private static final int DEFAULT_SIGNAL_BURST = 10;
+    private static final int MAX_QUEUED_SIGNALS = 256;
+    private static final int MAX_REASSEMBLED_SIGNALS = 32;
+    private static final int MAX_REASSEMBLED_SIGNAL_SIZE = 256 * 1024;
+    private static final long REASSEMBLY_TIMEOUT = 10000;
+
+    private static final String CAPS_SIGNAL_TYPE = "accPack_caps";
+    private static final String COMPRESSION_DEFLATE = "deflate1";
+    private static final String COMPRESSED_PREFIX = "\u001Ez1:";
+    //smaller signals are not worth compressing
+    private static final int MIN_COMPRESSED_SIGNAL_SIZE = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ListenerRegistry<SessionListener> mSessionListeners = new ListenerRegistry<>();
+    private ListenerRegistry<ConnectionListener> mConnectionsListeners = new ListenerRegistry<>();
+    private SignalRouter<SignalListener> mSignalListeners = new SignalRouter<>();
+    private ListenerRegistry<ArchiveListener> mArchiveListeners = new ListenerRegistry<>();
+    private ListenerRegistry<StreamPropertiesListener> mStreamPropertiesListeners = new ListenerRegistry<>();
+    private ListenerRegistry<ReconnectionListener> mReconnectionListeners = new ListenerRegistry<>();
+    private SignalRouter<SignalDecoder<?>> mSignalDecoders = new SignalRouter<>();
+
+    //connections of the other participants, by id
+    private final LinkedHashMap<String, Connection> mConnections = new LinkedHashMap<>();
+
+    //single thread, so the signals are decoded and delivered in the order they were received
+    private ExecutorService mDecodeExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //outgoing signals queued by queueSignal, guarded by the session lock
+    private final SignalScheduler mSignalScheduler = new SignalScheduler(new SignalScheduler.Sender() {
+        @Override
+        public String encode(String type, String data, Connection connection) {
+            //the whole signal is compressed, before it is split in fragments
+            return compressSignal(data, connection);
+        }
+
+        @Override
+        public void send(String type, String data, Connection connection) {
+            if (connection == null) {
+                sendSignal(type, data);
+            }
+            else if (mConnections.containsKey(connection.getConnectionId())) {
+                sendSignal(type, data, connection);
+            }
+            else {
+                Log.w(LOG_TAG, "Signal " + type + " dropped, the connection " + connection.getConnectionId() + " is gone");
+                getTypeMetrics(type).recordDropped();
+                return;
+            }
+            getTypeMetrics(type).recordSent(SignalFragmenter.utf8Length(data));
+        }
+
+        @Override
+        public void dropped(String type, String data, Connection connection) {
+            getTypeMetrics(type).recordDropped();
+        }
+    }, DEFAULT_SIGNAL_RATE, DEFAULT_SIGNAL_BURST, MAX_QUEUED_SIGNALS);
+    private boolean mSignalDrainPending = false;
+    //incoming fragments, guarded by the session lock
+    private final SignalFragmenter mSignalReassembler = new SignalFragmenter(MAX_REASSEMBLED_SIGNALS,
+            MAX_REASSEMBLED_SIGNAL_SIZE, REASSEMBLY_TIMEOUT);
+
+    //compression of the queued signals, guarded by the session lock
+    private final SignalCompressor mSignalCompressor = new SignalCompressor();
+    private boolean mSignalCompressionEnabled = true;
+    //ids of the connections able to decompress the signals
+    private final HashSet<String> mCompressionPeers = new HashSet<>();
+    private long mCompressedSignalCount = 0;
+
+    //counters of each signal type, guarded by the session lock
+    private final HashMap<String, SignalMetrics.TypeMetrics> mSignalMetrics = new HashMap<>();
+    private final Runnable mSignalDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AccPackSession.this) {
+                mSignalDrainPending = false;
+                scheduleSignalDrain(mSignalScheduler.drain(SystemClock.uptimeMillis()));
+            }
+        }
+    };
+
+    /**
+     * Decodes signals on a background thread and delivers the results on the main thread.
+     * @param <T> type of the decoded update. It is handed over to the main thread, so it should be immutable.
+     */
+    public interface SignalDecoder<T> {
+
+        /**
+         * Invoked on the decoding thread when a signal is received
+         * @param session the session
+         * @param type the signal type
+         * @param data the signal data
+         * @param connection the connection that sent the signal
+         * @return the decoded update, or null to drop the signal
+         */
+        T decodeSignal(AccPackSession session, String type, String data, Connection connection) throws Exception;
+
+        /**
+         * Invoked on the main thread with a decoded update
+         * @param session the session
+         * @param type the signal type
+         * @param update the decoded update
+         * @param connection the connection that sent the signal
+         */
+        void onSignalDecoded(AccPackSession session, String type, T update, Connection connection);
+    }
 
     public AccPackSession(Context context, String apiKey, String sessionId) {
         super(context, apiKey, sessionId);
+        mSignalScheduler.setPolicy(CAPS_SIGNAL_TYPE, SignalScheduler.PRIORITY_CONTROL, false);
     }
 
     @Override
     public void setSessionListener(SessionListener listener) {
         super.setSessionListener(listener);
-        mSessionListeners.add(listener);
+        mSessionListeners.add(listener, false);
+    }
+
+    /**
+     * Adds a session listener
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference, so it is removed
+     *             automatically once it is no longer used
+     */
+    public void addSessionListener(SessionListener listener, boolean weak) {
+        mSessionListeners.add(listener, weak);
+    }
+
+    /**
+     * Removes a session listener
+     * @param listener the listener
+     */
+    public void removeSessionListener(SessionListener listener) {
+        mSessionListeners.remove(listener);
     }
 
     @Override
     public void setConnectionListener(ConnectionListener listener) {
         super.setConnectionListener(listener);
-        mConnectionsListeners.add(listener);
+        mConnectionsListeners.add(listener, false);
+    }
+
+    /**
+     * Adds a connection listener
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference
+     */
+    public void addConnectionListener(ConnectionListener listener, boolean weak) {
+        mConnectionsListeners.add(listener, weak);
+    }
+
+    /**
+     * Removes a connection listener
+     * @param listener the listener
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        mConnectionsListeners.remove(listener);
     }
 
     @Override
     public void setStreamPropertiesListener(StreamPropertiesListener listener) {
         super.setStreamPropertiesListener(listener);
-        mStreamPropertiesListeners.add(listener);
+        mStreamPropertiesListeners.add(listener, false);
+    }
+
+    /**
+     * Adds a stream properties listener
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference
+     */
+    public void addStreamPropertiesListener(StreamPropertiesListener listener, boolean weak) {
+        mStreamPropertiesListeners.add(listener, weak);
+    }
+
+    /**
+     * Removes a stream properties listener
+     * @param listener the listener
+     */
+    public void removeStreamPropertiesListener(StreamPropertiesListener listener) {
+        mStreamPropertiesListeners.remove(listener);
     }
 
     @Override
     public void setSignalListener(SignalListener listener) {
         super.setSignalListener(listener);
-        mSignalListeners.add(listener);
+        addSignalListener(SignalRouter.WILDCARD, listener, false);
+    }
+
+    /**
+     * Adds a listener for a signal type. The listener only receives the signals of that type.
+     * @param typeOrPrefix the signal type, or a type prefix followed by "*"
+     * @param listener the listener
+     */
+    public void addSignalListener(String typeOrPrefix, SignalListener listener) {
+        addSignalListener(typeOrPrefix, listener, false);
+    }
+
+    /**
+     * Adds a listener for a signal type. The listener only receives the signals of that type.
+     * @param typeOrPrefix the signal type, or a type prefix followed by "*"
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference
+     */
+    public synchronized void addSignalListener(String typeOrPrefix, SignalListener listener, boolean weak) {
+        mSignalListeners.add(typeOrPrefix, listener, weak);
+    }
+
+    /**
+     * Removes a signal listener from all the types it was added for
+     * @param listener the listener
+     */
+    public synchronized void removeSignalListener(SignalListener listener) {
+        mSignalListeners.remove(listener);
     }
 
     @Override
     public void setArchiveListener(ArchiveListener listener) {
         super.setArchiveListener(listener);
-        mArchiveListeners.add(listener);
+        mArchiveListeners.add(listener, false);
+    }
+
+    /**
+     * Adds an archive listener
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference
+     */
+    public void addArchiveListener(ArchiveListener listener, boolean weak) {
+        mArchiveListeners.add(listener, weak);
+    }
+
+    /**
+     * Removes an archive listener
+     * @param listener the listener
+     */
+    public void removeArchiveListener(ArchiveListener listener) {
+        mArchiveListeners.remove(listener);
     }
 
     @Override
     public void setReconnectionListener(ReconnectionListener listener) {
         super.setReconnectionListener(listener);
-        mReconnectionListeners.add(listener);
+        mReconnectionListeners.add(listener, false);
+    }
+
+    /**
+     * Adds a reconnection listener
+     * @param listener the listener
+     * @param weak whether the session holds the listener by a weak reference
+     */
+    public void addReconnectionListener(ReconnectionListener listener, boolean weak) {
+        mReconnectionListeners.add(listener, weak);
+    }
+
+    /**
+     * Removes a reconnection listener
+     * @param listener the listener
+     */
+    public void removeReconnectionListener(ReconnectionListener listener) {
+        mReconnectionListeners.remove(listener);
+    }
+
+    /**
+     * Adds a decoder for a signal type. The matching signals are decoded off the main thread,
+     * so the signal listeners should not handle them too.
+     * @param typeOrPrefix the signal type, or a type prefix followed by "*"
+     * @param decoder the decoder
+     */
+    public void addSignalDecoder(String typeOrPrefix, SignalDecoder<?> decoder) {
+        addSignalDecoder(typeOrPrefix, decoder, false);
+    }
+
+    /**
+     * Adds a decoder for a signal type. The matching signals are decoded off the main thread,
+     * so the signal listeners should not handle them too.
+     * @param typeOrPrefix the signal type, or a type prefix followed by "*"
+     * @param decoder the decoder
+     * @param weak whether the session holds the decoder by a weak reference
+     */
+    public synchronized void addSignalDecoder(String typeOrPrefix, SignalDecoder<?> decoder, boolean weak) {
+        mSignalDecoders.add(typeOrPrefix, decoder, weak);
+    }
+
+    /**
+     * Removes a signal decoder. Signals already decoded are still delivered.
+     * @param decoder the decoder
+     */
+    public synchronized void removeSignalDecoder(SignalDecoder<?> decoder) {
+        mSignalDecoders.remove(decoder);
+    }
+
+    /**
+     * Returns the connections of the other participants in the session
+     */
+    public synchronized List<Connection> getConnections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    /**
+     * Returns the connection of another participant in the session
+     * @param connectionId the connection id
+     * @return the connection, or null if it is not in the session
+     */
+    public synchronized Connection findConnection(String connectionId) {
+        return mConnections.get(connectionId);
+    }
+
+    /**
+     * Sets how the signals of a type are queued by {@link #queueSignal(String, String)}
+     * @param type the signal type
+     * @param priority one of SIGNAL_PRIORITY_CONTROL, SIGNAL_PRIORITY_NORMAL or SIGNAL_PRIORITY_LOW.
+     *                 Control signals are sent first, and dropped last when the queue is full.
+     * @param coalesce whether consecutive queued JSON array signals of the type can be concatenated
+     */
+    public synchronized void setSignalPolicy(String type, int priority, boolean coalesce) {
+        mSignalScheduler.setPolicy(type, priority, coalesce);
+    }
+
+    /**
+     * Sets how the signals of a type are queued by {@link #queueSignal(String, String)}
+     * @param type the signal type
+     * @param priority one of SIGNAL_PRIORITY_CONTROL, SIGNAL_PRIORITY_NORMAL or SIGNAL_PRIORITY_LOW
+     * @param coalesce whether consecutive queued JSON array signals of the type can be concatenated
+     * @param droppable whether the signals of the type can be dropped when the queue is full. The
+     *                  ones that cannot, e.g. the parts of a message, may exceed the queue size.
+     */
+    public synchronized void setSignalPolicy(String type, int priority, boolean coalesce, boolean droppable) {
+        mSignalScheduler.setPolicy(type, priority, coalesce, droppable);
+    }
+
+    /**
+     * Makes a signal type discard the queued signals of another type to the same recipient, e.g.
+     * a done signal discards the pending strokes it would erase. The discarded signals are counted
+     * as dropped.
+     * @param type the superseding signal type
+     * @param supersededType the signal type discarded when a signal of type is queued
+     */
+    public synchronized void addSupersededSignal(String type, String supersededType) {
+        mSignalScheduler.addSuperseded(type, supersededType);
+    }
+
+    /**
+     * Sets the rate limit of the signals queued by {@link #queueSignal(String, String)}
+     * @param signalsPerSecond sustained rate of signals
+     * @param burst signals that can be sent at once after an idle period
+     */
+    public synchronized void setSignalRateLimit(float signalsPerSecond, int burst) {
+        mSignalScheduler.setRateLimit(signalsPerSecond, burst);
+    }
+
+    /**
+     * Queues a signal to all the connections. It is sent right away if the rate limit allows it,
+     * and after the signals of a higher priority otherwise. A signal larger than the signal size
+     * limit is sent in fragments, reassembled before it is delivered to the listeners.
+     * @param type the signal type
+     * @param data the signal data
+     */
+    public synchronized void queueSignal(String type, String data) {
+        queueSignal(type, data, null);
+    }
+
+    /**
+     * Queues a signal to a connection. It is sent right away if the rate limit allows it,
+     * and after the signals of a higher priority otherwise. It is dropped if the connection
+     * leaves the session before. A signal larger than the signal size limit is sent in fragments,
+     * reassembled before it is delivered to the listeners.
+     * @param type the signal type
+     * @param data the signal data
+     * @param connection the recipient, or null to send it to all the connections
+     */
+    public synchronized void queueSignal(String type, String data, Connection connection) {
+        scheduleSignalDrain(mSignalScheduler.enqueue(type, data, connection, SystemClock.uptimeMillis()));
+    }
+
+    /**
+     * Returns the number of signals waiting to be sent
+     */
+    public synchronized int getSignalQueueDepth() {
+        return mSignalScheduler.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of queued signals sent
+     */
+    public synchronized long getSentSignalCount() {
+        return mSignalScheduler.getSentCount();
+    }
+
+    /**
+     * Returns the number of queued signals dropped because the queue was full or a superseding
+     * signal was queued
+     */
+    public synchronized long getDroppedSignalCount() {
+        return mSignalScheduler.getDroppedCount();
+    }
+
+    /**
+     * Returns the number of queued signals merged into another one
+     */
+    public synchronized long getCoalescedSignalCount() {
+        return mSignalScheduler.getCoalescedCount();
+    }
+
+    /**
+     * Returns the number of received signals dropped because some of their fragments were missing
+     * or invalid
+     */
+    public synchronized long getIncompleteSignalCount() {
+        return mSignalReassembler.getDroppedCount();
+    }
+
+    /**
+     * Sets whether the queued signals are compressed. They are only compressed for the
+     * connections able to decompress them. Enabled by default.
+     * @param enabled whether the signals are compressed (<code>true</code>) or not (<code>false</code>)
+     */
+    public synchronized void setSignalCompressionEnabled(boolean enabled) {
+        mSignalCompressionEnabled = enabled;
+    }
+
+    /**
+     * Returns the number of queued signals sent compressed
+     */
+    public synchronized long getCompressedSignalCount() {
+        return mCompressedSignalCount;
+    }
+
+    /**
+     * Returns a snapshot of the signal metrics: the signals queued and sent, received, dropped
+     * and decoded, by type. The signals sent with {@link #sendSignal(String, String)} are not counted.
+     */
+    public synchronized SignalMetrics getSignalMetrics() {
+        return new SignalMetrics(System.currentTimeMillis(), mSignalMetrics, mSignalScheduler.getQueueDepth(),
+                mSignalScheduler.getCoalescedCount(), mCompressedSignalCount, mSignalReassembler.getDroppedCount());
+    }
+
+    /**
+     * Clears the counters of each signal type
+     */
+    public synchronized void resetSignalMetrics() {
+        mSignalMetrics.clear();
+    }
+
+    private synchronized SignalMetrics.TypeMetrics getTypeMetrics(String type) {
+        SignalMetrics.TypeMetrics metrics = mSignalMetrics.get(type);
+        if (metrics == null) {
+            metrics = new SignalMetrics.TypeMetrics();
+            mSignalMetrics.put(type, metrics);
+        }
+        return metrics;
+    }
+
+    private synchronized void recordDecodeTime(String type, long nanos) {
+        getTypeMetrics(type).recordDecoded(nanos);
+    }
+
+    //returns the data compressed if the recipients can decompress it and it is smaller
+    private String compressSignal(String data, Connection connection) {
+        if (!mSignalCompressionEnabled || data.length() < MIN_COMPRESSED_SIGNAL_SIZE) {
+            return data;
+        }
+        if (connection != null) {
+            if (!mCompressionPeers.contains(connection.getConnectionId())) {
+                return data;
+            }
+        }
+        else if (mConnections.isEmpty() || !mCompressionPeers.containsAll(mConnections.keySet())) {
+            return data;
+        }
+
+        byte[] bytes = data.getBytes(UTF8);
+        if (!mSignalCompressor.compress(bytes)) {
+            return data;
+        }
+        String compressed = COMPRESSED_PREFIX + Base64.encodeToString(mSignalCompressor.getBuffer(), 0,
+                mSignalCompressor.getLength(), Base64.NO_WRAP);
+        if (compressed.length() >= bytes.length) {
+            return data;
+        }
+        mCompressedSignalCount++;
+        return compressed;
+    }
+
+    //returns the data decompressed, or null if it is invalid
+    private String decompressSignal(String data) {
+        try {
+            mSignalCompressor.decompress(Base64.decode(data.substring(COMPRESSED_PREFIX.length()), Base64.NO_WRAP),
+                    MAX_REASSEMBLED_SIGNAL_SIZE);
+            return new String(mSignalCompressor.getBuffer(), 0, mSignalCompressor.getLength(), UTF8);
+        } catch (Exception e) {
+            //DataFormatException or IllegalArgumentException from invalid base64
+            Log.e(LOG_TAG, "Invalid compressed signal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //sends the capabilities of the session, in reply to the ones of a connection or to all the connections
+    private void sendCapabilities(Connection replyTo) {
+        try {
+            JSONObject caps = new JSONObject();
+            caps.put("compression", new JSONArray().put(COMPRESSION_DEFLATE));
+            caps.put("reply", replyTo != null);
+            queueSignal(CAPS_SIGNAL_TYPE, caps.toString(), replyTo);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error sending the capabilities: " + e.getMessage());
+        }
+    }
+
+    private void capabilitiesReceived(String data, Connection connection) {
+        if (connection == null || (getConnection() != null
+                && connection.getConnectionId().equals(getConnection().getConnectionId()))) {
+            return;
+        }
+        try {
+            JSONObject caps = new JSONObject(data);
+            JSONArray compression = caps.optJSONArray("compression");
+            boolean deflate = false;
+            for (int i = 0; compression != null && i < compression.length(); i++) {
+                deflate |= COMPRESSION_DEFLATE.equals(compression.optString(i));
+            }
+            if (deflate) {
+                mCompressionPeers.add(connection.getConnectionId());
+            }
+            else {
+                mCompressionPeers.remove(connection.getConnectionId());
+            }
+            if (!caps.optBoolean("reply")) {
+                sendCapabilities(connection);
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Invalid capabilities: " + e.getMessage());
+        }
+    }
+
+    private void scheduleSignalDrain(long delay) {
+        if (delay >= 0 && !mSignalDrainPending) {
+            mSignalDrainPending = true;
+            mMainHandler.postDelayed(mSignalDrainRunnable, delay);
+        }
+    }
+
+    private synchronized void decodeSignal(final String type, final String data, final Connection connection) {
+        if (mSignalDecoders.size() == 0) {
+            return;
+        }
+        for (ListenerRegistry.Entry<SignalDecoder<?>> entry : mSignalDecoders.route(type)) {
+            final SignalDecoder<?> decoder = entry.get();
+            if (decoder == null) {
+                continue;
+            }
+            if (mDecodeExecutor == null) {
+                mDecodeExecutor = Executors.newSingleThreadExecutor();
+            }
+            mDecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDecoder(decoder, type, data, connection);
+                }
+            });
+        }
+    }
+
+    private <T> void runDecoder(final SignalDecoder<T> decoder, final String type, String data, final Connection connection) {
+        final T update;
+        long start = System.nanoTime();
+        try {
+            update = decoder.decodeSignal(this, type, data, connection);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error decoding signal " + type + ": " + e.toString());
+            return;
+        } finally {
+            recordDecodeTime(type, System.nanoTime() - start);
+        }
+        if (update != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    decoder.onSignalDecoded(AccPackSession.this, type, update, connection);
+                }
+            });
+        }
     }
 
     @Override
     protected void onConnected() {
+        synchronized (this) {
+            sendCapabilities(null);
+        }
         for(SessionListener l : mSessionListeners){
             l.onConnected(this);
         }
@@ -90,6 +648,20 @@ public class AccPackSession extends Session {
         for(SessionListener l : mSessionListeners){
             l.onDisconnected(this);
         }
+        synchronized (this) {
+            if (mDecodeExecutor != null) {
+                //the pending signals are still decoded
+                mDecodeExecutor.shutdown();
+                mDecodeExecutor = null;
+            }
+            //the queued signals cannot be sent anymore
+            mMainHandler.removeCallbacks(mSignalDrainRunnable);
+            mSignalDrainPending = false;
+            mSignalScheduler.clear();
+            mSignalReassembler.clear();
+            mCompressionPeers.clear();
+            mConnections.clear();
+        }
     }
 
     @Override
@@ -115,13 +687,46 @@ public class AccPackSession extends Session {
 
     @Override
     protected void onSignalReceived(String type, String data, Connection connection) {
-        for(SignalListener l : mSignalListeners){
-            l.onSignalReceived(this, type, data, connection);
+        ListenerRegistry.Entry<SignalListener>[] listeners;
+        synchronized (this) {
+            getTypeMetrics(type).recordReceived(data != null ? SignalFragmenter.utf8Length(data) : 0);
+            if (CAPS_SIGNAL_TYPE.equals(type)) {
+                capabilitiesReceived(data, connection);
+                return;
+            }
+            if (SignalFragmenter.isFragment(data)) {
+                String senderId = connection != null ? connection.getConnectionId() : "";
+                data = mSignalReassembler.add(senderId, type, data, SystemClock.uptimeMillis());
+                if (data == null) {
+                    //the listeners only see complete signals
+                    return;
+                }
+            }
+            //a signal is compressed as a whole, so it is decompressed once reassembled
+            if (data != null && data.startsWith(COMPRESSED_PREFIX)) {
+                data = decompressSignal(data);
+                if (data == null) {
+                    return;
+                }
+            }
+            listeners = mSignalListeners.route(type);
         }
+        for(ListenerRegistry.Entry<SignalListener> entry : listeners){
+            SignalListener l = entry.get();
+            if (l != null) {
+                l.onSignalReceived(this, type, data, connection);
+            }
+        }
+        decodeSignal(type, data, connection);
     }
 
     @Override
     protected void onConnectionCreated(Connection connection) {
+        synchronized (this) {
+            if (getConnection() == null || !connection.getConnectionId().equals(getConnection().getConnectionId())) {
+                mConnections.put(connection.getConnectionId(), connection);
+            }
+        }
         for(ConnectionListener l : mConnectionsListeners){
             l.onConnectionCreated(this, connection);
         }
@@ -129,6 +734,10 @@ public class AccPackSession extends Session {
 
     @Override
     protected void onConnectionDestroyed(Connection connection) {
+        synchronized (this) {
+            mConnections.remove(connection.getConnectionId());
+            mCompressionPeers.remove(connection.getConnectionId());
+        }
         for(ConnectionListener l : mConnectionsListeners){
             l.onConnectionDestroyed(this, connection);
         }
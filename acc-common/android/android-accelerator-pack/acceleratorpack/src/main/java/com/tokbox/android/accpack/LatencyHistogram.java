@@ -0,0 +1,115 @@
+package com.tokbox.android.accpack;
+
+import java.util.Arrays;
+
+/**
+ * Defines a histogram of latencies, in milliseconds, with fixed buckets. The last bucket holds
+ * the latencies above the largest bound.
+ */
+public final class LatencyHistogram {
+
+    private static final long[] BOUNDS = {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final long[] mCounts = new long[BOUNDS.length + 1];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Copy constructor
+     * @param histogram the histogram to copy
+     */
+    public LatencyHistogram(LatencyHistogram histogram) {
+        synchronized (histogram) {
+            System.arraycopy(histogram.mCounts, 0, mCounts, 0, mCounts.length);
+            mCount = histogram.mCount;
+            mSum = histogram.mSum;
+            mMax = histogram.mMax;
+        }
+    }
+
+    /**
+     * Records a latency
+     * @param latency the latency, in milliseconds. A negative one, due to unsynchronized clocks,
+     *                is recorded as 0.
+     */
+    public synchronized void record(long latency) {
+        latency = Math.max(0, latency);
+        int bucket = Arrays.binarySearch(BOUNDS, latency);
+        mCounts[bucket >= 0 ? bucket : -bucket - 1]++;
+        mCount++;
+        mSum += latency;
+        mMax = Math.max(mMax, latency);
+    }
+
+    /**
+     * Clears the recorded latencies
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Returns the upper bounds of the buckets, in milliseconds, but the last one
+     */
+    public static long[] getBucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * Returns the number of latencies of each bucket
+     */
+    public synchronized long[] getBucketCounts() {
+        return mCounts.clone();
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the average latency, in milliseconds
+     */
+    public synchronized long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * Returns the highest latency, in milliseconds
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns an estimate of a percentile: the upper bound of the bucket it falls in
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency, in milliseconds
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100);
+        long count = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            count += mCounts[i];
+            if (count >= rank) {
+                return Math.min(BOUNDS[i], mMax);
+            }
+        }
+        return mMax;
+    }
+}
@@ -0,0 +1,167 @@
+package com.tokbox.android.accpack;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Defines a copy-on-write list of listeners. Dispatching iterates over a snapshot array, so
+ * listeners can be added or removed from any thread, or from a callback, while it is in progress.
+ * The iterator skips the weak listeners already collected.
+ */
+final class ListenerRegistry<T> implements Iterable<T> {
+
+    /**
+     * Defines a registered listener, held strongly or weakly
+     */
+    static final class Entry<T> {
+        private final T mListener;
+        private final WeakReference<T> mWeakListener;
+
+        Entry(T listener, boolean weak) {
+            mListener = weak ? null : listener;
+            mWeakListener = weak ? new WeakReference<>(listener) : null;
+        }
+
+        /**
+         * Returns the listener, or null if it was weakly held and has been collected
+         */
+        T get() {
+            return mWeakListener != null ? mWeakListener.get() : mListener;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Entry[] EMPTY = new Entry[0];
+
+    @SuppressWarnings("unchecked")
+    private volatile Entry<T>[] mEntries = EMPTY;
+
+    /**
+     * Adds a listener, unless it is already registered
+     * @param listener the listener
+     * @param weak whether the listener is held by a weak reference
+     * @return whether the listener was added (<code>true</code>) or not (<code>false</code>)
+     */
+    synchronized boolean add(T listener, boolean weak) {
+        if (listener == null) {
+            return false;
+        }
+        Entry<T>[] entries = pruned();
+        if (indexOf(entries, listener) >= 0) {
+            mEntries = entries;
+            return false;
+        }
+        entries = Arrays.copyOf(entries, entries.length + 1);
+        entries[entries.length - 1] = new Entry<>(listener, weak);
+        mEntries = entries;
+        return true;
+    }
+
+    /**
+     * Removes a listener
+     * @param listener the listener
+     * @return whether the listener was registered (<code>true</code>) or not (<code>false</code>)
+     */
+    synchronized boolean remove(T listener) {
+        Entry<T>[] entries = pruned();
+        int index = indexOf(entries, listener);
+        if (index >= 0) {
+            Entry<T>[] copy = Arrays.copyOf(entries, entries.length - 1);
+            System.arraycopy(entries, index + 1, copy, index, entries.length - index - 1);
+            entries = copy;
+        }
+        mEntries = entries;
+        return index >= 0;
+    }
+
+    /**
+     * Returns an empty array of entries, to copy a list of entries to
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Entry<T>[] emptyEntries() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the registered listeners. The array must not be modified.
+     */
+    Entry<T>[] snapshot() {
+        return mEntries;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Entry<T>[] entries = mEntries;
+        return new Iterator<T>() {
+            private int mIndex = 0;
+            private T mNext = advance();
+
+            private T advance() {
+                while (mIndex < entries.length) {
+                    T listener = entries[mIndex++].get();
+                    if (listener != null) {
+                        return listener;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public T next() {
+                if (mNext == null) {
+                    throw new NoSuchElementException();
+                }
+                T listener = mNext;
+                mNext = advance();
+                return listener;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of registered listeners, including the collected ones not pruned yet
+     */
+    int size() {
+        return mEntries.length;
+    }
+
+    //drops the weak listeners already collected
+    private Entry<T>[] pruned() {
+        Entry<T>[] entries = mEntries;
+        Entry<T>[] copy = null;
+        int live = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].get() != null) {
+                if (copy != null) {
+                    copy[live] = entries[i];
+                }
+                live++;
+            }
+            else if (copy == null) {
+                copy = Arrays.copyOf(entries, entries.length);
+            }
+        }
+        return copy == null ? entries : Arrays.copyOf(copy, live);
+    }
+
+    private static <T> int indexOf(Entry<T>[] entries, T listener) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].get() == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
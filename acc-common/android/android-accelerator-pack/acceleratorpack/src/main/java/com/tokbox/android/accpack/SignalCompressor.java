@@ -0,0 +1,103 @@
+package com.tokbox.android.accpack;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Defines the DEFLATE compression of the signal data, with a preset dictionary of the common
+ * annotation fields. The deflater, the inflater and the buffers are reused between signals.
+ * It is not thread-safe.
+ */
+class SignalCompressor {
+
+    //the most frequent strings are at the end, where they are the cheapest to refer to
+    private static final String DICTIONARY =
+            "\"guidVSol\":\"otAnnotation\"\"font\"\"type\":\"text\"\"index\"\"count\"\"items\"\"points\"\"cid\""
+            + "\"penFormats\":[\"binary1\"],\"snapshot\":true,\"reply\":false}"
+            + "\"platform\":\"ios\"\"platform\":\"web\"\"x\":\"y\":"
+            + "\"smoothed\":true,\"smoothed\":false,\"startPoint\":true,\"endPoint\":true,"
+            + "\"mirrored\":true,\"videoWidth\":0,\"videoHeight\":0,\"lineWidth\":2,\"text\":"
+            + "[{\"id\":\"\",\"fromId\":\"\",\"fromX\":\",\"fromY\":\",\"toX\":\",\"toY\":\",\"color\":\"#000000\","
+            + "\"canvasWidth\":\",\"canvasHeight\":\",\"mirrored\":false,\"smoothed\":false,"
+            + "\"startPoint\":false,\"endPoint\":false,\"seq\":\",\"strokeId\":\",\"platform\":\"android\"},{";
+
+    private static final byte[] DICTIONARY_BYTES = DICTIONARY.getBytes(Charset.forName("UTF-8"));
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater mInflater = new Inflater();
+    private byte[] mBuffer = new byte[1024];
+    private int mLength = 0;
+
+    /**
+     * Compresses a data
+     * @param data the data, in UTF-8
+     * @return whether the data was compressed (<code>true</code>) or not (<code>false</code>) because
+     * it would not be smaller. The compressed data is returned by {@link #getBuffer()}.
+     */
+    boolean compress(byte[] data) {
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY_BYTES);
+        mDeflater.setInput(data);
+        mDeflater.finish();
+        mLength = 0;
+        while (!mDeflater.finished()) {
+            if (mLength >= data.length) {
+                return false;
+            }
+            ensureCapacity(mLength + 1);
+            mLength += mDeflater.deflate(mBuffer, mLength, mBuffer.length - mLength);
+        }
+        return mLength < data.length;
+    }
+
+    /**
+     * Decompresses a data compressed by {@link #compress(byte[])}
+     * @param data the compressed data
+     * @param maxLength the size limit of the decompressed data. The decompressed data, in UTF-8,
+     * is returned by {@link #getBuffer()}.
+     */
+    void decompress(byte[] data, int maxLength) throws DataFormatException {
+        mInflater.reset();
+        mInflater.setInput(data);
+        mLength = 0;
+        while (!mInflater.finished()) {
+            ensureCapacity(mLength + 1);
+            int length = mInflater.inflate(mBuffer, mLength, mBuffer.length - mLength);
+            if (length == 0) {
+                if (mInflater.needsDictionary()) {
+                    mInflater.setDictionary(DICTIONARY_BYTES);
+                }
+                else {
+                    throw new DataFormatException("Truncated data");
+                }
+            }
+            mLength += length;
+            if (mLength > maxLength) {
+                throw new DataFormatException("Data larger than " + maxLength + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer of the last compressed or decompressed data
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the length of the last compressed or decompressed data
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(capacity, mBuffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.tokbox.android.accpack;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Defines the fragmentation of the signals larger than the signal size limit. A fragment is
+ * the data "\u001Ef1:&lt;id&gt;:&lt;index&gt;:&lt;count&gt;:&lt;part&gt;", where the id is unique per sender.
+ * The fragments of a message are reassembled in bounded buffers, and a message not completed
+ * within the timeout is dropped.
+ * It is not thread-safe.
+ */
+class SignalFragmenter {
+
+    static final String PREFIX = "\u001Ef1:";
+
+    private static final int MAX_HEADER_SIZE = 32;
+
+    private static class Message {
+        final String type;
+        final String[] parts;
+        final long started;
+        int received = 0;
+        int size = 0;
+
+        Message(String type, int count, long started) {
+            this.type = type;
+            this.parts = new String[count];
+            this.started = started;
+        }
+    }
+
+    private final int mMaxMessages;
+    private final int mMaxMessageSize;
+    private final long mTimeout;
+    //messages being reassembled, oldest first
+    private final LinkedHashMap<String, Message> mMessages = new LinkedHashMap<>();
+
+    private long mDroppedCount = 0;
+
+    /**
+     * Constructor
+     * @param maxMessages messages reassembled at a time, the oldest ones are dropped
+     * @param maxMessageSize size of a message, in characters
+     * @param timeout time to wait for the fragments of a message, in milliseconds
+     */
+    SignalFragmenter(int maxMessages, int maxMessageSize, long timeout) {
+        mMaxMessages = maxMessages;
+        mMaxMessageSize = maxMessageSize;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Returns whether a signal data is a fragment
+     */
+    static boolean isFragment(String data) {
+        return data != null && data.startsWith(PREFIX);
+    }
+
+    /**
+     * Returns the size of a data in UTF-8, the unit of the signal size limit
+     */
+    static int utf8Length(CharSequence data) {
+        int length = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Splits a data in fragments
+     * @param id id of the message, unique for the sender
+     * @param data the data
+     * @param maxSize size limit of a fragment, in UTF-8 bytes
+     * @return the fragments, or the data itself if it fits in maxSize
+     */
+    static List<String> split(int id, String data, int maxSize) {
+        ArrayList<String> fragments = new ArrayList<>();
+        if (utf8Length(data) <= maxSize) {
+            fragments.add(data);
+            return fragments;
+        }
+
+        ArrayList<String> parts = new ArrayList<>();
+        int partSize = maxSize - MAX_HEADER_SIZE;
+        int start = 0;
+        int size = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            int charSize;
+            int charLength = 1;
+            if (c < 0x80) {
+                charSize = 1;
+            }
+            else if (c < 0x800) {
+                charSize = 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+                //a surrogate pair is never split
+                charSize = 4;
+                charLength = 2;
+            }
+            else {
+                charSize = 3;
+            }
+            if (size + charSize > partSize) {
+                parts.add(data.substring(start, i));
+                start = i;
+                size = 0;
+            }
+            size += charSize;
+            i += charLength - 1;
+        }
+        parts.add(data.substring(start));
+
+        String prefix = PREFIX + Integer.toString(id, 36) + ":";
+        for (int i = 0; i < parts.size(); i++) {
+            fragments.add(prefix + i + ":" + parts.size() + ":" + parts.get(i));
+        }
+        return fragments;
+    }
+
+    /**
+     * Adds a received fragment
+     * @param senderId connection id of the sender
+     * @param type the signal type
+     * @param data the fragment
+     * @param now current time, in milliseconds
+     * @return the data of the message once it is complete, or null
+     */
+    String add(String senderId, String type, String data, long now) {
+        prune(now);
+
+        String[] header = data.substring(PREFIX.length()).split(":", 4);
+        int index;
+        int count;
+        try {
+            index = Integer.parseInt(header[1]);
+            count = Integer.parseInt(header[2]);
+        } catch (RuntimeException e) {
+            //NumberFormatException or ArrayIndexOutOfBoundsException
+            mDroppedCount++;
+            return null;
+        }
+        if (header.length < 4 || count < 1 || index < 0 || index >= count) {
+            mDroppedCount++;
+            return null;
+        }
+
+        String key = senderId + ":" + header[0];
+        Message message = mMessages.get(key);
+        if (message == null) {
+            if (mMessages.size() >= mMaxMessages) {
+                dropOldest();
+            }
+            message = new Message(type, count, now);
+            mMessages.put(key, message);
+        }
+        if (message.parts.length != count || !message.type.equals(type)) {
+            mMessages.remove(key);
+            mDroppedCount++;
+            return null;
+        }
+        if (message.parts[index] != null) {
+            return null;
+        }
+
+        message.parts[index] = header[3];
+        message.received++;
+        message.size += header[3].length();
+        if (message.size > mMaxMessageSize) {
+            mMessages.remove(key);
+            mDroppedCount++;
+            return null;
+        }
+        if (message.received < count) {
+            return null;
+        }
+
+        mMessages.remove(key);
+        StringBuilder builder = new StringBuilder(message.size);
+        for (String part : message.parts) {
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Drops the messages being reassembled
+     */
+    void clear() {
+        mMessages.clear();
+    }
+
+    /**
+     * Returns the number of messages being reassembled
+     */
+    int getPendingCount() {
+        return mMessages.size();
+    }
+
+    /**
+     * Returns the number of messages dropped: incomplete, too large or invalid
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void prune(long now) {
+        Iterator<Message> iterator = mMessages.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().started > mTimeout) {
+                iterator.remove();
+                mDroppedCount++;
+            }
+        }
+    }
+
+    private void dropOldest() {
+        Iterator<Message> iterator = mMessages.values().iterator();
+        iterator.next();
+        iterator.remove();
+        mDroppedCount++;
+    }
+}
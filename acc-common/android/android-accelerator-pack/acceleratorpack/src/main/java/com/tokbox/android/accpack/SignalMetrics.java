@@ -0,0 +1,244 @@
+package com.tokbox.android.accpack;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Defines a snapshot of the signal metrics of an {@link AccPackSession}: the counters of each
+ * signal type and of the signal queue.
+ */
+public final class SignalMetrics {
+
+    /**
+     * Defines the counters of a signal type. The fragments of a large signal are counted as
+     * separate signals.
+     */
+    public static final class TypeMetrics {
+        private long mSentCount = 0;
+        private long mSentBytes = 0;
+        private long mReceivedCount = 0;
+        private long mReceivedBytes = 0;
+        private long mDroppedCount = 0;
+        private long mDecodedCount = 0;
+        private long mDecodeTimeNanos = 0;
+        private long mMaxDecodeTimeNanos = 0;
+
+        TypeMetrics() {
+        }
+
+        TypeMetrics(TypeMetrics metrics) {
+            mSentCount = metrics.mSentCount;
+            mSentBytes = metrics.mSentBytes;
+            mReceivedCount = metrics.mReceivedCount;
+            mReceivedBytes = metrics.mReceivedBytes;
+            mDroppedCount = metrics.mDroppedCount;
+            mDecodedCount = metrics.mDecodedCount;
+            mDecodeTimeNanos = metrics.mDecodeTimeNanos;
+            mMaxDecodeTimeNanos = metrics.mMaxDecodeTimeNanos;
+        }
+
+        void recordSent(int bytes) {
+            mSentCount++;
+            mSentBytes += bytes;
+        }
+
+        void recordReceived(int bytes) {
+            mReceivedCount++;
+            mReceivedBytes += bytes;
+        }
+
+        void recordDropped() {
+            mDroppedCount++;
+        }
+
+        void recordDecoded(long nanos) {
+            mDecodedCount++;
+            mDecodeTimeNanos += nanos;
+            mMaxDecodeTimeNanos = Math.max(mMaxDecodeTimeNanos, nanos);
+        }
+
+        void add(TypeMetrics metrics) {
+            mSentCount += metrics.mSentCount;
+            mSentBytes += metrics.mSentBytes;
+            mReceivedCount += metrics.mReceivedCount;
+            mReceivedBytes += metrics.mReceivedBytes;
+            mDroppedCount += metrics.mDroppedCount;
+            mDecodedCount += metrics.mDecodedCount;
+            mDecodeTimeNanos += metrics.mDecodeTimeNanos;
+            mMaxDecodeTimeNanos = Math.max(mMaxDecodeTimeNanos, metrics.mMaxDecodeTimeNanos);
+        }
+
+        /**
+         * Returns the number of signals sent
+         */
+        public long getSentCount() {
+            return mSentCount;
+        }
+
+        /**
+         * Returns the size of the signals sent, in UTF-8 bytes
+         */
+        public long getSentBytes() {
+            return mSentBytes;
+        }
+
+        /**
+         * Returns the number of signals received
+         */
+        public long getReceivedCount() {
+            return mReceivedCount;
+        }
+
+        /**
+         * Returns the size of the signals received, in UTF-8 bytes
+         */
+        public long getReceivedBytes() {
+            return mReceivedBytes;
+        }
+
+        /**
+         * Returns the number of signals dropped before they were sent
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * Returns the number of signals decoded by a {@link AccPackSession.SignalDecoder}
+         */
+        public long getDecodedCount() {
+            return mDecodedCount;
+        }
+
+        /**
+         * Returns the average decoding time, in nanoseconds
+         */
+        public long getAverageDecodeTimeNanos() {
+            return mDecodedCount > 0 ? mDecodeTimeNanos / mDecodedCount : 0;
+        }
+
+        /**
+         * Returns the longest decoding time, in nanoseconds
+         */
+        public long getMaxDecodeTimeNanos() {
+            return mMaxDecodeTimeNanos;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("sentCount", mSentCount);
+            json.put("sentBytes", mSentBytes);
+            json.put("receivedCount", mReceivedCount);
+            json.put("receivedBytes", mReceivedBytes);
+            json.put("droppedCount", mDroppedCount);
+            json.put("decodedCount", mDecodedCount);
+            json.put("averageDecodeTimeNanos", getAverageDecodeTimeNanos());
+            json.put("maxDecodeTimeNanos", mMaxDecodeTimeNanos);
+            return json;
+        }
+    }
+
+    private final long mTimestamp;
+    private final Map<String, TypeMetrics> mTypes;
+    private final TypeMetrics mTotal = new TypeMetrics();
+    private final int mQueueDepth;
+    private final long mCoalescedCount;
+    private final long mCompressedCount;
+    private final long mIncompleteCount;
+
+    SignalMetrics(long timestamp, Map<String, TypeMetrics> types, int queueDepth, long coalescedCount,
+                  long compressedCount, long incompleteCount) {
+        mTimestamp = timestamp;
+        HashMap<String, TypeMetrics> copy = new HashMap<>();
+        for (Map.Entry<String, TypeMetrics> entry : types.entrySet()) {
+            copy.put(entry.getKey(), new TypeMetrics(entry.getValue()));
+            mTotal.add(entry.getValue());
+        }
+        mTypes = Collections.unmodifiableMap(copy);
+        mQueueDepth = queueDepth;
+        mCoalescedCount = coalescedCount;
+        mCompressedCount = compressedCount;
+        mIncompleteCount = incompleteCount;
+    }
+
+    /**
+     * Returns the time of the snapshot, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the counters of each signal type
+     */
+    public Map<String, TypeMetrics> getTypes() {
+        return mTypes;
+    }
+
+    /**
+     * Returns the counters of a signal type
+     * @param type the signal type
+     */
+    public TypeMetrics getType(String type) {
+        TypeMetrics metrics = mTypes.get(type);
+        return metrics != null ? metrics : new TypeMetrics();
+    }
+
+    /**
+     * Returns the counters of all the signal types
+     */
+    public TypeMetrics getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the number of signals waiting to be sent
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the number of queued signals merged into another one
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of signals sent compressed
+     */
+    public long getCompressedCount() {
+        return mCompressedCount;
+    }
+
+    /**
+     * Returns the number of received signals dropped because some of their fragments were missing
+     */
+    public long getIncompleteCount() {
+        return mIncompleteCount;
+    }
+
+    /**
+     * Returns the metrics as a JSON object, to export them
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("timestamp", mTimestamp);
+        json.put("queueDepth", mQueueDepth);
+        json.put("coalescedCount", mCoalescedCount);
+        json.put("compressedCount", mCompressedCount);
+        json.put("incompleteCount", mIncompleteCount);
+        json.put("total", mTotal.toJSON());
+        JSONObject types = new JSONObject();
+        for (Map.Entry<String, TypeMetrics> entry : mTypes.entrySet()) {
+            types.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("types", types);
+        return json;
+    }
+}
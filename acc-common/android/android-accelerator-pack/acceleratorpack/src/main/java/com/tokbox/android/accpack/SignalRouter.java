@@ -0,0 +1,177 @@
+package com.tokbox.android.accpack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Routes signal types to the values registered for them. A registration is either an exact
+ * signal type or a prefix ending with "*". Exact types are kept in a map and prefixes in a trie,
+ * so a lookup does not depend on the number of registrations. The routes of the types already
+ * seen are cached until the registrations change.
+ * It is not thread-safe, but the arrays it returns can be iterated while it is modified.
+ */
+class SignalRouter<T> {
+
+    static final String WILDCARD = "*";
+
+    private static final int MAX_CACHED_ROUTES = 64;
+
+    private static class Node<T> {
+        char[] keys = new char[0];
+        ArrayList<Node<T>> children = new ArrayList<>();
+        ListenerRegistry<T> values;
+
+        Node<T> child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children.get(i);
+                }
+            }
+            return null;
+        }
+
+        Node<T> addChild(char key) {
+            Node<T> child = child(key);
+            if (child == null) {
+                child = new Node<>();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = key;
+                children.add(child);
+            }
+            return child;
+        }
+    }
+
+    private final HashMap<String, ListenerRegistry<T>> mExact = new HashMap<>();
+    private final Node<T> mPrefixes = new Node<>();
+    private final HashMap<String, ListenerRegistry.Entry<T>[]> mRoutes = new HashMap<>();
+    private ListenerRegistry.Entry<T>[] mNullRoute;
+    private int mSize = 0;
+
+    /**
+     * Adds a value, unless it is already registered for the same type
+     * @param typeOrPrefix the signal type, or a prefix followed by "*"
+     * @param value the value to route to
+     * @param weak whether the value is held by a weak reference
+     */
+    void add(String typeOrPrefix, T value, boolean weak) {
+        ListenerRegistry<T> values;
+        if (typeOrPrefix.endsWith(WILDCARD)) {
+            Node<T> node = mPrefixes;
+            for (int i = 0; i < typeOrPrefix.length() - 1; i++) {
+                node = node.addChild(typeOrPrefix.charAt(i));
+            }
+            if (node.values == null) {
+                node.values = new ListenerRegistry<>();
+            }
+            values = node.values;
+        }
+        else {
+            values = mExact.get(typeOrPrefix);
+            if (values == null) {
+                values = new ListenerRegistry<>();
+                mExact.put(typeOrPrefix, values);
+            }
+        }
+        //the registry also drops the weak values collected
+        int size = values.size();
+        if (values.add(value, weak)) {
+            clearRoutes();
+        }
+        mSize += values.size() - size;
+    }
+
+    /**
+     * Removes every registration of a value
+     * @param value the value to remove
+     * @return whether the value was registered (<code>true</code>) or not (<code>false</code>)
+     */
+    boolean remove(T value) {
+        boolean removed = false;
+        for (ListenerRegistry<T> values : mExact.values()) {
+            removed |= remove(values, value);
+        }
+        removed |= remove(mPrefixes, value);
+        if (removed) {
+            clearRoutes();
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the values registered for a signal type: the ones of its prefixes, shortest first,
+     * and then the ones of the exact type. The order of registration is kept within each.
+     * The array must not be modified.
+     * @param type the signal type
+     */
+    ListenerRegistry.Entry<T>[] route(String type) {
+        ListenerRegistry.Entry<T>[] route = type != null ? mRoutes.get(type) : mNullRoute;
+        if (route != null) {
+            return route;
+        }
+
+        ArrayList<ListenerRegistry.Entry<T>> entries = new ArrayList<>();
+        Node<T> node = mPrefixes;
+        addAll(entries, node.values);
+        if (type != null) {
+            for (int i = 0; i < type.length() && node != null; i++) {
+                node = node.child(type.charAt(i));
+                if (node != null) {
+                    addAll(entries, node.values);
+                }
+            }
+            addAll(entries, mExact.get(type));
+        }
+        route = toArray(entries);
+
+        if (type == null) {
+            mNullRoute = route;
+        }
+        else {
+            if (mRoutes.size() >= MAX_CACHED_ROUTES) {
+                mRoutes.clear();
+            }
+            mRoutes.put(type, route);
+        }
+        return route;
+    }
+
+    /**
+     * Returns the number of registrations, including the weak values collected but not pruned yet
+     */
+    int size() {
+        return mSize;
+    }
+
+    private void clearRoutes() {
+        mRoutes.clear();
+        mNullRoute = null;
+    }
+
+    private static <T> ListenerRegistry.Entry<T>[] toArray(ArrayList<ListenerRegistry.Entry<T>> entries) {
+        return entries.toArray(ListenerRegistry.<T>emptyEntries());
+    }
+
+    private static <T> void addAll(ArrayList<ListenerRegistry.Entry<T>> entries, ListenerRegistry<T> values) {
+        if (values != null) {
+            entries.addAll(Arrays.asList(values.snapshot()));
+        }
+    }
+
+    //removes a value from a registry, keeping the count of the values it prunes
+    private boolean remove(ListenerRegistry<T> values, T value) {
+        int size = values.size();
+        boolean removed = values.remove(value);
+        mSize += values.size() - size;
+        return removed;
+    }
+
+    private boolean remove(Node<T> node, T value) {
+        boolean removed = node.values != null && remove(node.values, value);
+        for (int i = 0; i < node.children.size(); i++) {
+            removed |= remove(node.children.get(i), value);
+        }
+        return removed;
+    }
+}
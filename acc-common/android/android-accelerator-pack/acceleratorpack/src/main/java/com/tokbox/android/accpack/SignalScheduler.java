@@ -0,0 +1,364 @@
+package com.tokbox.android.accpack;
+
+import com.opentok.android.Connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Defines the queue of outgoing signals. Signals are sent in priority order, within the rate
+ * allowed by a token bucket. Consecutive JSON array signals of a coalescable type are concatenated
+ * while they wait. Other data, e.g. an encoded payload, is never merged. A signal is sent either to
+ * all the connections or to a single one. A signal is encoded by the sender when it is sent, and
+ * split in fragments if it is larger than the signal size limit; it is queued, dropped and
+ * superseded as a whole, and completed once its first fragment is sent.
+ * It is not thread-safe.
+ */
+class SignalScheduler {
+
+    static final int PRIORITY_CONTROL = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+
+    //signal data limit of the OpenTok platform
+    static final int MAX_SIGNAL_SIZE = 8192;
+
+    /**
+     * Sends a signal
+     */
+    interface Sender {
+        /**
+         * Called once per signal, when its first fragment is about to be sent, e.g. to compress
+         * it for its recipients. The encoded data is then split in fragments.
+         * @param connection the recipient, or null to send it to all the connections
+         * @return the data to send
+         */
+        String encode(String type, String data, Connection connection);
+
+        /**
+         * @param connection the recipient, or null to send it to all the connections
+         */
+        void send(String type, String data, Connection connection);
+
+        /**
+         * Called when a queued signal is dropped because the queue is full or a superseding signal
+         * is queued. The data is the whole signal.
+         */
+        void dropped(String type, String data, Connection connection);
+    }
+
+    private static class Policy {
+        final int priority;
+        final boolean coalesce;
+        final boolean droppable;
+
+        Policy(int priority, boolean coalesce, boolean droppable) {
+            this.priority = priority;
+            this.coalesce = coalesce;
+            this.droppable = droppable;
+        }
+    }
+
+    private static class Message {
+        final String type;
+        final boolean coalesce;
+        final boolean droppable;
+        final Connection target;
+        String data;
+        //fragments of the data, split when the first one is sent, and number of them sent
+        List<String> fragments;
+        int sent = 0;
+
+        Message(String type, String data, Connection target, Policy policy) {
+            this.type = type;
+            this.data = data;
+            this.target = target;
+            this.coalesce = policy.coalesce;
+            this.droppable = policy.droppable;
+        }
+
+        boolean isStarted() {
+            return fragments != null;
+        }
+    }
+
+    private static final Policy DEFAULT_POLICY = new Policy(PRIORITY_NORMAL, false, true);
+
+    private final Sender mSender;
+    //queue of each priority
+    private final List<ArrayDeque<Message>> mQueues = new ArrayList<>();
+    private final HashMap<String, Policy> mPolicies = new HashMap<>();
+    private final HashMap<String, HashSet<String>> mSuperseded = new HashMap<>();
+    private int mMaxQueued;
+
+    //token bucket
+    private double mTokensPerMs;
+    private double mBurst;
+    private double mTokens;
+    private long mLastRefill = -1;
+
+    private int mQueued = 0;
+    //id of the next signal split in fragments
+    private int mNextFragmentedId = 0;
+    private long mSentCount = 0;
+    private long mDroppedCount = 0;
+    private long mCoalescedCount = 0;
+
+    /**
+     * Constructor
+     * @param sender sends the signals
+     * @param signalsPerSecond sustained rate of signals
+     * @param burst signals that can be sent at once after an idle period
+     * @param maxQueued signals kept waiting before the oldest ones of the lowest priority are dropped
+     */
+    SignalScheduler(Sender sender, float signalsPerSecond, int burst, int maxQueued) {
+        mSender = sender;
+        for (int priority = PRIORITY_CONTROL; priority <= PRIORITY_LOW; priority++) {
+            mQueues.add(new ArrayDeque<Message>());
+        }
+        mMaxQueued = maxQueued;
+        setRateLimit(signalsPerSecond, burst);
+        mTokens = mBurst;
+    }
+
+    /**
+     * Sets the priority of a signal type and whether its signals can be merged
+     */
+    void setPolicy(String type, int priority, boolean coalesce) {
+        setPolicy(type, priority, coalesce, true);
+    }
+
+    /**
+     * Sets the priority of a signal type, whether its signals can be merged and whether they can
+     * be dropped when the queue is full
+     */
+    void setPolicy(String type, int priority, boolean coalesce, boolean droppable) {
+        if (priority < PRIORITY_CONTROL || priority > PRIORITY_LOW) {
+            throw new IllegalArgumentException("Invalid signal priority " + priority);
+        }
+        mPolicies.put(type, new Policy(priority, coalesce, droppable));
+    }
+
+    /**
+     * Makes a signal type discard the queued signals of another type to the same recipient when
+     * it is queued. A signal whose first fragments were sent is completed.
+     * @param type the superseding signal type
+     * @param supersededType the signal type discarded
+     */
+    void addSuperseded(String type, String supersededType) {
+        HashSet<String> types = mSuperseded.get(type);
+        if (types == null) {
+            types = new HashSet<>();
+            mSuperseded.put(type, types);
+        }
+        types.add(supersededType);
+    }
+
+    /**
+     * Sets the token bucket rate
+     */
+    void setRateLimit(float signalsPerSecond, int burst) {
+        if (signalsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid signal rate limit");
+        }
+        mTokensPerMs = signalsPerSecond / 1000.0;
+        mBurst = burst;
+        mTokens = Math.min(mTokens, mBurst);
+    }
+
+    /**
+     * Queues a signal to all the connections and sends the signals the rate allows
+     * @param now current time, in milliseconds
+     * @return the delay until the next signal can be sent, in milliseconds, or -1 if the queue is empty
+     */
+    long enqueue(String type, String data, long now) {
+        return enqueue(type, data, null, now);
+    }
+
+    /**
+     * Queues a signal and sends the signals the rate allows
+     * @param target the recipient, or null to send it to all the connections
+     * @param now current time, in milliseconds
+     * @return the delay until the next signal can be sent, in milliseconds, or -1 if the queue is empty
+     */
+    long enqueue(String type, String data, Connection target, long now) {
+        Policy policy = mPolicies.get(type);
+        if (policy == null) {
+            policy = DEFAULT_POLICY;
+        }
+        discardSuperseded(type, target);
+        ArrayDeque<Message> queue = mQueues.get(policy.priority);
+        Message last = queue.peekLast();
+        if (policy.coalesce && last != null && last.coalesce && !last.isStarted() && last.type.equals(type)
+                && sameTarget(last.target, target) && isJsonArray(last.data) && isJsonArray(data)) {
+            String merged = merge(last.data, data);
+            if (merged.length() <= MAX_SIGNAL_SIZE) {
+                last.data = merged;
+                mCoalescedCount++;
+                return drain(now);
+            }
+        }
+        queue.addLast(new Message(type, data, target, policy));
+        mQueued++;
+        while (mQueued > mMaxQueued && dropOldest()) {
+        }
+        return drain(now);
+    }
+
+    /**
+     * Sends the signals the rate allows
+     * @param now current time, in milliseconds
+     * @return the delay until the next signal can be sent, in milliseconds, or -1 if the queue is empty
+     */
+    long drain(long now) {
+        refill(now);
+        while (mQueued > 0) {
+            if (mTokens < 1) {
+                return (long) Math.ceil((1 - mTokens) / mTokensPerMs);
+            }
+            ArrayDeque<Message> queue = nextQueue();
+            Message message = queue.peekFirst();
+            if (!message.isStarted()) {
+                String data = mSender.encode(message.type, message.data, message.target);
+                message.fragments = SignalFragmenter.split(mNextFragmentedId, data, MAX_SIGNAL_SIZE);
+                if (message.fragments.size() > 1) {
+                    mNextFragmentedId++;
+                }
+            }
+            String fragment = message.fragments.get(message.sent++);
+            if (message.sent == message.fragments.size()) {
+                queue.pollFirst();
+                mQueued--;
+            }
+            mTokens -= 1;
+            mSentCount++;
+            mSender.send(message.type, fragment, message.target);
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the signals waiting to be sent, without counting them
+     */
+    void clear() {
+        for (ArrayDeque<Message> queue : mQueues) {
+            queue.clear();
+        }
+        mQueued = 0;
+    }
+
+    /**
+     * Returns the number of signals waiting to be sent, a signal in fragments counting once
+     */
+    int getQueueDepth() {
+        return mQueued;
+    }
+
+    /**
+     * Returns the number of signals sent, counting each fragment
+     */
+    long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Returns the number of signals dropped because the queue was full or a superseding signal
+     * was queued
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of signals merged into a queued one
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private ArrayDeque<Message> nextQueue() {
+        for (ArrayDeque<Message> queue : mQueues) {
+            if (!queue.isEmpty()) {
+                return queue;
+            }
+        }
+        throw new IllegalStateException("Empty signal queue");
+    }
+
+    //drops the oldest signal of the lowest priority, control signals last. A signal whose first
+    //fragments were sent is completed, and the types that are not droppable are kept.
+    //Returns false if no signal can be dropped.
+    private boolean dropOldest() {
+        for (int priority = PRIORITY_LOW; priority >= PRIORITY_CONTROL; priority--) {
+            Iterator<Message> iterator = mQueues.get(priority).iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next();
+                if (message.droppable && !message.isStarted()) {
+                    iterator.remove();
+                    mQueued--;
+                    mDroppedCount++;
+                    mSender.dropped(message.type, message.data, message.target);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //a signal whose first fragments were sent is completed, so the receivers do not wait for the rest
+    private void discardSuperseded(String type, Connection target) {
+        HashSet<String> types = mSuperseded.get(type);
+        if (types == null) {
+            return;
+        }
+        for (ArrayDeque<Message> queue : mQueues) {
+            Iterator<Message> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next();
+                if (types.contains(message.type) && !message.isStarted() && sameTarget(message.target, target)) {
+                    iterator.remove();
+                    mQueued--;
+                    mDroppedCount++;
+                    mSender.dropped(message.type, message.data, message.target);
+                }
+            }
+        }
+    }
+
+    private void refill(long now) {
+        if (mLastRefill >= 0 && now > mLastRefill) {
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mTokensPerMs);
+        }
+        mLastRefill = now;
+    }
+
+    private static boolean sameTarget(Connection a, Connection b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getConnectionId().equals(b.getConnectionId());
+    }
+
+    private static String merge(String previous, String next) {
+        if (isEmptyJsonArray(previous)) {
+            return next;
+        }
+        if (isEmptyJsonArray(next)) {
+            return previous;
+        }
+        return previous.substring(0, previous.lastIndexOf(']')) + "," + next.substring(next.indexOf('[') + 1);
+    }
+
+    private static boolean isJsonArray(String data) {
+        String value = data != null ? data.trim() : "";
+        return value.startsWith("[") && value.endsWith("]");
+    }
+
+    private static boolean isEmptyJsonArray(String data) {
+        return data.trim().substring(1, data.trim().length() - 1).trim().isEmpty();
+    }
+}
@@ -0,0 +1,45 @@
+package com.tokbox.android.accpack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void record_fillsTheBuckets() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-3);
+        histogram.record(5);
+        histogram.record(6);
+        histogram.record(80);
+        histogram.record(9000);
+
+        long[] counts = histogram.getBucketCounts();
+        assertEquals(LatencyHistogram.getBucketBounds().length + 1, counts.length);
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(1, counts[4]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(5, histogram.getCount());
+        assertEquals(9000, histogram.getMax());
+        assertEquals(1818, histogram.getMean());
+    }
+
+    @Test
+    public void getPercentile_returnsTheBucketBound() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+
+        LatencyHistogram copy = new LatencyHistogram(histogram);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(100, copy.getCount());
+    }
+}
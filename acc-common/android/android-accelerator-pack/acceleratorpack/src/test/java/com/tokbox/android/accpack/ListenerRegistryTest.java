@@ -0,0 +1,67 @@
+package com.tokbox.android.accpack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    @Test
+    public void addAndRemove_keepOrder() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>();
+        assertTrue(registry.add("first", false));
+        assertTrue(registry.add("second", false));
+        assertTrue(registry.add("third", false));
+        assertFalse(registry.add("second", false));
+
+        assertTrue(registry.remove("second"));
+        assertFalse(registry.remove("second"));
+        assertEquals(Arrays.asList("first", "third"), toList(registry));
+    }
+
+    @Test
+    public void iterator_usesSnapshot() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>();
+        registry.add("first", false);
+        registry.add("second", false);
+
+        ArrayList<String> dispatched = new ArrayList<>();
+        for (String listener : registry) {
+            //listeners may unregister themselves while dispatching
+            registry.remove(listener);
+            registry.add(listener + "-again", false);
+            dispatched.add(listener);
+        }
+        assertEquals(Arrays.asList("first", "second"), dispatched);
+        assertEquals(Arrays.asList("first-again", "second-again"), toList(registry));
+    }
+
+    @Test
+    public void weakListener_isDroppedOnceCollected() throws Exception {
+        ListenerRegistry<Object> registry = new ListenerRegistry<>();
+        Object listener = new Object();
+        registry.add(listener, true);
+        assertEquals(1, registry.size());
+
+        listener = null;
+        for (int i = 0; i < 10 && registry.iterator().hasNext(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertFalse(registry.iterator().hasNext());
+        //pruned on the next change
+        registry.add("other", false);
+        assertEquals(1, registry.size());
+    }
+
+    private static <T> ArrayList<T> toList(ListenerRegistry<T> registry) {
+        ArrayList<T> list = new ArrayList<>();
+        for (T listener : registry) {
+            list.add(listener);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,57 @@
+package com.tokbox.android.accpack;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class SignalCompressorTest {
+
+    private static final String PEN_UPDATE = "{\"id\":\"conn1\",\"fromId\":\"conn2\",\"fromX\":12.5,\"fromY\":40,"
+            + "\"toX\":13,\"toY\":41.5,\"color\":\"#FF0000\",\"lineWidth\":2,\"videoWidth\":640,\"videoHeight\":480,"
+            + "\"canvasWidth\":1080,\"canvasHeight\":1440,\"mirrored\":false,\"smoothed\":false,"
+            + "\"startPoint\":false,\"endPoint\":false,\"seq\":12,\"strokeId\":3,\"platform\":\"android\"}";
+
+    @Test
+    public void compress_roundTripsAndShrinksAnnotations() throws Exception {
+        SignalCompressor compressor = new SignalCompressor();
+        byte[] data = ("[" + PEN_UPDATE + "," + PEN_UPDATE + "]").getBytes("UTF-8");
+
+        assertTrue(compressor.compress(data));
+        assertTrue(compressor.getLength() < data.length / 4);
+        byte[] compressed = Arrays.copyOf(compressor.getBuffer(), compressor.getLength());
+
+        //the compressor is reused
+        compressor.decompress(compressed, data.length);
+        assertArrayEquals(data, Arrays.copyOf(compressor.getBuffer(), compressor.getLength()));
+        compressor.decompress(compressed, data.length);
+        assertArrayEquals(data, Arrays.copyOf(compressor.getBuffer(), compressor.getLength()));
+    }
+
+    @Test
+    public void compress_keepsDataThatDoesNotShrink() throws Exception {
+        SignalCompressor compressor = new SignalCompressor();
+        assertFalse(compressor.compress(new byte[] {1, 2, 3}));
+    }
+
+    @Test
+    public void decompress_rejectsInvalidData() throws Exception {
+        SignalCompressor compressor = new SignalCompressor();
+        byte[] data = PEN_UPDATE.getBytes("UTF-8");
+        assertTrue(compressor.compress(data));
+        byte[] compressed = Arrays.copyOf(compressor.getBuffer(), compressor.getLength());
+
+        try {
+            compressor.decompress(Arrays.copyOf(compressed, compressed.length / 2), data.length);
+            fail("Truncated data decompressed");
+        } catch (DataFormatException e) {
+        }
+        try {
+            compressor.decompress(compressed, data.length - 1);
+            fail("Data larger than the limit decompressed");
+        } catch (DataFormatException e) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.tokbox.android.accpack;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalFragmenterTest {
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void split_keepsSmallSignalsAndReassemblesLargeOnes() throws Exception {
+        assertEquals(1, SignalFragmenter.split(0, "small", 100).size());
+        assertEquals("small", SignalFragmenter.split(0, "small", 100).get(0));
+
+        String data = repeat("a\u00e9\u20ac\uD83D\uDE00", 100);
+        List<String> fragments = SignalFragmenter.split(7, data, 100);
+        assertTrue(fragments.size() > 1);
+        for (String fragment : fragments) {
+            assertTrue(SignalFragmenter.isFragment(fragment));
+            assertTrue(SignalFragmenter.utf8Length(fragment) <= 100);
+        }
+
+        //fragments may arrive in any order
+        SignalFragmenter reassembler = new SignalFragmenter(4, 100000, 1000);
+        String result = null;
+        for (int i = fragments.size() - 1; i >= 0; i--) {
+            assertNull(result);
+            result = reassembler.add("c1", "pen", fragments.get(i), 0);
+        }
+        assertEquals(data, result);
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void add_dropsIncompleteSignals() throws Exception {
+        List<String> fragments = SignalFragmenter.split(1, repeat("x", 500), 100);
+        SignalFragmenter reassembler = new SignalFragmenter(1, 100000, 1000);
+
+        //timed out
+        assertNull(reassembler.add("c1", "pen", fragments.get(0), 0));
+        assertNull(reassembler.add("c1", "pen", fragments.get(1), 2000));
+        assertEquals(1, reassembler.getDroppedCount());
+
+        //evicted by a signal of another sender
+        assertNull(reassembler.add("c2", "pen", fragments.get(0), 2000));
+        assertEquals(2, reassembler.getDroppedCount());
+
+        //invalid
+        assertNull(reassembler.add("c2", "pen", SignalFragmenter.PREFIX + "1:5:2:x", 2000));
+        assertEquals(3, reassembler.getDroppedCount());
+    }
+}
@@ -0,0 +1,80 @@
+package com.tokbox.android.accpack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalRouterTest {
+
+    @Test
+    public void route_matchesExactTypesAndPrefixes() throws Exception {
+        SignalRouter<String> router = new SignalRouter<>();
+        router.add("*", "all", false);
+        router.add("otAnnotation*", "annotations", false);
+        router.add("otAnnotation_pen", "pen", false);
+        router.add("annotations", "screensharing", false);
+
+        assertEquals(Arrays.asList("all", "annotations", "pen"), values(router.route("otAnnotation_pen")));
+        assertEquals(Arrays.asList("all", "annotations"), values(router.route("otAnnotation_clear")));
+        assertEquals(Arrays.asList("all", "screensharing"), values(router.route("annotations")));
+        assertEquals(Arrays.asList("all"), values(router.route(null)));
+    }
+
+    @Test
+    public void remove_dropsEveryRegistration() throws Exception {
+        SignalRouter<String> router = new SignalRouter<>();
+        String listener = "listener";
+        router.add("otAnnotation*", listener, false);
+        router.add("otAnnotation_pen", listener, false);
+        router.add("otAnnotation_pen", "other", false);
+
+        //the cached route is dropped when the registrations change
+        assertEquals(Arrays.asList(listener, listener, "other"), values(router.route("otAnnotation_pen")));
+        assertTrue(router.remove(listener));
+        assertFalse(router.remove(listener));
+        assertEquals(1, router.size());
+        assertEquals(Arrays.asList("other"), values(router.route("otAnnotation_pen")));
+    }
+
+    @Test
+    public void add_ignoresDuplicates() throws Exception {
+        SignalRouter<String> router = new SignalRouter<>();
+        router.add("otAnnotation_pen", "pen", false);
+        router.add("otAnnotation_pen", "pen", true);
+
+        assertEquals(1, router.size());
+    }
+
+    @Test
+    public void size_countsTheCollectedValuesPruned() throws Exception {
+        SignalRouter<Object> router = new SignalRouter<>();
+        Object value = new Object();
+        router.add("otAnnotation*", value, true);
+        router.add("otAnnotation*", "other", false);
+        assertEquals(2, router.size());
+
+        value = null;
+        for (int i = 0; i < 10 && router.route("otAnnotation_pen")[0].get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(router.route("otAnnotation_pen")[0].get());
+        //pruned on the next change
+        router.add("otAnnotation*", "more", false);
+        assertEquals(2, router.size());
+        router.remove("other");
+        assertEquals(1, router.size());
+    }
+
+    private static List<String> values(ListenerRegistry.Entry<String>[] entries) {
+        ArrayList<String> values = new ArrayList<>();
+        for (ListenerRegistry.Entry<String> entry : entries) {
+            values.add(entry.get());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,217 @@
+package com.tokbox.android.accpack;
+
+import com.opentok.android.Connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalSchedulerTest {
+
+    private static class RecordingSender implements SignalScheduler.Sender {
+        final List<String> sent = new ArrayList<>();
+        final List<String> dropped = new ArrayList<>();
+        final List<String> encoded = new ArrayList<>();
+
+        @Override
+        public String encode(String type, String data, Connection connection) {
+            encoded.add(type + ":" + data);
+            return data;
+        }
+
+        @Override
+        public void send(String type, String data, Connection connection) {
+            sent.add(type + ":" + data);
+        }
+
+        @Override
+        public void dropped(String type, String data, Connection connection) {
+            dropped.add(type + ":" + data);
+        }
+    }
+
+    @Test
+    public void drain_sendsControlSignalsFirstWithinTheRate() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 16);
+        scheduler.setPolicy("control", SignalScheduler.PRIORITY_CONTROL, false);
+
+        assertEquals(-1, scheduler.enqueue("pen", "1", 0));
+        assertEquals(100, scheduler.enqueue("pen", "2", 0));
+        assertEquals(100, scheduler.enqueue("control", "3", 0));
+        assertEquals(2, scheduler.getQueueDepth());
+
+        //one token every 100ms
+        assertEquals(50, scheduler.drain(50));
+        assertEquals(100, scheduler.drain(100));
+        assertEquals(-1, scheduler.drain(200));
+        assertEquals(Arrays.asList("pen:1", "control:3", "pen:2"), sender.sent);
+        assertEquals(3, scheduler.getSentCount());
+    }
+
+    @Test
+    public void enqueue_mergesCoalescableSignals() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 16);
+        scheduler.setPolicy("pen", SignalScheduler.PRIORITY_NORMAL, true);
+        scheduler.setPolicy("color", SignalScheduler.PRIORITY_NORMAL, true);
+        scheduler.setPolicy("clear", SignalScheduler.PRIORITY_CONTROL, false);
+        scheduler.addSuperseded("clear", "text");
+
+        scheduler.enqueue("text", "a", 0);
+        scheduler.enqueue("pen", "[{\"x\":1}]", 0);
+        scheduler.enqueue("pen", "[{\"x\":2}]", 0);
+        //only JSON arrays are merged
+        scheduler.enqueue("color", "red", 0);
+        scheduler.enqueue("color", "blue", 0);
+        scheduler.enqueue("text", "b", 0);
+        scheduler.enqueue("clear", "", 0);
+        assertEquals(4, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getCoalescedCount());
+        //a superseded signal is counted as dropped
+        assertEquals(Arrays.asList("text:b"), sender.dropped);
+        assertEquals(1, scheduler.getDroppedCount());
+
+        for (long now = 100; scheduler.drain(now) >= 0; now += 100) {
+        }
+        assertEquals(Arrays.asList("text:a", "clear:", "pen:[{\"x\":1},{\"x\":2}]", "color:red", "color:blue"), sender.sent);
+    }
+
+    @Test
+    public void enqueue_dropsTheOldestNonControlSignals() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 2);
+        scheduler.setPolicy("control", SignalScheduler.PRIORITY_CONTROL, false);
+        scheduler.setPolicy("low", SignalScheduler.PRIORITY_LOW, false);
+
+        scheduler.enqueue("pen", "0", 0);
+        scheduler.enqueue("control", "1", 0);
+        scheduler.enqueue("pen", "2", 0);
+        scheduler.enqueue("low", "3", 0);
+        scheduler.enqueue("pen", "4", 0);
+        scheduler.enqueue("control", "5", 0);
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getDroppedCount());
+        assertEquals(Arrays.asList("low:3", "pen:2", "pen:4"), sender.dropped);
+
+        for (long now = 100; scheduler.drain(now) >= 0; now += 100) {
+        }
+        assertEquals(Arrays.asList("pen:0", "control:1", "control:5"), sender.sent);
+    }
+
+    @Test
+    public void enqueue_capsTheControlSignalsToo() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 2);
+        scheduler.setPolicy("control", SignalScheduler.PRIORITY_CONTROL, false);
+
+        scheduler.enqueue("control", "0", 0);
+        scheduler.enqueue("control", "1", 0);
+        scheduler.enqueue("control", "2", 0);
+        scheduler.enqueue("control", "3", 0);
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(Arrays.asList("control:1"), sender.dropped);
+
+        for (long now = 100; scheduler.drain(now) >= 0; now += 100) {
+        }
+        assertEquals(Arrays.asList("control:0", "control:2", "control:3"), sender.sent);
+    }
+
+    @Test
+    public void enqueue_dropsAFragmentedSignalAsAWholeAndCompletesAStartedOne() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 2);
+        scheduler.setPolicy("clear", SignalScheduler.PRIORITY_CONTROL, false);
+        scheduler.addSuperseded("clear", "snapshot");
+        StringBuilder large = new StringBuilder();
+        while (large.length() < SignalScheduler.MAX_SIGNAL_SIZE * 2) {
+            large.append("0123456789");
+        }
+
+        scheduler.enqueue("pen", "0", 0);
+        scheduler.enqueue("pen", large.toString(), 0);
+        scheduler.enqueue("pen", "2", 0);
+        scheduler.enqueue("pen", "3", 0);
+        //the whole large signal is dropped, not one of its fragments
+        assertEquals(Arrays.asList("pen:" + large), sender.dropped);
+        assertEquals(1, scheduler.getDroppedCount());
+
+        scheduler.drain(100);
+        scheduler.enqueue("snapshot", large.toString(), 100);
+        scheduler.drain(200);
+        scheduler.drain(300);
+        //a signal whose first fragment was sent is completed rather than dropped
+        scheduler.enqueue("pen", "4", 300);
+        scheduler.enqueue("pen", "5", 300);
+        assertEquals(Arrays.asList("pen:" + large, "pen:4"), sender.dropped);
+
+        //and it is not superseded either, the receivers would wait for the remaining fragments.
+        //The queue is full again, so the last pen signal is dropped instead.
+        scheduler.enqueue("clear", "", 300);
+        assertEquals(Arrays.asList("pen:" + large, "pen:4", "pen:5"), sender.dropped);
+        for (long now = 400; scheduler.drain(now) >= 0; now += 100) {
+        }
+        assertEquals(7, sender.sent.size());
+        assertEquals(Arrays.asList("pen:0", "pen:2", "pen:3"), sender.sent.subList(0, 3));
+        assertTrue(sender.sent.get(3).startsWith("snapshot:" + SignalFragmenter.PREFIX));
+        assertEquals("clear:", sender.sent.get(4));
+        assertTrue(sender.sent.get(5).startsWith("snapshot:" + SignalFragmenter.PREFIX));
+        assertTrue(sender.sent.get(6).startsWith("snapshot:" + SignalFragmenter.PREFIX));
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void enqueue_keepsTheSignalsThatAreNotDroppable() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 1, 2);
+        scheduler.setPolicy("chunk", SignalScheduler.PRIORITY_LOW, false, false);
+
+        scheduler.enqueue("pen", "0", 0);
+        scheduler.enqueue("chunk", "1", 0);
+        scheduler.enqueue("chunk", "2", 0);
+        scheduler.enqueue("pen", "3", 0);
+        scheduler.enqueue("chunk", "4", 0);
+        assertEquals(Arrays.asList("pen:3"), sender.dropped);
+        assertEquals(3, scheduler.getQueueDepth());
+
+        for (long now = 100; scheduler.drain(now) >= 0; now += 100) {
+        }
+        assertEquals(Arrays.asList("pen:0", "chunk:1", "chunk:2", "chunk:4"), sender.sent);
+    }
+
+    @Test
+    public void drain_encodesASignalOnceBeforeSplittingIt() throws Exception {
+        final String large = repeat("0123456789", SignalScheduler.MAX_SIGNAL_SIZE * 2);
+        RecordingSender sender = new RecordingSender() {
+            @Override
+            public String encode(String type, String data, Connection connection) {
+                super.encode(type, data, connection);
+                return data.equals(large) ? repeat("z", SignalScheduler.MAX_SIGNAL_SIZE + 1) : data;
+            }
+        };
+        SignalScheduler scheduler = new SignalScheduler(sender, 10, 10, 16);
+
+        scheduler.enqueue("pen", large, 0);
+        scheduler.enqueue("pen", "1", 0);
+        assertEquals(Arrays.asList("pen:" + large, "pen:1"), sender.encoded);
+        //the encoded data is split, not the original one
+        assertEquals(3, sender.sent.size());
+        SignalFragmenter reassembler = new SignalFragmenter(1, SignalScheduler.MAX_SIGNAL_SIZE * 4, 1000);
+        assertNull(reassembler.add("a", "pen", sender.sent.get(0).substring("pen:".length()), 0));
+        assertEquals(repeat("z", SignalScheduler.MAX_SIGNAL_SIZE + 1),
+                reassembler.add("a", "pen", sender.sent.get(1).substring("pen:".length()), 0));
+        assertEquals("pen:1", sender.sent.get(2));
+    }
+
+    private static String repeat(String value, int length) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            builder.append(value);
+        }
+        return builder.substring(0, length);
+    }
+}
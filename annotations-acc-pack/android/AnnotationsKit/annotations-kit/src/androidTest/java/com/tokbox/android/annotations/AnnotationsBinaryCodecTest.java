@@ -0,0 +1,226 @@
+package com.tokbox.android.annotations;
+
+import android.util.Base64;
+
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+
+public class AnnotationsBinaryCodecTest extends TestBase {
+
+    private static final int SEQUENCE_FIELDS = AnnotationsSignalParser.PenUpdate.HAS_SEQ
+            | AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID;
+
+    private AnnotationsBinaryCodec codec;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        codec = new AnnotationsBinaryCodec();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testIsBinary() {
+        Assert.assertTrue(AnnotationsBinaryCodec.isBinary(AnnotationsBinaryCodec.PREFIX + "AA=="));
+        Assert.assertFalse(AnnotationsBinaryCodec.isBinary("[{\"fromX\":1}]"));
+        Assert.assertFalse(AnnotationsBinaryCodec.isBinary(null));
+    }
+
+    public void testRoundTrip() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(10.0f, 20.0f, 12.5f, 21.3f, 0xFFFF0000, 7, 0, 1000L));
+        builder.add(buildUpdate(12.5f, 21.3f, 15.0f, 25.0f, 0xFFFF0000, 7, 1, 1016L));
+        builder.add(buildUpdate(15.0f, 25.0f, 18.2f, 26.1f, 0xFFFF0000, 7, 2, 1033L));
+
+        assertRoundTrip(builder.build());
+    }
+
+    public void testRunsSplitOnHeaderChanges() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(1.0f, 1.0f, 2.0f, 2.0f, 0xFFFF0000, 1, 0, 100L));
+        //color change
+        builder.add(buildUpdate(2.0f, 2.0f, 3.0f, 3.0f, 0xFF00FF00, 1, 1, 110L));
+        //line width change
+        AnnotationsSignalParser.PenUpdate update = buildUpdate(3.0f, 3.0f, 4.0f, 4.0f, 0xFF00FF00, 1, 2, 120L);
+        update.lineWidth = 6.0f;
+        builder.add(update);
+        //stroke id change, with the sequence restarting
+        builder.add(buildUpdate(50.0f, 50.0f, 51.0f, 51.0f, 0xFF00FF00, 2, 0, 130L));
+        //sequence gap in the same stroke
+        builder.add(buildUpdate(51.0f, 51.0f, 52.0f, 52.0f, 0xFF00FF00, 2, 5, 140L));
+        builder.add(buildUpdate(52.0f, 52.0f, 53.0f, 53.0f, 0xFF00FF00, 2, 6, 150L));
+
+        assertRoundTrip(builder.build());
+    }
+
+    public void testRunsSplitOnMissingFields() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(1.0f, 1.0f, 2.0f, 2.0f, 0xFFFF0000, 1, 0, 100L));
+        //an update of an older client, without color, sequence or timestamp
+        AnnotationsSignalParser.PenUpdate update = buildUpdate(2.0f, 2.0f, 3.0f, 3.0f, 0, 0, 0, 0L);
+        update.fields &= ~(AnnotationsSignalParser.PenUpdate.HAS_COLOR | SEQUENCE_FIELDS
+                | AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP);
+        builder.add(update);
+
+        assertRoundTrip(builder.build());
+    }
+
+    public void testNegativeDeltas() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(500.0f, 400.0f, 320.5f, 120.2f, 0xFF0000FF, 3, 10, 2000L));
+        builder.add(buildUpdate(320.5f, 120.2f, 0.0f, 0.0f, 0xFF0000FF, 3, 11, 2010L));
+        builder.add(buildUpdate(0.0f, 0.0f, -15.3f, -0.1f, 0xFF0000FF, 3, 12, 2020L));
+        //a jump back from the end of the previous update
+        builder.add(buildUpdate(-100.0f, 250.0f, -120.0f, 240.0f, 0xFF0000FF, 3, 13, 2030L));
+
+        assertRoundTrip(builder.build());
+    }
+
+    public void testTimestampsGoingBackAreKeptIncreasing() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(1.0f, 1.0f, 2.0f, 2.0f, 0xFFFF0000, 1, 0, 5000L));
+        builder.add(buildUpdate(2.0f, 2.0f, 3.0f, 3.0f, 0xFFFF0000, 1, 1, 4000L));
+        builder.add(buildUpdate(3.0f, 3.0f, 4.0f, 4.0f, 0xFFFF0000, 1, 2, 5020L));
+
+        AnnotationsSignalParser.PenSignal decoded = codec.decode(codec.encode("id", "fromId", builder.build()));
+
+        Assert.assertEquals(3, decoded.size());
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        decoded.get(0, update);
+        Assert.assertEquals(5000L, update.timestamp);
+        decoded.get(1, update);
+        Assert.assertEquals(5000L, update.timestamp);
+        decoded.get(2, update);
+        Assert.assertEquals(5020L, update.timestamp);
+    }
+
+    public void testInvalidBase64() {
+        assertInvalid(AnnotationsBinaryCodec.PREFIX + "!!not base64!!");
+        assertInvalid(AnnotationsBinaryCodec.PREFIX + "A");
+    }
+
+    public void testTruncatedPayload() throws JSONException {
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        builder.add(buildUpdate(10.0f, 20.0f, 12.5f, 21.3f, 0xFFFF0000, 7, 0, 1000L));
+        builder.add(buildUpdate(12.5f, 21.3f, 15.0f, 25.0f, 0xFFFF0000, 7, 1, 1016L));
+        String data = codec.encode("connection-id", "from-connection-id", builder.build());
+        byte[] bytes = Base64.decode(data.substring(AnnotationsBinaryCodec.PREFIX.length()), Base64.NO_WRAP);
+
+        //inside the connection ids, inside the stroke header and inside the last update
+        int[] lengths = {1, 20, 40, bytes.length - 1};
+        for (int length : lengths) {
+            assertInvalid(AnnotationsBinaryCodec.PREFIX
+                    + Base64.encodeToString(Arrays.copyOf(bytes, length), Base64.NO_WRAP));
+        }
+    }
+
+    public void testPointsRoundTrip() throws JSONException {
+        AnnotationsPath path = new AnnotationsPath();
+        path.addPoint(10.0f, 10.0f);
+        path.addPoint(5.5f, 20.1f);
+        path.addPoint(-3.2f, 0.0f);
+        path.addPoint(1000.0f, -1000.0f);
+
+        float[] points = codec.decodePoints(codec.encodePoints(path, 1, 4));
+
+        Assert.assertEquals(6, points.length);
+        for (int i = 1; i < 4; i++) {
+            Assert.assertEquals(path.getPointX(i), points[(i - 1) * 2], 0.05f);
+            Assert.assertEquals(path.getPointY(i), points[(i - 1) * 2 + 1], 0.05f);
+        }
+    }
+
+    public void testTruncatedPoints() {
+        try {
+            //claims three points without any
+            codec.decodePoints(Base64.encodeToString(new byte[]{3}, Base64.NO_WRAP));
+            Assert.fail("Expected a JSONException");
+        } catch (JSONException e) {
+            //expected
+        }
+    }
+
+    private void assertRoundTrip(AnnotationsSignalParser.PenSignal signal) throws JSONException {
+        String data = codec.encode("connection-id", "from-connection-id", signal);
+        Assert.assertTrue(AnnotationsBinaryCodec.isBinary(data));
+
+        AnnotationsSignalParser.PenSignal decoded = codec.decode(data);
+
+        Assert.assertEquals(signal.size(), decoded.size());
+        AnnotationsSignalParser.PenUpdate expected = new AnnotationsSignalParser.PenUpdate();
+        AnnotationsSignalParser.PenUpdate actual = new AnnotationsSignalParser.PenUpdate();
+        for (int i = 0; i < signal.size(); i++) {
+            signal.get(i, expected);
+            decoded.get(i, actual);
+            String message = "update " + i;
+            Assert.assertEquals(message, expected.fields, actual.fields);
+            Assert.assertEquals(message, expected.fromX, actual.fromX, 0.05f);
+            Assert.assertEquals(message, expected.fromY, actual.fromY, 0.05f);
+            Assert.assertEquals(message, expected.toX, actual.toX, 0.05f);
+            Assert.assertEquals(message, expected.toY, actual.toY, 0.05f);
+            Assert.assertEquals(message, expected.canvasWidth, actual.canvasWidth, 0.05f);
+            Assert.assertEquals(message, expected.canvasHeight, actual.canvasHeight, 0.05f);
+            Assert.assertEquals(message, expected.mirrored, actual.mirrored);
+            Assert.assertEquals(message, expected.startPoint, actual.startPoint);
+            Assert.assertEquals(message, expected.endPoint, actual.endPoint);
+            Assert.assertEquals(message, expected.smoothed, actual.smoothed);
+            if (expected.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR)) {
+                Assert.assertEquals(message, expected.color, actual.color);
+            }
+            if (expected.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH)) {
+                Assert.assertEquals(message, expected.lineWidth, actual.lineWidth, 0.05f);
+            }
+            if (expected.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ)) {
+                Assert.assertEquals(message, expected.seq, actual.seq);
+                Assert.assertEquals(message, expected.strokeId, actual.strokeId);
+            }
+            if (expected.has(AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP)) {
+                Assert.assertEquals(message, expected.timestamp, actual.timestamp);
+            }
+        }
+    }
+
+    private void assertInvalid(String data) {
+        try {
+            codec.decode(data);
+            Assert.fail("Expected a JSONException for " + data);
+        } catch (JSONException e) {
+            //expected
+        }
+    }
+
+    private static AnnotationsSignalParser.PenUpdate buildUpdate(float fromX, float fromY, float toX, float toY,
+                                                                 int color, int strokeId, int seq, long timestamp) {
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        update.fromX = fromX;
+        update.fromY = fromY;
+        update.toX = toX;
+        update.toY = toY;
+        update.canvasWidth = 1080;
+        update.canvasHeight = 1701;
+        update.lineWidth = 2;
+        update.color = color;
+        update.mirrored = true;
+        update.startPoint = seq == 0;
+        update.smoothed = false;
+        update.strokeId = strokeId;
+        update.seq = seq;
+        update.timestamp = timestamp;
+        update.fields = AnnotationsSignalParser.PenUpdate.REQUIRED
+                | AnnotationsSignalParser.PenUpdate.HAS_START_POINT
+                | AnnotationsSignalParser.PenUpdate.HAS_END_POINT
+                | AnnotationsSignalParser.PenUpdate.HAS_SMOOTHED
+                | AnnotationsSignalParser.PenUpdate.HAS_COLOR
+                | AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH
+                | SEQUENCE_FIELDS
+                | AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP;
+        return update;
+    }
+}
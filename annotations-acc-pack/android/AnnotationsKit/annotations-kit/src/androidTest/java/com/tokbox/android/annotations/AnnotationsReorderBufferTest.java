@@ -0,0 +1,241 @@
+package com.tokbox.android.annotations;
+
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+public class AnnotationsReorderBufferTest extends TestBase {
+
+    private static final long GAP_TIMEOUT = 500;
+    private static final int MAX_PENDING = 4;
+
+    private AnnotationsReorderBuffer buffer;
+    private AnnotationsSignalParser.PenUpdate polled;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        buffer = new AnnotationsReorderBuffer(GAP_TIMEOUT, MAX_PENDING);
+        polled = new AnnotationsSignalParser.PenUpdate();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testUpdatesInOrderAreReleased() {
+        for (int seq = 10; seq < 15; seq++) {
+            Assert.assertTrue(buffer.offer(buildUpdate(seq), 0));
+        }
+
+        Assert.assertFalse(buffer.poll(polled, 0));
+        Assert.assertEquals(0, buffer.getPendingCount());
+        Assert.assertEquals(-1, buffer.getGapDeadline());
+        Assert.assertTrue(buffer.isApplied(14));
+        Assert.assertFalse(buffer.isApplied(15));
+        Assert.assertFalse(buffer.isApplied(9));
+    }
+
+    public void testUpdatesWithoutSequenceAreReleased() {
+        AnnotationsSignalParser.PenUpdate update = buildUpdate(0);
+        update.fields &= ~AnnotationsSignalParser.PenUpdate.HAS_SEQ;
+
+        Assert.assertTrue(buffer.offer(update, 0));
+        Assert.assertTrue(buffer.offer(update, 0));
+        Assert.assertEquals(0, buffer.getDroppedCount());
+    }
+
+    public void testGapFilled() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(2), 10));
+        Assert.assertFalse(buffer.offer(buildUpdate(3), 20));
+        Assert.assertEquals(2, buffer.getPendingCount());
+        Assert.assertEquals(10 + GAP_TIMEOUT, buffer.getGapDeadline());
+        Assert.assertFalse(buffer.poll(polled, 100));
+
+        Assert.assertTrue(buffer.offer(buildUpdate(1), 100));
+
+        Assert.assertTrue(buffer.poll(polled, 100));
+        Assert.assertEquals(2, polled.seq);
+        Assert.assertTrue(buffer.poll(polled, 100));
+        Assert.assertEquals(3, polled.seq);
+        Assert.assertFalse(buffer.poll(polled, 100));
+        Assert.assertEquals(0, buffer.getSkippedCount());
+        Assert.assertEquals(-1, buffer.getGapDeadline());
+    }
+
+    public void testGapTimeout() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(3), 100));
+
+        Assert.assertFalse(buffer.poll(polled, 100 + GAP_TIMEOUT - 1));
+        Assert.assertTrue(buffer.poll(polled, 100 + GAP_TIMEOUT));
+        Assert.assertEquals(3, polled.seq);
+        Assert.assertEquals(2, buffer.getSkippedCount());
+        Assert.assertTrue(buffer.isApplied(1));
+
+        //the skipped updates are late now
+        Assert.assertFalse(buffer.offer(buildUpdate(1), 700));
+        Assert.assertEquals(1, buffer.getDroppedCount());
+        Assert.assertTrue(buffer.offer(buildUpdate(4), 700));
+    }
+
+    public void testGapDeadlineFollowsTheOldestPendingUpdate() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(3), 100));
+        Assert.assertFalse(buffer.offer(buildUpdate(2), 200));
+        Assert.assertEquals(100 + GAP_TIMEOUT, buffer.getGapDeadline());
+
+        Assert.assertTrue(buffer.poll(polled, 100 + GAP_TIMEOUT));
+        Assert.assertEquals(2, polled.seq);
+        Assert.assertTrue(buffer.poll(polled, 100 + GAP_TIMEOUT));
+        Assert.assertEquals(3, polled.seq);
+        Assert.assertEquals(1, buffer.getSkippedCount());
+
+        Assert.assertFalse(buffer.offer(buildUpdate(6), 1000));
+        Assert.assertEquals(1000 + GAP_TIMEOUT, buffer.getGapDeadline());
+    }
+
+    public void testOverflow() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        for (int seq = 2; seq < 2 + MAX_PENDING; seq++) {
+            Assert.assertFalse(buffer.offer(buildUpdate(seq), 0));
+        }
+        Assert.assertFalse(buffer.poll(polled, 0));
+
+        Assert.assertFalse(buffer.offer(buildUpdate(2 + MAX_PENDING), 0));
+
+        Assert.assertTrue(buffer.poll(polled, 0));
+        Assert.assertEquals(2, polled.seq);
+        Assert.assertEquals(1, buffer.getSkippedCount());
+        //the following ones are in order
+        for (int seq = 3; seq <= 2 + MAX_PENDING; seq++) {
+            Assert.assertTrue(buffer.poll(polled, 0));
+            Assert.assertEquals(seq, polled.seq);
+        }
+        Assert.assertFalse(buffer.poll(polled, 0));
+    }
+
+    public void testDuplicatesAreDropped() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(2), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(2), 0));
+
+        Assert.assertEquals(2, buffer.getDroppedCount());
+        Assert.assertEquals(1, buffer.getPendingCount());
+    }
+
+    public void testFlush() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(2), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(5), 0));
+
+        Assert.assertTrue(buffer.flush(polled));
+        Assert.assertEquals(2, polled.seq);
+        Assert.assertTrue(buffer.flush(polled));
+        Assert.assertEquals(5, polled.seq);
+        Assert.assertFalse(buffer.flush(polled));
+        Assert.assertEquals(3, buffer.getSkippedCount());
+    }
+
+    public void testRestartDetection() {
+        for (int seq = 0; seq < 10; seq++) {
+            Assert.assertTrue(buffer.offer(buildUpdate(seq), 0));
+        }
+
+        //late, but within the buffer size
+        Assert.assertFalse(buffer.isRestarted(buildUpdate(10 - MAX_PENDING)));
+        Assert.assertFalse(buffer.isRestarted(buildUpdate(12)));
+        //far behind the expected one
+        AnnotationsSignalParser.PenUpdate restarted = buildUpdate(10 - MAX_PENDING - 1);
+        Assert.assertTrue(buffer.isRestarted(restarted));
+        AnnotationsSignalParser.PenUpdate unsequenced = buildUpdate(0);
+        unsequenced.fields &= ~AnnotationsSignalParser.PenUpdate.HAS_SEQ;
+        Assert.assertFalse(buffer.isRestarted(unsequenced));
+
+        buffer.reset();
+
+        Assert.assertTrue(buffer.offer(restarted, 0));
+        Assert.assertTrue(buffer.offer(buildUpdate(10 - MAX_PENDING), 0));
+    }
+
+    public void testNoRestartBeforeTheFirstUpdate() {
+        Assert.assertFalse(buffer.isRestarted(buildUpdate(-1000)));
+    }
+
+    public void testSequenceWrapsAround() {
+        Assert.assertTrue(buffer.offer(buildUpdate(Integer.MAX_VALUE), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(Integer.MIN_VALUE + 1), 0));
+        Assert.assertTrue(buffer.offer(buildUpdate(Integer.MIN_VALUE), 0));
+
+        Assert.assertTrue(buffer.poll(polled, 0));
+        Assert.assertEquals(Integer.MIN_VALUE + 1, polled.seq);
+        Assert.assertFalse(buffer.isRestarted(buildUpdate(Integer.MAX_VALUE)));
+    }
+
+    public void testCoverBeforeTheFirstUpdate() {
+        buffer.cover(5);
+
+        Assert.assertTrue(buffer.isApplied(5));
+        Assert.assertFalse(buffer.offer(buildUpdate(3), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(5), 0));
+        Assert.assertEquals(2, buffer.getDroppedCount());
+
+        Assert.assertTrue(buffer.offer(buildUpdate(6), 0));
+        Assert.assertTrue(buffer.offer(buildUpdate(7), 0));
+    }
+
+    public void testCoverDropsPendingUpdates() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(3), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(5), 0));
+
+        buffer.cover(3);
+
+        Assert.assertEquals(1, buffer.getDroppedCount());
+        Assert.assertEquals(1, buffer.getPendingCount());
+        Assert.assertTrue(buffer.isApplied(2));
+        Assert.assertTrue(buffer.isApplied(3));
+        //the gap before 5 is still waiting
+        Assert.assertFalse(buffer.poll(polled, 0));
+
+        Assert.assertTrue(buffer.offer(buildUpdate(4), 0));
+        Assert.assertTrue(buffer.poll(polled, 0));
+        Assert.assertEquals(5, polled.seq);
+    }
+
+    public void testCoverReleasesTheFollowingUpdate() {
+        Assert.assertTrue(buffer.offer(buildUpdate(0), 0));
+        Assert.assertFalse(buffer.offer(buildUpdate(4), 0));
+
+        buffer.cover(3);
+
+        Assert.assertTrue(buffer.poll(polled, 0));
+        Assert.assertEquals(4, polled.seq);
+        Assert.assertEquals(0, buffer.getSkippedCount());
+        Assert.assertEquals(-1, buffer.getGapDeadline());
+    }
+
+    public void testOlderCoverIsIgnored() {
+        for (int seq = 0; seq < 5; seq++) {
+            Assert.assertTrue(buffer.offer(buildUpdate(seq), 0));
+        }
+
+        buffer.cover(2);
+
+        Assert.assertTrue(buffer.offer(buildUpdate(5), 0));
+        Assert.assertEquals(0, buffer.getDroppedCount());
+    }
+
+    private static AnnotationsSignalParser.PenUpdate buildUpdate(int seq) {
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        update.seq = seq;
+        update.strokeId = 1;
+        update.toX = seq;
+        update.fields = AnnotationsSignalParser.PenUpdate.REQUIRED
+                | AnnotationsSignalParser.PenUpdate.HAS_SEQ
+                | AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID;
+        return update;
+    }
+}
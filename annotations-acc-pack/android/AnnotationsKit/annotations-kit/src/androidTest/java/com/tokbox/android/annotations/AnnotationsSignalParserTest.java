@@ -0,0 +1,196 @@
+package com.tokbox.android.annotations;
+
+import android.graphics.Color;
+
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class AnnotationsSignalParserTest extends TestBase {
+
+    private AnnotationsSignalParser parser;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        parser = new AnnotationsSignalParser();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testDecodeBaselinePenSignal() throws JSONException {
+        //same payload as the one built by buildSignalFromPoint before the pull parser
+        JSONArray jsonArray = new JSONArray();
+        jsonArray.put(buildPenPoint(10.5f, 20.25f, 30.0f, 40.75f, "#FF0000", true, false));
+        jsonArray.put(buildPenPoint(30.0f, 40.75f, -5.125f, 1234.5f, "#00ff00", false, true));
+        String data = jsonArray.toString();
+
+        AnnotationsSignalParser.PenSignal signal = parser.decode(data);
+
+        Assert.assertEquals(jsonArray.length(), signal.size());
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        for (int i = 0; i < signal.size(); i++) {
+            signal.get(i, update);
+            assertMatches(jsonArray.getJSONObject(i), update);
+        }
+    }
+
+    public void testDecodeWithWhitespaceAndExponents() throws JSONException {
+        String data = " [ { \"fromX\" : 1e2 , \"fromY\" : -2.5E-1, \"toX\": 3, \"toY\": 4.0,"
+                + " \"canvasWidth\": 640, \"canvasHeight\": 480, \"mirrored\": false } ] ";
+        JSONArray jsonArray = new JSONArray(data);
+
+        AnnotationsSignalParser.PenSignal signal = parser.decode(data);
+
+        Assert.assertEquals(1, signal.size());
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        signal.get(0, update);
+        assertMatches(jsonArray.getJSONObject(0), update);
+        Assert.assertFalse(update.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR));
+    }
+
+    public void testDecodeBooleansAsNumbers() throws JSONException {
+        String data = "[{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,"
+                + "\"mirrored\":1,\"startPoint\":0,\"endPoint\":1,\"smoothed\":0}]";
+
+        AnnotationsSignalParser.PenSignal signal = parser.decode(data);
+
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        signal.get(0, update);
+        Assert.assertTrue(update.mirrored);
+        Assert.assertFalse(update.startPoint);
+        Assert.assertTrue(update.endPoint);
+        Assert.assertFalse(update.smoothed);
+        Assert.assertTrue(update.has(AnnotationsSignalParser.PenUpdate.HAS_START_POINT));
+        Assert.assertTrue(update.has(AnnotationsSignalParser.PenUpdate.HAS_SMOOTHED));
+    }
+
+    public void testDecodeNullFieldsAsMissing() throws JSONException {
+        String data = "[{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,"
+                + "\"mirrored\":false,\"color\":null,\"lineWidth\":null,\"startPoint\":null}]";
+
+        AnnotationsSignalParser.PenSignal signal = parser.decode(data);
+
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        signal.get(0, update);
+        Assert.assertFalse(update.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR));
+        Assert.assertFalse(update.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH));
+        Assert.assertFalse(update.has(AnnotationsSignalParser.PenUpdate.HAS_START_POINT));
+        Assert.assertEquals(0, update.color);
+        Assert.assertEquals(0.0f, update.lineWidth);
+    }
+
+    public void testDecodeNullRequiredField() {
+        String data = "[{\"fromX\":null,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,"
+                + "\"mirrored\":false}]";
+        assertMalformed(data);
+    }
+
+    public void testDecodeSkipsUnknownKeys() throws JSONException {
+        JSONObject jsonObject = buildPenPoint(1.0f, 2.0f, 3.0f, 4.0f, "#0000FF", false, false);
+        jsonObject.put("text", "a \"quoted\" \\ value, with {braces} and [brackets]");
+        jsonObject.put("nested", new JSONObject().put("array", new JSONArray().put(1).put("]")));
+        jsonObject.put("flag", true);
+        jsonObject.put("number", -1.5e3);
+        JSONArray jsonArray = new JSONArray().put(jsonObject);
+
+        AnnotationsSignalParser.PenSignal signal = parser.decode(jsonArray.toString());
+
+        Assert.assertEquals(1, signal.size());
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        signal.get(0, update);
+        assertMatches(jsonObject, update);
+    }
+
+    public void testDecodeEmptySignal() throws JSONException {
+        Assert.assertEquals(0, parser.decode("[]").size());
+        Assert.assertEquals(0, parser.decode(" [ ] ").size());
+    }
+
+    public void testDecodeMalformedSignals() {
+        String update = "{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":false}";
+
+        assertMalformed("");
+        assertMalformed("{}");
+        assertMalformed("[" + update);
+        assertMalformed("[" + update + update + "]");
+        assertMalformed("[" + update.substring(0, update.length() - 1) + "]");
+        assertMalformed("[{\"fromX\":1}]");
+        assertMalformed("[{\"fromX\":\"1\",\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":false}]");
+        assertMalformed("[{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":maybe}]");
+        assertMalformed("[{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":false,\"color\":\"red-ish\"}]");
+        assertMalformed("[{\"fromX\":1,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":false,\"text\":\"unterminated}]");
+        assertMalformed("[{\"fromX\":1e,\"fromY\":2,\"toX\":3,\"toY\":4,\"canvasWidth\":640,\"canvasHeight\":480,\"mirrored\":false}]");
+    }
+
+    public void testParserIsReusableAfterAnError() throws JSONException {
+        assertMalformed("[{\"fromX\":");
+
+        JSONArray jsonArray = new JSONArray().put(buildPenPoint(1.0f, 2.0f, 3.0f, 4.0f, "#123456", true, true));
+        AnnotationsSignalParser.PenSignal signal = parser.decode(jsonArray.toString());
+
+        AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        signal.get(0, update);
+        assertMatches(jsonArray.getJSONObject(0), update);
+    }
+
+    private void assertMalformed(String data) {
+        try {
+            parser.decode(data);
+            Assert.fail("Expected a JSONException for " + data);
+        } catch (JSONException e) {
+            //expected
+        }
+    }
+
+    private static JSONObject buildPenPoint(float fromX, float fromY, float toX, float toY, String color,
+                                            boolean startPoint, boolean endPoint) throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("id", "connection-id");
+        jsonObject.put("fromId", "from-connection-id");
+        jsonObject.put("fromX", fromX);
+        jsonObject.put("fromY", fromY);
+        jsonObject.put("toX", toX);
+        jsonObject.put("toY", toY);
+        jsonObject.put("color", color);
+        jsonObject.put("lineWidth", 2);
+        jsonObject.put("videoWidth", 640);
+        jsonObject.put("videoHeight", 480);
+        jsonObject.put("canvasWidth", 1080);
+        jsonObject.put("canvasHeight", 1701);
+        jsonObject.put("mirrored", true);
+        jsonObject.put("smoothed", false);
+        jsonObject.put("startPoint", startPoint);
+        jsonObject.put("endPoint", endPoint);
+        jsonObject.put("platform", "android");
+        return jsonObject;
+    }
+
+    //compares the decoded update with the values read by org.json
+    private static void assertMatches(JSONObject json, AnnotationsSignalParser.PenUpdate update) throws JSONException {
+        Assert.assertEquals((float) json.getDouble("fromX"), update.fromX);
+        Assert.assertEquals((float) json.getDouble("fromY"), update.fromY);
+        Assert.assertEquals((float) json.getDouble("toX"), update.toX);
+        Assert.assertEquals((float) json.getDouble("toY"), update.toY);
+        Assert.assertEquals((float) json.getDouble("canvasWidth"), update.canvasWidth);
+        Assert.assertEquals((float) json.getDouble("canvasHeight"), update.canvasHeight);
+        Assert.assertEquals(json.getBoolean("mirrored"), update.mirrored);
+        Assert.assertEquals(json.has("color"), update.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR));
+        if (json.has("color")) {
+            Assert.assertEquals(Color.parseColor(json.getString("color")), update.color);
+        }
+        Assert.assertEquals(json.has("lineWidth"), update.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH));
+        if (json.has("lineWidth")) {
+            Assert.assertEquals((float) json.getDouble("lineWidth"), update.lineWidth);
+        }
+        Assert.assertEquals(json.optBoolean("startPoint"), update.startPoint);
+        Assert.assertEquals(json.optBoolean("endPoint"), update.endPoint);
+        Assert.assertEquals(json.optBoolean("smoothed"), update.smoothed);
+    }
+}
@@ -0,0 +1,287 @@
+package com.tokbox.android.annotations;
+
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class AnnotationsSnapshotTest extends TestBase {
+
+    //size limit of a signal
+    private static final int MAX_SIGNAL_SIZE = 8192;
+
+    private AnnotationsSnapshot.Writer writer;
+    private AnnotationsSnapshot.Assembler assembler;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        writer = new AnnotationsSnapshot.Writer(7, 1080, 1701, true, "android");
+        assembler = new AnnotationsSnapshot.Assembler();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testEmptySnapshot() throws JSONException {
+        Assert.assertTrue(writer.getChunks().isEmpty());
+    }
+
+    public void testSingleChunk() throws JSONException {
+        AnnotationsPath path = buildPath(10);
+        writer.addPath("cid", 0xFFFF0000, 2.0f, path, 42, 3);
+        writer.addText("cid", 0xFF00FF00, 5.0f, 6.0f, "hello", 4);
+
+        List<String> chunks = writer.getChunks();
+
+        Assert.assertEquals(1, chunks.size());
+        JSONObject chunk = new JSONObject(chunks.get(0));
+        Assert.assertEquals(7, chunk.getInt("id"));
+        Assert.assertEquals(0, chunk.getInt("index"));
+        Assert.assertEquals(1, chunk.getInt("count"));
+        Assert.assertEquals(1080.0, chunk.getDouble("canvasWidth"));
+        Assert.assertEquals(1701.0, chunk.getDouble("canvasHeight"));
+        Assert.assertTrue(chunk.getBoolean("mirrored"));
+        Assert.assertEquals("android", chunk.getString("platform"));
+
+        JSONArray items = chunk.getJSONArray("items");
+        Assert.assertEquals(2, items.length());
+        JSONObject pathItem = items.getJSONObject(0);
+        Assert.assertEquals(AnnotationsSnapshot.ITEM_PATH, pathItem.getString("type"));
+        Assert.assertEquals("#FF0000", pathItem.getString("color"));
+        Assert.assertEquals(42, pathItem.getInt("seq"));
+        Assert.assertEquals(3, pathItem.getInt("strokeId"));
+        assertPoints(path, 0, path.getPointCount(), pathItem);
+        JSONObject textItem = items.getJSONObject(1);
+        Assert.assertEquals(AnnotationsSnapshot.ITEM_TEXT, textItem.getString("type"));
+        Assert.assertEquals("hello", textItem.getString("text"));
+        Assert.assertEquals(4, textItem.getInt("strokeId"));
+    }
+
+    public void testUnknownSequenceAndStrokeIdAreOmitted() throws JSONException {
+        writer.addPath("cid", 0xFFFF0000, 2.0f, buildPath(2), -1, -1);
+        writer.addText("cid", 0xFF00FF00, 5.0f, 6.0f, "hello", -1);
+
+        JSONArray items = new JSONObject(writer.getChunks().get(0)).getJSONArray("items");
+
+        Assert.assertFalse(items.getJSONObject(0).has("seq"));
+        Assert.assertFalse(items.getJSONObject(0).has("strokeId"));
+        Assert.assertFalse(items.getJSONObject(1).has("strokeId"));
+    }
+
+    public void testLongPathIsSplitInPiecesSharingTheirEndPoints() throws JSONException {
+        int count = AnnotationsSnapshot.MAX_PATH_POINTS * 2 + 100;
+        AnnotationsPath path = buildPath(count);
+        writer.addPath("cid", 0xFFFF0000, 2.0f, path, 1, 1);
+
+        int start = 0;
+        for (String data : writer.getChunks()) {
+            JSONArray items = new JSONObject(data).getJSONArray("items");
+            for (int i = 0; i < items.length(); i++) {
+                int end = Math.min(count, start + AnnotationsSnapshot.MAX_PATH_POINTS);
+                assertPoints(path, start, end, items.getJSONObject(i));
+                start = end - 1;
+            }
+        }
+        Assert.assertEquals(count - 1, start);
+    }
+
+    public void testChunksAreSplitAtTheItemsSize() throws JSONException {
+        int textCount = 200;
+        for (int i = 0; i < textCount; i++) {
+            writer.addText("cid", 0xFF000000, i, i, "text " + i + " " + repeat('x', 100), i);
+        }
+
+        List<String> chunks = writer.getChunks();
+
+        Assert.assertTrue(chunks.size() > 1);
+        int next = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            String data = chunks.get(i);
+            Assert.assertTrue(data.length() < MAX_SIGNAL_SIZE);
+            JSONObject chunk = new JSONObject(data);
+            Assert.assertEquals(i, chunk.getInt("index"));
+            Assert.assertEquals(chunks.size(), chunk.getInt("count"));
+
+            JSONArray items = chunk.getJSONArray("items");
+            Assert.assertTrue(items.length() > 0);
+            Assert.assertTrue(items.toString().length() <= AnnotationsSnapshot.MAX_CHUNK_ITEMS_SIZE);
+            for (int j = 0; j < items.length(); j++) {
+                //drawing order is kept across the chunks
+                Assert.assertEquals(next++, items.getJSONObject(j).getInt("strokeId"));
+            }
+        }
+        Assert.assertEquals(textCount, next);
+    }
+
+    public void testItemLargerThanAChunkGoesAlone() throws JSONException {
+        writer.addText("cid", 0xFF000000, 0, 0, "before", 0);
+        writer.addText("cid", 0xFF000000, 0, 0, repeat('x', AnnotationsSnapshot.MAX_CHUNK_ITEMS_SIZE), 1);
+        writer.addText("cid", 0xFF000000, 0, 0, "after", 2);
+
+        List<String> chunks = writer.getChunks();
+
+        Assert.assertEquals(3, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            JSONArray items = new JSONObject(chunks.get(i)).getJSONArray("items");
+            Assert.assertEquals(1, items.length());
+            Assert.assertEquals(i, items.getJSONObject(0).getInt("strokeId"));
+        }
+    }
+
+    public void testItemsBeyondTheMaxChunksAreDropped() throws JSONException {
+        //one item per chunk
+        String text = repeat('x', AnnotationsSnapshot.MAX_CHUNK_ITEMS_SIZE / 2 + 1);
+        for (int i = 0; i < AnnotationsSnapshot.MAX_CHUNKS + 10; i++) {
+            writer.addText("cid", 0xFF000000, 0, 0, text, i);
+        }
+
+        List<String> chunks = writer.getChunks();
+
+        Assert.assertEquals(AnnotationsSnapshot.MAX_CHUNKS, chunks.size());
+        JSONObject last = new JSONObject(chunks.get(chunks.size() - 1));
+        Assert.assertEquals(AnnotationsSnapshot.MAX_CHUNKS, last.getInt("count"));
+        JSONArray items = last.getJSONArray("items");
+        Assert.assertEquals(1, items.length());
+        Assert.assertEquals(AnnotationsSnapshot.MAX_CHUNKS - 1, items.getJSONObject(0).getInt("strokeId"));
+    }
+
+    public void testAssembleInAnyOrder() throws JSONException {
+        List<String> chunks = buildChunks(3);
+
+        Assert.assertNull(assembler.add("sender", chunks.get(2), 0));
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 10));
+        //a duplicated chunk is ignored
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 20));
+        JSONObject[] assembled = assembler.add("sender", chunks.get(1), 30);
+
+        Assert.assertNotNull(assembled);
+        Assert.assertEquals(3, assembled.length);
+        for (int i = 0; i < assembled.length; i++) {
+            Assert.assertEquals(i, assembled[i].getInt("index"));
+        }
+        //the assembler is ready for the next snapshot
+        Assert.assertNull(assembler.expire(30 + AnnotationsSnapshot.ASSEMBLY_TIMEOUT));
+    }
+
+    public void testChunksOfAnotherSnapshotAreIgnored() throws JSONException {
+        List<String> chunks = buildChunks(2);
+        AnnotationsSnapshot.Writer other = new AnnotationsSnapshot.Writer(8, 1080, 1701, false, "android");
+        other.addText("cid", 0xFF000000, 0, 0, "other", 0);
+        String otherChunk = other.getChunks().get(0);
+
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 0));
+        //another snapshot of the same sender, and the same snapshot id from another sender
+        Assert.assertNull(assembler.add("sender", otherChunk, 10));
+        Assert.assertNull(assembler.add("other", chunks.get(1), 10));
+
+        Assert.assertNotNull(assembler.add("sender", chunks.get(1), 20));
+    }
+
+    public void testAssemblyTimeout() throws JSONException {
+        List<String> chunks = buildChunks(2);
+
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 0));
+        Assert.assertNull(assembler.expire(AnnotationsSnapshot.ASSEMBLY_TIMEOUT - 1));
+        Assert.assertEquals("sender", assembler.expire(AnnotationsSnapshot.ASSEMBLY_TIMEOUT));
+        Assert.assertNull(assembler.expire(AnnotationsSnapshot.ASSEMBLY_TIMEOUT));
+
+        //the chunk received before the timeout is gone
+        Assert.assertNull(assembler.add("sender", chunks.get(1), AnnotationsSnapshot.ASSEMBLY_TIMEOUT + 1));
+        Assert.assertNotNull(assembler.add("sender", chunks.get(0), AnnotationsSnapshot.ASSEMBLY_TIMEOUT + 2));
+    }
+
+    public void testTimedOutSnapshotIsReplacedByANewOne() throws JSONException {
+        List<String> chunks = buildChunks(2);
+        AnnotationsSnapshot.Writer other = new AnnotationsSnapshot.Writer(8, 1080, 1701, false, "android");
+        other.addText("cid", 0xFF000000, 0, 0, "other", 0);
+        String otherChunk = other.getChunks().get(0);
+
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 0));
+
+        JSONObject[] assembled = assembler.add("other", otherChunk, AnnotationsSnapshot.ASSEMBLY_TIMEOUT + 1);
+
+        Assert.assertNotNull(assembled);
+        Assert.assertEquals(8, assembled[0].getInt("id"));
+    }
+
+    public void testMismatchedChunkCount() throws JSONException {
+        List<String> chunks = buildChunks(2);
+        JSONObject mismatched = new JSONObject(chunks.get(1));
+        mismatched.put("count", 3);
+
+        Assert.assertNull(assembler.add("sender", chunks.get(0), 0));
+        try {
+            assembler.add("sender", mismatched.toString(), 10);
+            Assert.fail("Expected a JSONException");
+        } catch (JSONException e) {
+            //expected
+        }
+
+        //the snapshot was dropped
+        Assert.assertNull(assembler.expire(AnnotationsSnapshot.ASSEMBLY_TIMEOUT));
+        Assert.assertNull(assembler.add("sender", chunks.get(1), 20));
+        Assert.assertNotNull(assembler.add("sender", chunks.get(0), 30));
+    }
+
+    public void testInvalidChunks() throws JSONException {
+        JSONObject chunk = new JSONObject(buildChunks(1).get(0));
+
+        assertInvalid(chunk.put("index", 1).toString());
+        assertInvalid(chunk.put("index", -1).toString());
+        assertInvalid(chunk.put("index", 0).put("count", 0).toString());
+        assertInvalid(chunk.put("count", AnnotationsSnapshot.MAX_CHUNKS + 1).toString());
+        assertInvalid("{\"index\":0,\"count\":1}");
+        assertInvalid("not json");
+    }
+
+    private void assertInvalid(String data) {
+        try {
+            assembler.add("sender", data, 0);
+            Assert.fail("Expected a JSONException for " + data);
+        } catch (JSONException e) {
+            //expected
+        }
+    }
+
+    //chunks of a snapshot with one text per chunk
+    private List<String> buildChunks(int count) throws JSONException {
+        String text = repeat('x', AnnotationsSnapshot.MAX_CHUNK_ITEMS_SIZE / 2 + 1);
+        for (int i = 0; i < count; i++) {
+            writer.addText("cid", 0xFF000000, 0, 0, text, i);
+        }
+        List<String> chunks = writer.getChunks();
+        Assert.assertEquals(count, chunks.size());
+        return chunks;
+    }
+
+    private static void assertPoints(AnnotationsPath path, int start, int end, JSONObject item) throws JSONException {
+        float[] points = new AnnotationsBinaryCodec().decodePoints(item.getString("points"));
+        Assert.assertEquals((end - start) * 2, points.length);
+        for (int i = start; i < end; i++) {
+            Assert.assertEquals(path.getPointX(i), points[(i - start) * 2], 0.05f);
+            Assert.assertEquals(path.getPointY(i), points[(i - start) * 2 + 1], 0.05f);
+        }
+    }
+
+    private static AnnotationsPath buildPath(int count) {
+        AnnotationsPath path = new AnnotationsPath();
+        for (int i = 0; i < count; i++) {
+            path.addPoint(i * 1.5f, 100 - i * 0.5f);
+        }
+        return path;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -15,6 +15,7 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -66,4 +67,78 @@ public class AnnotationsManagerTest extends TestBase {
 
 
     }
-}
\ No newline at end of file
+
+    public void testRemoveLastAnnotatable() throws Exception {
+        Annotatable first = new Annotatable(mode, new AnnotationsPath(), paint, cid);
+        Annotatable other = new Annotatable(mode, new AnnotationsPath(), paint, "987654321-lkjhgfdsa");
+        Annotatable last = new Annotatable(mode, new AnnotationsPath(), paint, cid);
+        annotationsManager.addAnnotatable(first);
+        annotationsManager.addAnnotatable(other);
+        annotationsManager.addAnnotatable(last);
+
+        Assert.assertEquals(last, annotationsManager.removeLastAnnotatable(cid));
+        Assert.assertEquals(first, annotationsManager.removeLastAnnotatable(cid));
+        Assert.assertNull(annotationsManager.removeLastAnnotatable(cid));
+
+        ArrayList<Annotatable> annotatableList = annotationsManager.getAnnotatableList();
+        Assert.assertEquals(1, annotatableList.size());
+        Assert.assertEquals(other, annotatableList.get(0));
+    }
+
+    public void testAnnotatableListIsReadOnly() throws Exception {
+        Annotatable annotatable = new Annotatable(mode, new AnnotationsPath(), paint, cid);
+        annotationsManager.addAnnotatable(annotatable);
+
+        List<Annotatable> annotatableList = annotationsManager.getReadOnlyAnnotatableList();
+        try {
+            annotatableList.remove(annotatable);
+            Assert.fail("Should have thrown an exception when modifying the list.");
+        } catch (UnsupportedOperationException e) {
+            //the annotatables are removed through the manager
+        }
+        Assert.assertEquals(1, annotationsManager.getAnnotatableCount());
+    }
+
+    public void testRemoveAnnotatablesKeepsDrawingOrder() throws Exception {
+        Annotatable first = new Annotatable(mode, new AnnotationsPath(), paint, "987654321-lkjhgfdsa");
+        Annotatable removed = new Annotatable(mode, new AnnotationsPath(), paint, cid);
+        Annotatable last = new Annotatable(mode, new AnnotationsPath(), paint, "987654321-lkjhgfdsa");
+        annotationsManager.addAnnotatable(first);
+        annotationsManager.addAnnotatable(removed);
+        annotationsManager.addAnnotatable(last);
+
+        Assert.assertEquals(1, annotationsManager.removeAnnotatables(cid).size());
+        Assert.assertTrue(annotationsManager.removeAnnotatables(cid).isEmpty());
+
+        List<Annotatable> annotatableList = annotationsManager.getReadOnlyAnnotatableList();
+        Assert.assertEquals(2, annotationsManager.getAnnotatableCount());
+        Assert.assertEquals(first, annotatableList.get(0));
+        Assert.assertEquals(last, annotatableList.get(1));
+    }
+
+    public void testHitTestReturnsTopmostAnnotatable() throws Exception {
+        Annotatable bottom = new Annotatable(mode, newLine(0, 10, 200, 10), paint, cid);
+        Annotatable top = new Annotatable(mode, newLine(100, 0, 100, 200), paint, "987654321-lkjhgfdsa");
+        annotationsManager.addAnnotatable(bottom);
+        annotationsManager.addAnnotatable(top);
+
+        Assert.assertEquals(top, annotationsManager.hitTest(100, 10, 2));
+        Assert.assertEquals(bottom, annotationsManager.hitTest(100, 10, 2, cid));
+        Assert.assertEquals(bottom, annotationsManager.hitTest(20, 12, 5));
+        Assert.assertNull(annotationsManager.hitTest(20, 100, 5));
+
+        annotationsManager.removeAnnotatable(top);
+        Assert.assertEquals(bottom, annotationsManager.hitTest(100, 10, 2));
+        Assert.assertEquals(0, annotationsManager.indexOfAnnotatable(bottom));
+        Assert.assertEquals(bottom, annotationsManager.getAnnotatable(cid, 0));
+    }
+
+    private AnnotationsPath newLine(float fromX, float fromY, float toX, float toY) {
+        AnnotationsPath line = new AnnotationsPath();
+        line.moveTo(fromX, fromY);
+        line.lineTo(toX, toY);
+        line.addPoint(fromX, fromY);
+        line.addPoint(toX, toY);
+        return line;
+    }
+}
@@ -0,0 +1,67 @@
+package com.tokbox.android.annotations.test;
+
+import android.graphics.PointF;
+
+import com.tokbox.android.annotations.AnnotationsPath;
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+public class AnnotationsPathTest extends TestBase {
+
+    private AnnotationsPath path;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        path = new AnnotationsPath();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testNewPathIsEmpty() {
+        Assert.assertEquals(0, path.getPointCount());
+        Assert.assertNull(path.getStartPoint());
+        Assert.assertNull(path.getEndPoint());
+    }
+
+    public void testAddPoints() {
+        path.addPoint(1.0f, 2.0f);
+        path.addPoint(new PointF(3.0f, 4.0f));
+
+        Assert.assertEquals(2, path.getPointCount());
+        Assert.assertEquals(1.0f, path.getPointX(0));
+        Assert.assertEquals(2.0f, path.getPointY(0));
+        Assert.assertEquals(3.0f, path.getPointX(1));
+        Assert.assertEquals(4.0f, path.getPointY(1));
+
+        Assert.assertEquals(1.0f, path.getStartPoint().x);
+        Assert.assertEquals(2.0f, path.getStartPoint().y);
+        Assert.assertEquals(3.0f, path.getEndPoint().x);
+        Assert.assertEquals(4.0f, path.getEndPoint().y);
+    }
+
+    public void testAddPointsBeyondInitialCapacity() {
+        for (int i = 0; i < 1000; i++) {
+            path.addPoint(i, -i);
+        }
+
+        Assert.assertEquals(1000, path.getPointCount());
+        Assert.assertEquals(999.0f, path.getPointX(999));
+        Assert.assertEquals(-999.0f, path.getPointY(999));
+        Assert.assertEquals(0.0f, path.getStartPoint().x);
+        Assert.assertEquals(999.0f, path.getEndPoint().x);
+    }
+
+    public void testGetPointWithInvalidIndex() {
+        path.addPoint(1.0f, 2.0f);
+        try {
+            path.getPointX(1);
+            Assert.fail("Should have thrown an exception with an invalid index.");
+        } catch (IndexOutOfBoundsException e) {
+            Assert.assertEquals(1, path.getPointCount());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.tokbox.android.annotations.utils;
+
+import com.tokbox.android.annotations.testbase.TestBase;
+
+import junit.framework.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class YuvConverterTest extends TestBase {
+
+    //the double-precision conversion truncates and the fixed-point one rounds
+    private static final int TOLERANCE = 1;
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        random = new Random(42);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testConvertRowsMatchesTheDoubleConversion() {
+        assertMatchesDoubleConversion(4, 4);
+        assertMatchesDoubleConversion(16, 8);
+    }
+
+    public void testConvertRowsOddSizes() {
+        assertMatchesDoubleConversion(1, 1);
+        assertMatchesDoubleConversion(3, 3);
+        assertMatchesDoubleConversion(5, 2);
+        assertMatchesDoubleConversion(2, 5);
+        assertMatchesDoubleConversion(7, 9);
+        assertMatchesDoubleConversion(33, 17);
+    }
+
+    public void testConvertRowsClampsTheExtremes() {
+        int width = 3;
+        int height = 3;
+        int ySize = width * height;
+        int uvSize = 2 * 2;
+        byte[] yuv = new byte[ySize + uvSize * 2];
+        //black and white pixels with the strongest chroma, so every channel overflows
+        for (int i = 0; i < ySize; i++) {
+            yuv[i] = (byte) (i % 2 == 0 ? 0 : 255);
+        }
+        for (int i = 0; i < uvSize; i++) {
+            yuv[ySize + i] = (byte) (i % 2 == 0 ? 0 : 255);
+            yuv[ySize + uvSize + i] = (byte) (i % 2 == 0 ? 255 : 0);
+        }
+
+        assertMatchesDoubleConversion(yuv, width, height);
+    }
+
+    public void testConvertRowsInBands() {
+        int width = 9;
+        int height = 7;
+        byte[] yuv = buildFrame(width, height);
+        int[] expected = new int[width * height];
+        YuvConverter.convertRows(ByteBuffer.wrap(yuv), width, height, expected, 0, height);
+
+        int[] argb = new int[width * height];
+        for (int row = 0; row < height; row += 2) {
+            YuvConverter.convertRows(ByteBuffer.wrap(yuv), width, height, argb, row, Math.min(height, row + 2));
+        }
+
+        Assert.assertTrue(Arrays.equals(expected, argb));
+    }
+
+    public void testConvertOnTheWorkerThreads() throws InterruptedException {
+        int width = 65;
+        int height = 49;
+        byte[] yuv = buildFrame(width, height);
+        int[] expected = new int[width * height];
+        YuvConverter.convertRows(ByteBuffer.wrap(yuv), width, height, expected, 0, height);
+
+        int[] argb = new int[width * height];
+        YuvConverter.convert(ByteBuffer.wrap(yuv), width, height, argb);
+
+        Assert.assertTrue(Arrays.equals(expected, argb));
+    }
+
+    public void testConvertEmptyFrame() throws InterruptedException {
+        YuvConverter.convert(ByteBuffer.allocate(0), 0, 0, new int[0]);
+    }
+
+    private void assertMatchesDoubleConversion(int width, int height) {
+        assertMatchesDoubleConversion(buildFrame(width, height), width, height);
+    }
+
+    private static void assertMatchesDoubleConversion(byte[] yuv, int width, int height) {
+        int[] expected = new int[width * height];
+        decodeYUV420(expected, yuv, width, height);
+        int[] argb = new int[width * height];
+        YuvConverter.convertRows(ByteBuffer.wrap(yuv), width, height, argb, 0, height);
+
+        for (int i = 0; i < argb.length; i++) {
+            String message = width + "x" + height + " pixel " + i;
+            Assert.assertEquals(message, 0xff, argb[i] >>> 24);
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = Math.abs(((expected[i] >> shift) & 0xff) - ((argb[i] >> shift) & 0xff));
+                Assert.assertTrue(message + " differs by " + difference, difference <= TOLERANCE);
+            }
+        }
+    }
+
+    //a frame with a Y plane and U and V planes subsampled in both directions
+    private byte[] buildFrame(int width, int height) {
+        int uvSize = ((width + 1) >> 1) * ((height + 1) >> 1);
+        byte[] yuv = new byte[width * height + uvSize * 2];
+        random.nextBytes(yuv);
+        return yuv;
+    }
+
+    //the conversion of the frames before the fixed-point one, as reference
+    private static void decodeYUV420(int[] rgba, byte[] yuv420, int width, int height) {
+        int half_width = (width + 1) >> 1;
+        int half_height = (height + 1) >> 1;
+        int y_size = width * height;
+        int uv_size = half_width * half_height;
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+
+                double y = (yuv420[j * width + i]) & 0xff;
+                double v = (yuv420[y_size + (j >> 1) * half_width + (i >> 1)]) & 0xff;
+                double u = (yuv420[y_size + uv_size + (j >> 1) * half_width + (i >> 1)]) & 0xff;
+
+                double r;
+                double g;
+                double b;
+
+                r = y + 1.402 * (u - 128);
+                g = y - 0.34414 * (v - 128) - 0.71414 * (u - 128);
+                b = y + 1.772 * (v - 128);
+
+                if (r < 0) r = 0;
+                else if (r > 255) r = 255;
+                if (g < 0) g = 0;
+                else if (g > 255) g = 255;
+                if (b < 0) b = 0;
+                else if (b > 255) b = 255;
+
+                int ir = (int) r;
+                int ig = (int) g;
+                int ib = (int) b;
+                rgba[j * width + i] = 0xff000000 | (ir << 16) | (ig << 8) | ib;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.tokbox.android.annotations;
 
 import android.graphics.Paint;
+import android.graphics.RectF;
 
 /**
  * Defines an object to be added to the annotations view.
@@ -17,6 +18,16 @@ public class Annotatable {
     private AnnotationsText text;
     private Paint paint;
 
+    private RectF bounds;
+
+    //drawing order and query stamp, maintained by the AnnotationsManager
+    long sequence;
+    int queryMark;
+    //sequence number of the last pen update of a path, -1 if unknown
+    int penSeq = -1;
+    //id of the stroke or text in the signals of its author, -1 if unknown
+    int strokeId = -1;
+
     /**
      * Defines the type of the objects to be added
      */
@@ -144,5 +155,25 @@ public class Annotatable {
         return paint;
     }
 
+    /**
+     * Returns the bounds of the annotatable, including the stroke width.
+     * They are computed the first time they are requested.
+     */
+    public RectF getBounds() {
+        if (bounds == null) {
+            bounds = new RectF();
+            if (path != null) {
+                path.computeBounds(bounds, true);
+                float padding = paint.getStrokeWidth() / 2 + 1;
+                bounds.set(bounds.left - padding, bounds.top - padding, bounds.right + padding, bounds.bottom + padding);
+            }
+            else {
+                String value = text.getEditText().getText().toString();
+                bounds.set(text.getX(), text.getY() + paint.ascent(), text.getX() + paint.measureText(value), text.getY() + paint.descent());
+            }
+        }
+        return bounds;
+    }
+
 }
 
@@ -0,0 +1,379 @@
+package com.tokbox.android.annotations;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Defines the compact encoding of the otAnnotation_pen signals. A payload is the base64 of:
+ * the annotated and sender connection ids, then runs of updates sharing a stroke header
+ * (flags, color, line width, canvas size, and stroke id, first sequence number and first timestamp
+ * when present), each update being varint-packed deltas of its points and timestamp. The updates of a run have consecutive
+ * sequence numbers. Coordinates are kept with a 0.1 pixel precision.
+ * An instance must be used by one thread at a time.
+ */
+final class AnnotationsBinaryCodec {
+
+    //JSON payloads never start with it
+    static final String PREFIX = "~1";
+
+    private static final int SCALE = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //stroke header flags
+    private static final int RUN_MIRRORED = 1;
+    private static final int RUN_SMOOTHED = 1 << 1;
+    private static final int RUN_COLOR = 1 << 2;
+    private static final int RUN_LINE_WIDTH = 1 << 3;
+    private static final int RUN_SEQUENCE = 1 << 4;
+    private static final int RUN_TIMESTAMP = 1 << 5;
+
+    //update flags
+    private static final int START_POINT = 1;
+    private static final int END_POINT = 1 << 1;
+    //the update does not continue from the end of the previous one
+    private static final int JUMP = 1 << 2;
+
+    private static final int DECODED_FIELDS = AnnotationsSignalParser.PenUpdate.REQUIRED
+            | AnnotationsSignalParser.PenUpdate.HAS_START_POINT
+            | AnnotationsSignalParser.PenUpdate.HAS_END_POINT
+            | AnnotationsSignalParser.PenUpdate.HAS_SMOOTHED;
+
+    private final AnnotationsSignalParser.PenUpdate mUpdate = new AnnotationsSignalParser.PenUpdate();
+    private final AnnotationsSignalParser.PenUpdate mNextUpdate = new AnnotationsSignalParser.PenUpdate();
+
+    private byte[] mBuffer = new byte[256];
+    private int mLength;
+    private int mPos;
+
+    /**
+     * Returns whether a signal data is a binary payload
+     */
+    static boolean isBinary(String data) {
+        return data != null && data.startsWith(PREFIX);
+    }
+
+    /**
+     * Encodes the updates of a pen signal
+     * @param id connection id of the annotated stream, or null
+     * @param fromId connection id of the sender
+     * @param signal the updates
+     * @return the signal data
+     */
+    String encode(String id, String fromId, AnnotationsSignalParser.PenSignal signal) {
+        mLength = 0;
+        writeString(id);
+        writeString(fromId);
+
+        AnnotationsSignalParser.PenUpdate update = mUpdate;
+        int index = 0;
+        while (index < signal.size()) {
+            signal.get(index, update);
+            int count = 1;
+            while (index + count < signal.size()) {
+                signal.get(index + count, mNextUpdate);
+                if (!sameRun(update, mNextUpdate, count)) {
+                    break;
+                }
+                count++;
+            }
+            writeHeader(update, count);
+
+            int lastX = 0;
+            int lastY = 0;
+            boolean hasTimestamp = update.has(AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP);
+            long lastTimestamp = update.timestamp;
+            for (int i = index; i < index + count; i++) {
+                signal.get(i, update);
+                int fromX = quantize(update.fromX);
+                int fromY = quantize(update.fromY);
+                int toX = quantize(update.toX);
+                int toY = quantize(update.toY);
+                boolean jump = i == index || fromX != lastX || fromY != lastY;
+
+                writeVarint((update.startPoint ? START_POINT : 0) | (update.endPoint ? END_POINT : 0) | (jump ? JUMP : 0));
+                if (jump) {
+                    writeSignedVarint(fromX - lastX);
+                    writeSignedVarint(fromY - lastY);
+                }
+                writeSignedVarint(toX - fromX);
+                writeSignedVarint(toY - fromY);
+                if (hasTimestamp) {
+                    //the clock may go back, the timestamps are kept increasing
+                    int delta = (int) Math.min(Integer.MAX_VALUE, Math.max(0, update.timestamp - lastTimestamp));
+                    writeVarint(delta);
+                    lastTimestamp += delta;
+                }
+                lastX = toX;
+                lastY = toY;
+            }
+            index += count;
+        }
+        return PREFIX + Base64.encodeToString(mBuffer, 0, mLength, Base64.NO_WRAP);
+    }
+
+    /**
+     * Decodes a binary payload
+     * @param data the signal data
+     */
+    AnnotationsSignalParser.PenSignal decode(String data) throws JSONException {
+        try {
+            mBuffer = Base64.decode(data.substring(PREFIX.length()), Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Invalid binary pen signal");
+        }
+        mLength = mBuffer.length;
+        mPos = 0;
+        skipString();
+        skipString();
+
+        AnnotationsSignalParser.PenUpdate update = mUpdate;
+        AnnotationsSignalParser.PenSignal.Builder builder = new AnnotationsSignalParser.PenSignal.Builder();
+        while (mPos < mLength) {
+            update.reset();
+            int flags = readVarint();
+            update.fields = DECODED_FIELDS;
+            update.mirrored = (flags & RUN_MIRRORED) != 0;
+            update.smoothed = (flags & RUN_SMOOTHED) != 0;
+            if ((flags & RUN_COLOR) != 0) {
+                update.color = 0xFF000000 | (readByte() << 16) | (readByte() << 8) | readByte();
+                update.fields |= AnnotationsSignalParser.PenUpdate.HAS_COLOR;
+            }
+            if ((flags & RUN_LINE_WIDTH) != 0) {
+                update.lineWidth = readVarint() / (float) SCALE;
+                update.fields |= AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH;
+            }
+            int seq = 0;
+            if ((flags & RUN_SEQUENCE) != 0) {
+                update.strokeId = readVarint();
+                seq = readVarint();
+                update.fields |= AnnotationsSignalParser.PenUpdate.HAS_SEQ | AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID;
+            }
+            long timestamp = 0;
+            if ((flags & RUN_TIMESTAMP) != 0) {
+                timestamp = readVarlong();
+                update.fields |= AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP;
+            }
+            update.canvasWidth = readVarint() / (float) SCALE;
+            update.canvasHeight = readVarint() / (float) SCALE;
+            int count = readVarint();
+
+            int lastX = 0;
+            int lastY = 0;
+            for (int i = 0; i < count; i++) {
+                int pointFlags = readVarint();
+                int fromX = lastX;
+                int fromY = lastY;
+                if ((pointFlags & JUMP) != 0) {
+                    fromX += readSignedVarint();
+                    fromY += readSignedVarint();
+                }
+                lastX = fromX + readSignedVarint();
+                lastY = fromY + readSignedVarint();
+                if ((flags & RUN_TIMESTAMP) != 0) {
+                    timestamp += readVarint();
+                    update.timestamp = timestamp;
+                }
+
+                update.fromX = fromX / (float) SCALE;
+                update.fromY = fromY / (float) SCALE;
+                update.toX = lastX / (float) SCALE;
+                update.toY = lastY / (float) SCALE;
+                update.startPoint = (pointFlags & START_POINT) != 0;
+                update.endPoint = (pointFlags & END_POINT) != 0;
+                update.seq = seq + i;
+                builder.add(update);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Encodes points of a path, as varint-packed deltas
+     * @param path the path
+     * @param start index of the first point
+     * @param end index after the last point
+     * @return the base64 of the points
+     */
+    String encodePoints(AnnotationsPath path, int start, int end) {
+        mLength = 0;
+        writeVarint(end - start);
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = start; i < end; i++) {
+            int x = quantize(path.getPointX(i));
+            int y = quantize(path.getPointY(i));
+            writeSignedVarint(x - lastX);
+            writeSignedVarint(y - lastY);
+            lastX = x;
+            lastY = y;
+        }
+        return Base64.encodeToString(mBuffer, 0, mLength, Base64.NO_WRAP);
+    }
+
+    /**
+     * Decodes points encoded by {@link #encodePoints(AnnotationsPath, int, int)}
+     * @param data the base64 of the points
+     * @return the coordinates of the points, x and y interleaved
+     */
+    float[] decodePoints(String data) throws JSONException {
+        try {
+            mBuffer = Base64.decode(data, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Invalid points");
+        }
+        mLength = mBuffer.length;
+        mPos = 0;
+        int count = readVarint();
+        //each point takes two bytes at least
+        if (count < 0 || count > (mLength - mPos) / 2) {
+            throw new JSONException("Truncated points");
+        }
+        float[] points = new float[count * 2];
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < count; i++) {
+            lastX += readSignedVarint();
+            lastY += readSignedVarint();
+            points[i * 2] = lastX / (float) SCALE;
+            points[i * 2 + 1] = lastY / (float) SCALE;
+        }
+        return points;
+    }
+
+    //whether b can follow the first update a of a run, count updates later
+    private static boolean sameRun(AnnotationsSignalParser.PenUpdate a, AnnotationsSignalParser.PenUpdate b, int count) {
+        int header = AnnotationsSignalParser.PenUpdate.HAS_COLOR | AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH
+                | AnnotationsSignalParser.PenUpdate.HAS_SEQ | AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID
+                | AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP;
+        return (a.fields & header) == (b.fields & header)
+                && a.mirrored == b.mirrored && a.smoothed == b.smoothed
+                && (!a.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ) || b.seq == a.seq + count)
+                && (!a.has(AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID) || a.strokeId == b.strokeId)
+                && (!a.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR) || a.color == b.color)
+                && (!a.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH) || quantize(a.lineWidth) == quantize(b.lineWidth))
+                && quantize(a.canvasWidth) == quantize(b.canvasWidth)
+                && quantize(a.canvasHeight) == quantize(b.canvasHeight);
+    }
+
+    private void writeHeader(AnnotationsSignalParser.PenUpdate update, int count) {
+        boolean hasColor = update.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR);
+        boolean hasLineWidth = update.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH);
+        //the sequence is encoded only with both the stroke id and the sequence number
+        boolean hasSequence = update.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ)
+                && update.has(AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID);
+        boolean hasTimestamp = update.has(AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP);
+        writeVarint((update.mirrored ? RUN_MIRRORED : 0) | (update.smoothed ? RUN_SMOOTHED : 0)
+                | (hasColor ? RUN_COLOR : 0) | (hasLineWidth ? RUN_LINE_WIDTH : 0) | (hasSequence ? RUN_SEQUENCE : 0)
+                | (hasTimestamp ? RUN_TIMESTAMP : 0));
+        if (hasColor) {
+            writeByte(update.color >> 16);
+            writeByte(update.color >> 8);
+            writeByte(update.color);
+        }
+        if (hasLineWidth) {
+            writeVarint(Math.max(0, quantize(update.lineWidth)));
+        }
+        if (hasSequence) {
+            writeVarint(update.strokeId);
+            writeVarint(update.seq);
+        }
+        if (hasTimestamp) {
+            writeVarlong(Math.max(0, update.timestamp));
+        }
+        writeVarint(Math.max(0, quantize(update.canvasWidth)));
+        writeVarint(Math.max(0, quantize(update.canvasHeight)));
+        writeVarint(count);
+    }
+
+    private static int quantize(float value) {
+        return Math.round(value * SCALE);
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value != null ? value.getBytes(UTF8) : new byte[0];
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    //zigzag encoding, so small negative deltas stay short
+    private void writeSignedVarint(int value) {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    private void writeVarlong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+
+    private void skipString() throws JSONException {
+        int length = readVarint();
+        if (length < 0 || length > mLength - mPos) {
+            throw new JSONException("Truncated binary pen signal");
+        }
+        mPos += length;
+    }
+
+    private int readSignedVarint() throws JSONException {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarlong() throws JSONException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new JSONException("Invalid varint in binary pen signal");
+    }
+
+    private int readVarint() throws JSONException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new JSONException("Invalid varint in binary pen signal");
+    }
+
+    private int readByte() throws JSONException {
+        if (mPos >= mLength) {
+            throw new JSONException("Truncated binary pen signal");
+        }
+        return mBuffer[mPos++] & 0xFF;
+    }
+}
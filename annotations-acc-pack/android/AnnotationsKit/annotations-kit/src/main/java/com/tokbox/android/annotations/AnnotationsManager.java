@@ -1,20 +1,38 @@
 package com.tokbox.android.annotations;
 
+import android.graphics.RectF;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Defines the annotations manager
  */
 public class AnnotationsManager {
 
-    private ArrayList<Annotatable> mAnnotatableList;
+    //global z-order of the annotatables
+    private LinkedHashSet<Annotatable> mAnnotatables;
+    //annotatables of each connection, in the order they were added
+    private HashMap<String, ArrayDeque<Annotatable>> mConnectionAnnotatables;
+    private AnnotationsSpatialIndex mSpatialIndex;
+    //read-only list returned by getAnnotatableList, rebuilt after a change
+    private List<Annotatable> mAnnotatableList;
+    private long mSequence = 0;
     protected final String SIGNAL_TYPE = "annotations";
 
     /**
      * Constructor
      */
     public AnnotationsManager(){
-        mAnnotatableList = new ArrayList<Annotatable>();
+        mAnnotatables = new LinkedHashSet<Annotatable>();
+        mConnectionAnnotatables = new HashMap<String, ArrayDeque<Annotatable>>();
+        mSpatialIndex = new AnnotationsSpatialIndex();
     }
 
     /**
@@ -24,7 +42,17 @@ public class AnnotationsManager {
         if ( annotatable == null ) {
             throw new Exception("Annotatable cannot be null.");
         }
-        mAnnotatableList.add(annotatable);
+        if ( !mAnnotatables.add(annotatable) ) {
+            return;
+        }
+        mAnnotatableList = null;
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.get(annotatable.getCId());
+        if ( connectionAnnotatables == null ) {
+            connectionAnnotatables = new ArrayDeque<Annotatable>();
+            mConnectionAnnotatables.put(annotatable.getCId(), connectionAnnotatables);
+        }
+        connectionAnnotatables.addLast(annotatable);
+
         if ( annotatable.getPath() != null){
             annotatable.setType (Annotatable.AnnotatableType.PATH);
         }
@@ -33,13 +61,201 @@ public class AnnotationsManager {
                 annotatable.setType(Annotatable.AnnotatableType.TEXT);
             }
         }
+        annotatable.sequence = mSequence++;
+        mSpatialIndex.insert(annotatable);
+    }
+
+    /**
+     * Removes the last Annotatable object added by a connection
+     * @param cid the connection id
+     * @return the removed Annotatable, or null if the connection has no annotatables
+     */
+    public Annotatable removeLastAnnotatable(String cid) {
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.get(cid);
+        if ( connectionAnnotatables == null ) {
+            return null;
+        }
+        Annotatable annotatable = connectionAnnotatables.pollLast();
+        if ( connectionAnnotatables.isEmpty() ) {
+            mConnectionAnnotatables.remove(cid);
+        }
+        if ( annotatable != null ) {
+            mAnnotatables.remove(annotatable);
+            mSpatialIndex.remove(annotatable);
+            mAnnotatableList = null;
+        }
+        return annotatable;
     }
 
     /**
-     * Returns the list of the current Annotatable objects
+     * Removes all the Annotatable objects added by a connection
+     * @param cid the connection id
+     * @return the removed Annotatable objects, in the order they were added
      */
+    public ArrayList<Annotatable> removeAnnotatables(String cid) {
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.remove(cid);
+        if ( connectionAnnotatables == null ) {
+            return new ArrayList<Annotatable>();
+        }
+        for (Annotatable annotatable : connectionAnnotatables) {
+            mAnnotatables.remove(annotatable);
+            mSpatialIndex.remove(annotatable);
+        }
+        mAnnotatableList = null;
+        return new ArrayList<Annotatable>(connectionAnnotatables);
+    }
+
+    /**
+     * Removes an Annotatable object
+     * @param annotatable the Annotatable to remove
+     * @return whether the Annotatable was in the list (<code>true</code>) or not (<code>false</code>)
+     */
+    public boolean removeAnnotatable(Annotatable annotatable) {
+        if ( annotatable == null || !mAnnotatables.remove(annotatable) ) {
+            return false;
+        }
+        mAnnotatableList = null;
+        mSpatialIndex.remove(annotatable);
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.get(annotatable.getCId());
+        if ( connectionAnnotatables != null ) {
+            //strokes are usually removed from the end
+            Iterator<Annotatable> iterator = connectionAnnotatables.descendingIterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == annotatable) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            if ( connectionAnnotatables.isEmpty() ) {
+                mConnectionAnnotatables.remove(annotatable.getCId());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position of an Annotatable object among the ones added by its connection
+     * @param annotatable the Annotatable
+     * @return the position, or -1 if the Annotatable is not in the list
+     */
+    public int indexOfAnnotatable(Annotatable annotatable) {
+        ArrayDeque<Annotatable> connectionAnnotatables = annotatable != null ? mConnectionAnnotatables.get(annotatable.getCId()) : null;
+        if ( connectionAnnotatables != null ) {
+            int index = 0;
+            for (Annotatable item : connectionAnnotatables) {
+                if (item == annotatable) {
+                    return index;
+                }
+                index++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an Annotatable object added by a connection
+     * @param cid the connection id
+     * @param index the position among the annotatables of the connection
+     * @return the Annotatable, or null if there is none at that position
+     */
+    public Annotatable getAnnotatable(String cid, int index) {
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.get(cid);
+        if ( connectionAnnotatables == null || index < 0 || index >= connectionAnnotatables.size() ) {
+            return null;
+        }
+        for (Annotatable item : connectionAnnotatables) {
+            if (index-- == 0) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Annotatable objects added by a connection for a stroke or a text of its signals.
+     * A long stroke received in a snapshot is made of several Annotatable objects.
+     * @param cid the connection id
+     * @param strokeId the id of the stroke or the text
+     */
+    ArrayList<Annotatable> getAnnotatables(String cid, int strokeId) {
+        ArrayList<Annotatable> annotatables = new ArrayList<Annotatable>();
+        ArrayDeque<Annotatable> connectionAnnotatables = mConnectionAnnotatables.get(cid);
+        if ( connectionAnnotatables != null && strokeId >= 0 ) {
+            for (Annotatable item : connectionAnnotatables) {
+                if (item.strokeId == strokeId) {
+                    annotatables.add(item);
+                }
+            }
+        }
+        return annotatables;
+    }
+
+    /**
+     * Returns the topmost Annotatable object drawn under a point
+     * @param x x-position
+     * @param y y-position
+     * @param radius tolerance around the point
+     * @return the Annotatable, or null if there is none
+     */
+    public Annotatable hitTest(float x, float y, float radius) {
+        return mSpatialIndex.hitTest(x, y, radius, null);
+    }
+
+    /**
+     * Returns the topmost Annotatable object of a connection drawn under a point
+     * @param x x-position
+     * @param y y-position
+     * @param radius tolerance around the point
+     * @param cid the connection id
+     * @return the Annotatable, or null if there is none
+     */
+    public Annotatable hitTest(float x, float y, float radius, String cid) {
+        return mSpatialIndex.hitTest(x, y, radius, cid);
+    }
+
+    /**
+     * Returns the Annotatable objects whose bounds intersect a region, in drawing order
+     * @param region the region to query
+     */
+    public ArrayList<Annotatable> queryAnnotatables(RectF region) {
+        return mSpatialIndex.query(region.left, region.top, region.right, region.bottom);
+    }
+
+    /**
+     * Returns the number of the current Annotatable objects
+     */
+    public int getAnnotatableCount() {
+        return mAnnotatables.size();
+    }
+
+    /**
+     * Returns a read-only view of the current Annotatable objects, in drawing order
+     */
+    public Collection<Annotatable> getAnnotatables() {
+        return Collections.unmodifiableCollection(mAnnotatables);
+    }
+
+    /**
+     * Returns a copy of the list of the current Annotatable objects, in drawing order
+     * @deprecated modifying the returned list no longer changes the annotatables. Use
+     * {@link #getReadOnlyAnnotatableList()} to read them, and the remove methods of the manager
+     * to remove them.
+     */
+    @Deprecated
     public ArrayList<Annotatable> getAnnotatableList() {
+        return new ArrayList<Annotatable>(mAnnotatables);
+    }
+
+    /**
+     * Returns a read-only list of the current Annotatable objects, in drawing order. It does not
+     * reflect later changes, and modifying it throws an UnsupportedOperationException: use the
+     * remove methods of the manager.
+     */
+    public List<Annotatable> getReadOnlyAnnotatableList() {
+        if ( mAnnotatableList == null ) {
+            mAnnotatableList = Collections.unmodifiableList(new ArrayList<Annotatable>(mAnnotatables));
+        }
         return mAnnotatableList;
     }
 
-}
\ No newline at end of file
+}
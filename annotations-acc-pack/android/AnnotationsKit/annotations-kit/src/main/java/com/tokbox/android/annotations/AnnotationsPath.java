@@ -4,23 +4,31 @@ import android.graphics.Path;
 import android.graphics.PointF;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Defines a customizable Path for Android
  */
 public class AnnotationsPath extends Path {
 
-    private PointF currentPoint;
-    private PointF startPoint;
-    private PointF endPoint;
-    private ArrayList<PointF> points;
-    private PointF lastPoint;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private boolean hasStartPoint;
+    private float startX;
+    private float startY;
+    private boolean hasEndPoint;
+    private float endX;
+    private float endY;
+
+    //x,y interleaved
+    private float[] points;
+    private int pointCount;
 
     /**
      * Constructor
      */
     public AnnotationsPath() {
-        this.points = new ArrayList<PointF>();
+        this.points = new float[INITIAL_CAPACITY * 2];
     }
 
     /**
@@ -28,7 +36,11 @@ public class AnnotationsPath extends Path {
      * @param startPoint point to set
      */
     public void setStartPoint(PointF startPoint) {
-        this.startPoint = startPoint;
+        hasStartPoint = startPoint != null;
+        if (hasStartPoint) {
+            startX = startPoint.x;
+            startY = startPoint.y;
+        }
     }
 
     /**
@@ -36,21 +48,34 @@ public class AnnotationsPath extends Path {
      * @param endPoint point to set
      */
     public void setEndPoint(PointF endPoint) {
-        this.endPoint = endPoint;
+        hasEndPoint = endPoint != null;
+        if (hasEndPoint) {
+            endX = endPoint.x;
+            endY = endPoint.y;
+        }
     }
 
     /**
      * Returns the start point
      */
     public PointF getStartPoint() {
-        return startPoint;
+        return hasStartPoint ? new PointF(startX, startY) : null;
     }
 
     /**
      * Returns the end point
      */
     public PointF getEndPoint() {
-        return endPoint;
+        return hasEndPoint ? new PointF(endX, endY) : null;
+    }
+
+    //the end point without allocating, for the drawing code
+    float getEndX() {
+        return endX;
+    }
+
+    float getEndY() {
+        return endY;
     }
 
     /**
@@ -58,18 +83,76 @@ public class AnnotationsPath extends Path {
      * @param point to be added
      */
     public void addPoint(PointF point) {
-        if (points.size() == 0) {
-            startPoint = point;
+        addPoint(point.x, point.y);
+    }
+
+    /**
+     * Adds a new point to the path
+     * @param x x-position
+     * @param y y-position
+     */
+    public void addPoint(float x, float y) {
+        if (pointCount * 2 == points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
         }
-        points.add(point);
-        endPoint = point;
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        pointCount++;
+
+        if (pointCount == 1) {
+            hasStartPoint = true;
+            startX = x;
+            startY = y;
+        }
+        hasEndPoint = true;
+        endX = x;
+        endY = y;
+    }
+
+    /**
+     * Returns the number of points of the path
+     */
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Returns the x-position of a point
+     * @param index index of the point
+     */
+    public float getPointX(int index) {
+        checkIndex(index);
+        return points[index * 2];
+    }
+
+    /**
+     * Returns the y-position of a point
+     * @param index index of the point
+     */
+    public float getPointY(int index) {
+        checkIndex(index);
+        return points[index * 2 + 1];
     }
 
     /**
      * Returns the points list of the path
+     * @deprecated The points are no longer kept as PointF objects: a new list of new points is built
+     * on every call, and modifying it does not change the path. Use {@link #getPointCount()},
+     * {@link #getPointX(int)} and {@link #getPointY(int)}, and {@link #addPoint(float, float)} to add a point.
      */
+    @Deprecated
     public ArrayList<PointF> getPoints() {
-        return points;
+        ArrayList<PointF> list = new ArrayList<PointF>(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            list.add(new PointF(points[i * 2], points[i * 2 + 1]));
+        }
+        return list;
     }
-}
 
+    private void checkIndex(int index) {
+        if (index < 0 || index >= pointCount) {
+            throw new IndexOutOfBoundsException("Invalid point index " + index + ", size is " + pointCount);
+        }
+    }
+
+}
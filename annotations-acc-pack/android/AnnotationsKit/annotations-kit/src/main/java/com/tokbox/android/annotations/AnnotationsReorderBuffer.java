@@ -0,0 +1,229 @@
+package com.tokbox.android.annotations;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Defines the reorder buffer of the pen updates of a sender. Updates are released in sequence
+ * order. An update received ahead of a missing one waits until the gap is filled or times out,
+ * and duplicated or late updates are dropped. Updates without a sequence number are released
+ * right away. An update far behind the expected one means the sender started its sequence again.
+ * It is not thread-safe.
+ */
+final class AnnotationsReorderBuffer {
+
+    static final long DEFAULT_GAP_TIMEOUT = 500;
+    static final int DEFAULT_MAX_PENDING = 256;
+
+    private static class Pending {
+        final AnnotationsSignalParser.PenUpdate update = new AnnotationsSignalParser.PenUpdate();
+        long received;
+        boolean released;
+    }
+
+    private final long mGapTimeout;
+    private final int mMaxPending;
+    private final TreeMap<Integer, Pending> mPending = new TreeMap<>();
+    //pending updates in the order they were received, so the oldest is the first one not released
+    private final ArrayDeque<Pending> mArrivals = new ArrayDeque<>();
+
+    //sequence number of the first update and of the next update to release, unknown until the
+    //first update
+    private int mFirstSeq;
+    private int mExpectedSeq;
+    private boolean mStarted = false;
+    //last sequence number covered by a snapshot, for the updates received before the first one
+    private int mCoveredSeq;
+    private boolean mCovered = false;
+
+    private long mDroppedCount = 0;
+    private long mSkippedCount = 0;
+
+    /**
+     * Constructor
+     * @param gapTimeout time to wait for a missing update, in milliseconds
+     * @param maxPending updates kept waiting before the gap is skipped
+     */
+    AnnotationsReorderBuffer(long gapTimeout, int maxPending) {
+        mGapTimeout = gapTimeout;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * Offers a received update
+     * @param update the update, copied if it has to wait
+     * @param now current time, in milliseconds
+     * @return whether the update can be applied now (<code>true</code>) or not (<code>false</code>).
+     * If it is applied, the pending updates that follow it can be polled.
+     */
+    boolean offer(AnnotationsSignalParser.PenUpdate update, long now) {
+        if (!update.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ)) {
+            return true;
+        }
+        if (!mStarted) {
+            if (mCovered && update.seq - mCoveredSeq <= 0) {
+                mDroppedCount++;
+                return false;
+            }
+            mStarted = true;
+            mFirstSeq = update.seq;
+            mExpectedSeq = update.seq;
+        }
+        int distance = update.seq - mExpectedSeq;
+        if (distance == 0) {
+            mExpectedSeq++;
+            return true;
+        }
+        if (distance < 0 || mPending.containsKey(update.seq)) {
+            mDroppedCount++;
+            return false;
+        }
+        Pending pending = new Pending();
+        pending.update.set(update);
+        pending.received = now;
+        mPending.put(update.seq, pending);
+        mArrivals.addLast(pending);
+        return false;
+    }
+
+    /**
+     * Returns whether an update is so far behind the expected one that the sender started its
+     * sequence again, e.g. after its view was recreated. The buffer must then be flushed and reset
+     * before the update is offered.
+     * @param update the update
+     */
+    boolean isRestarted(AnnotationsSignalParser.PenUpdate update) {
+        return mStarted && update.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ)
+                && update.seq - mExpectedSeq < -mMaxPending;
+    }
+
+    /**
+     * Polls the next update that can be applied: the expected one if it was received, or the
+     * first one after a gap that timed out or overflowed the buffer
+     * @param update the update to fill
+     * @param now current time, in milliseconds
+     * @return whether an update was polled (<code>true</code>) or not (<code>false</code>)
+     */
+    boolean poll(AnnotationsSignalParser.PenUpdate update, long now) {
+        if (mPending.isEmpty()) {
+            return false;
+        }
+        Map.Entry<Integer, Pending> first = mPending.firstEntry();
+        if (first.getKey() != mExpectedSeq) {
+            if (mPending.size() <= mMaxPending && now - oldestReceived() < mGapTimeout) {
+                return false;
+            }
+            mSkippedCount += first.getKey() - mExpectedSeq;
+        }
+        release(first, update);
+        return true;
+    }
+
+    /**
+     * Polls the next pending update, skipping any gap
+     * @param update the update to fill
+     * @return whether an update was polled (<code>true</code>) or not (<code>false</code>)
+     */
+    boolean flush(AnnotationsSignalParser.PenUpdate update) {
+        if (mPending.isEmpty()) {
+            return false;
+        }
+        Map.Entry<Integer, Pending> first = mPending.firstEntry();
+        mSkippedCount += first.getKey() - mExpectedSeq;
+        release(first, update);
+        return true;
+    }
+
+    /**
+     * Returns whether an update was released or skipped, or covered by a snapshot
+     * @param seq sequence number of the update
+     */
+    boolean isApplied(int seq) {
+        if (mCovered && seq - mCoveredSeq <= 0) {
+            return true;
+        }
+        return mStarted && seq - mFirstSeq >= 0 && seq - mExpectedSeq < 0;
+    }
+
+    /**
+     * Skips the updates up to a sequence number, because a snapshot already covers them. The
+     * pending ones are dropped, and the later ones can be polled.
+     * @param seq the last sequence number covered
+     */
+    void cover(int seq) {
+        if (!mCovered || seq - mCoveredSeq > 0) {
+            mCovered = true;
+            mCoveredSeq = seq;
+        }
+        if (!mStarted || seq - mExpectedSeq < 0) {
+            return;
+        }
+        while (!mPending.isEmpty() && mPending.firstKey() - seq <= 0) {
+            mPending.pollFirstEntry().getValue().released = true;
+            mDroppedCount++;
+        }
+        if (mPending.isEmpty()) {
+            mArrivals.clear();
+        }
+        mExpectedSeq = seq + 1;
+    }
+
+    /**
+     * Forgets the expected sequence number, so the next update is released whatever its number.
+     * The pending updates must have been flushed.
+     */
+    void reset() {
+        mPending.clear();
+        mArrivals.clear();
+        mStarted = false;
+        mCovered = false;
+    }
+
+    /**
+     * Returns the time the pending gap times out at, in milliseconds, or -1 if there is no gap
+     */
+    long getGapDeadline() {
+        return mPending.isEmpty() ? -1 : oldestReceived() + mGapTimeout;
+    }
+
+    /**
+     * Returns the number of updates waiting for a gap to be filled
+     */
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Returns the number of duplicated or late updates dropped
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of missing updates skipped
+     */
+    long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    private void release(Map.Entry<Integer, Pending> entry, AnnotationsSignalParser.PenUpdate update) {
+        mPending.remove(entry.getKey());
+        entry.getValue().released = true;
+        if (mPending.isEmpty()) {
+            mArrivals.clear();
+        }
+        update.set(entry.getValue().update);
+        mExpectedSeq = entry.getKey() + 1;
+    }
+
+    //the updates are received in time order, so the oldest is at the head once the released
+    //ones are dropped. There must be a pending update.
+    private long oldestReceived() {
+        while (mArrivals.peekFirst().released) {
+            mArrivals.pollFirst();
+        }
+        return mArrivals.peekFirst().received;
+    }
+}
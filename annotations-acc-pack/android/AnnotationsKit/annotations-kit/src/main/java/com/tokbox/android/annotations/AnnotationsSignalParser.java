@@ -0,0 +1,633 @@
+package com.tokbox.android.annotations;
+
+import android.graphics.Color;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+
+/**
+ * Defines a pull parser for the otAnnotation_pen signals. The updates are decoded one at a time
+ * into a reusable {@link PenUpdate}, without building the intermediate JSON objects.
+ * An instance must be used by one thread at a time.
+ */
+final class AnnotationsSignalParser {
+
+    /**
+     * Defines a pen update decoded from a signal
+     */
+    static final class PenUpdate {
+        static final int HAS_FROM_X = 1;
+        static final int HAS_FROM_Y = 1 << 1;
+        static final int HAS_TO_X = 1 << 2;
+        static final int HAS_TO_Y = 1 << 3;
+        static final int HAS_CANVAS_WIDTH = 1 << 4;
+        static final int HAS_CANVAS_HEIGHT = 1 << 5;
+        static final int HAS_MIRRORED = 1 << 6;
+        static final int HAS_START_POINT = 1 << 7;
+        static final int HAS_END_POINT = 1 << 8;
+        static final int HAS_SMOOTHED = 1 << 9;
+        static final int HAS_COLOR = 1 << 10;
+        static final int HAS_LINE_WIDTH = 1 << 11;
+        static final int HAS_SEQ = 1 << 12;
+        static final int HAS_STROKE_ID = 1 << 13;
+        static final int HAS_TIMESTAMP = 1 << 14;
+
+        static final int REQUIRED = HAS_FROM_X | HAS_FROM_Y | HAS_TO_X | HAS_TO_Y
+                | HAS_CANVAS_WIDTH | HAS_CANVAS_HEIGHT | HAS_MIRRORED;
+
+        float fromX;
+        float fromY;
+        float toX;
+        float toY;
+        float canvasWidth;
+        float canvasHeight;
+        float lineWidth;
+        int color;
+        boolean mirrored;
+        boolean startPoint;
+        boolean endPoint;
+        boolean smoothed;
+        //per-sender sequence number of the update, and id of its stroke
+        int seq;
+        int strokeId;
+        //time the sender drew the update, in milliseconds since the epoch
+        long timestamp;
+        //HAS_* flags of the fields present and not null
+        int fields;
+        //position in the local view computed by the decoding thread, and the view state it was
+        //computed for, or null
+        float localFromX;
+        float localFromY;
+        float localToX;
+        float localToY;
+        Object mapping;
+
+        boolean has(int field) {
+            return (fields & field) != 0;
+        }
+
+        void reset() {
+            fromX = fromY = toX = toY = 0;
+            canvasWidth = canvasHeight = lineWidth = 0;
+            color = seq = strokeId = 0;
+            timestamp = 0;
+            mirrored = startPoint = endPoint = smoothed = false;
+            fields = 0;
+            localFromX = localFromY = localToX = localToY = 0;
+            mapping = null;
+        }
+
+        void set(PenUpdate update) {
+            fromX = update.fromX;
+            fromY = update.fromY;
+            toX = update.toX;
+            toY = update.toY;
+            canvasWidth = update.canvasWidth;
+            canvasHeight = update.canvasHeight;
+            lineWidth = update.lineWidth;
+            color = update.color;
+            seq = update.seq;
+            strokeId = update.strokeId;
+            timestamp = update.timestamp;
+            mirrored = update.mirrored;
+            startPoint = update.startPoint;
+            endPoint = update.endPoint;
+            smoothed = update.smoothed;
+            fields = update.fields;
+            localFromX = update.localFromX;
+            localFromY = update.localFromY;
+            localToX = update.localToX;
+            localToY = update.localToY;
+            mapping = update.mapping;
+        }
+    }
+
+    /**
+     * Defines the pen updates of a signal, packed in arrays. It is immutable, so it can be
+     * decoded on a background thread and handed over to the main thread.
+     */
+    static final class PenSignal {
+        private static final int FLOATS = 7;
+        private static final int INTS = 5;
+        private static final int MIRRORED = 1;
+        private static final int START_POINT = 1 << 1;
+        private static final int END_POINT = 1 << 2;
+        private static final int SMOOTHED = 1 << 3;
+
+        private final int mCount;
+        private final float[] mFloats;
+        //fields, color, boolean flags, seq and stroke id of each update
+        private final int[] mInts;
+        private final long[] mTimestamps;
+        //local from and to positions of each update, and the view state they were computed for
+        private final float[] mLocalPoints;
+        private final Object mMapping;
+
+        /**
+         * Defines the builder of a PenSignal
+         */
+        static final class Builder {
+            private int mCount = 0;
+            private float[] mFloats = new float[FLOATS * 8];
+            private int[] mInts = new int[INTS * 8];
+            private long[] mTimestamps = new long[8];
+
+            /**
+             * Appends a copy of an update
+             */
+            Builder add(PenUpdate update) {
+                if ((mCount + 1) * FLOATS > mFloats.length) {
+                    mFloats = Arrays.copyOf(mFloats, mFloats.length * 2);
+                    mInts = Arrays.copyOf(mInts, mInts.length * 2);
+                    mTimestamps = Arrays.copyOf(mTimestamps, mTimestamps.length * 2);
+                }
+                int f = mCount * FLOATS;
+                mFloats[f] = update.fromX;
+                mFloats[f + 1] = update.fromY;
+                mFloats[f + 2] = update.toX;
+                mFloats[f + 3] = update.toY;
+                mFloats[f + 4] = update.canvasWidth;
+                mFloats[f + 5] = update.canvasHeight;
+                mFloats[f + 6] = update.lineWidth;
+
+                int i = mCount * INTS;
+                mInts[i] = update.fields;
+                mInts[i + 1] = update.color;
+                mInts[i + 2] = (update.mirrored ? MIRRORED : 0)
+                        | (update.startPoint ? START_POINT : 0)
+                        | (update.endPoint ? END_POINT : 0)
+                        | (update.smoothed ? SMOOTHED : 0);
+                mInts[i + 3] = update.seq;
+                mInts[i + 4] = update.strokeId;
+                mTimestamps[mCount] = update.timestamp;
+                mCount++;
+                return this;
+            }
+
+            /**
+             * Returns the number of updates added
+             */
+            int size() {
+                return mCount;
+            }
+
+            /**
+             * Returns the PenSignal of the updates added. The builder must not be used afterwards.
+             */
+            PenSignal build() {
+                return new PenSignal(mCount, mFloats, mInts, mTimestamps, null, null);
+            }
+        }
+
+        private PenSignal(int count, float[] floats, int[] ints, long[] timestamps, float[] localPoints, Object mapping) {
+            mCount = count;
+            mFloats = floats;
+            mInts = ints;
+            mTimestamps = timestamps;
+            mLocalPoints = localPoints;
+            mMapping = mapping;
+        }
+
+        /**
+         * Returns a copy of the signal with the updates mapped to the local view
+         * @param localPoints the local fromX, fromY, toX and toY of each update
+         * @param mapping the view state the points were computed for
+         */
+        PenSignal withLocalPoints(float[] localPoints, Object mapping) {
+            if (localPoints.length < mCount * 4) {
+                throw new IllegalArgumentException("Expected " + mCount * 4 + " local points, got " + localPoints.length);
+            }
+            return new PenSignal(mCount, mFloats, mInts, mTimestamps, localPoints, mapping);
+        }
+
+        /**
+         * Returns the number of updates
+         */
+        int size() {
+            return mCount;
+        }
+
+        /**
+         * Copies an update
+         * @param index index of the update
+         * @param update the update to fill
+         */
+        void get(int index, PenUpdate update) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException("Invalid update index " + index + ", size is " + mCount);
+            }
+            int f = index * FLOATS;
+            update.fromX = mFloats[f];
+            update.fromY = mFloats[f + 1];
+            update.toX = mFloats[f + 2];
+            update.toY = mFloats[f + 3];
+            update.canvasWidth = mFloats[f + 4];
+            update.canvasHeight = mFloats[f + 5];
+            update.lineWidth = mFloats[f + 6];
+
+            int i = index * INTS;
+            update.fields = mInts[i];
+            update.color = mInts[i + 1];
+            int flags = mInts[i + 2];
+            update.seq = mInts[i + 3];
+            update.strokeId = mInts[i + 4];
+            update.timestamp = mTimestamps[index];
+            update.mirrored = (flags & MIRRORED) != 0;
+            update.startPoint = (flags & START_POINT) != 0;
+            update.endPoint = (flags & END_POINT) != 0;
+            update.smoothed = (flags & SMOOTHED) != 0;
+            if (mLocalPoints != null) {
+                int p = index * 4;
+                update.localFromX = mLocalPoints[p];
+                update.localFromY = mLocalPoints[p + 1];
+                update.localToX = mLocalPoints[p + 2];
+                update.localToY = mLocalPoints[p + 3];
+                update.mapping = mMapping;
+            } else {
+                update.localFromX = update.localFromY = update.localToX = update.localToY = 0;
+                update.mapping = null;
+            }
+        }
+    }
+
+    private static final String[] KEYS = {
+            "fromX", "fromY", "toX", "toY", "canvasWidth", "canvasHeight", "mirrored",
+            "startPoint", "endPoint", "smoothed", "color", "lineWidth", "seq", "strokeId", "ts"
+    };
+    //HAS_* flag of each key
+    private static final int[] KEY_FIELDS = {
+            PenUpdate.HAS_FROM_X, PenUpdate.HAS_FROM_Y, PenUpdate.HAS_TO_X, PenUpdate.HAS_TO_Y,
+            PenUpdate.HAS_CANVAS_WIDTH, PenUpdate.HAS_CANVAS_HEIGHT, PenUpdate.HAS_MIRRORED,
+            PenUpdate.HAS_START_POINT, PenUpdate.HAS_END_POINT, PenUpdate.HAS_SMOOTHED,
+            PenUpdate.HAS_COLOR, PenUpdate.HAS_LINE_WIDTH, PenUpdate.HAS_SEQ, PenUpdate.HAS_STROKE_ID,
+            PenUpdate.HAS_TIMESTAMP
+    };
+
+    private static final int COLOR_CACHE_SIZE = 16;
+
+    private String mData;
+    private int mPos;
+    private int mLength;
+    private boolean mFirst;
+
+    //color strings already parsed, indexed by hash
+    private final String[] mColorKeys = new String[COLOR_CACHE_SIZE];
+    private final int[] mColorValues = new int[COLOR_CACHE_SIZE];
+
+    private final AnnotationsBinaryCodec mBinaryCodec = new AnnotationsBinaryCodec();
+
+    /**
+     * Decodes all the pen updates of a signal
+     * @param data the signal data, a JSON array of pen updates or a binary payload
+     */
+    PenSignal decode(String data) throws JSONException {
+        if (AnnotationsBinaryCodec.isBinary(data)) {
+            return mBinaryCodec.decode(data);
+        }
+
+        PenUpdate update = new PenUpdate();
+        PenSignal.Builder builder = new PenSignal.Builder();
+        reset(data);
+        while (next(update)) {
+            builder.add(update);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Starts parsing a signal
+     * @param data the signal data, a JSON array of pen updates
+     */
+    void reset(String data) throws JSONException {
+        mData = data;
+        mPos = 0;
+        mLength = data.length();
+        mFirst = true;
+        skipWhitespace();
+        expect('[');
+    }
+
+    /**
+     * Decodes the next pen update of the signal
+     * @param update the update to fill
+     * @return <code>true</code> if an update was decoded, <code>false</code> at the end of the signal
+     */
+    boolean next(PenUpdate update) throws JSONException {
+        skipWhitespace();
+        if (peek() == ']') {
+            mPos++;
+            return false;
+        }
+        if (!mFirst) {
+            expect(',');
+            skipWhitespace();
+        }
+        mFirst = false;
+
+        update.reset();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+        }
+        else {
+            while (true) {
+                skipWhitespace();
+                int key = readKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                readValue(key, update);
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+            }
+        }
+        if ((update.fields & PenUpdate.REQUIRED) != PenUpdate.REQUIRED) {
+            throw new JSONException("Missing required fields in pen update");
+        }
+        return true;
+    }
+
+    private int readKey() throws JSONException {
+        expect('"');
+        int start = mPos;
+        int end = skipStringBody();
+        int length = end - start;
+        for (int i = 0; i < KEYS.length; i++) {
+            String key = KEYS[i];
+            if (key.length() == length && mData.regionMatches(start, key, 0, length)) {
+                return KEY_FIELDS[i];
+            }
+        }
+        return 0;
+    }
+
+    private void readValue(int key, PenUpdate update) throws JSONException {
+        char c = peek();
+        if (c == 'n') {
+            //null values are handled as missing ones
+            expectLiteral("null");
+            return;
+        }
+        switch (key) {
+            case PenUpdate.HAS_FROM_X:
+                update.fromX = readFloat();
+                break;
+            case PenUpdate.HAS_FROM_Y:
+                update.fromY = readFloat();
+                break;
+            case PenUpdate.HAS_TO_X:
+                update.toX = readFloat();
+                break;
+            case PenUpdate.HAS_TO_Y:
+                update.toY = readFloat();
+                break;
+            case PenUpdate.HAS_CANVAS_WIDTH:
+                update.canvasWidth = readFloat();
+                break;
+            case PenUpdate.HAS_CANVAS_HEIGHT:
+                update.canvasHeight = readFloat();
+                break;
+            case PenUpdate.HAS_LINE_WIDTH:
+                update.lineWidth = readFloat();
+                break;
+            case PenUpdate.HAS_MIRRORED:
+                update.mirrored = readBoolean();
+                break;
+            case PenUpdate.HAS_START_POINT:
+                update.startPoint = readBoolean();
+                break;
+            case PenUpdate.HAS_END_POINT:
+                update.endPoint = readBoolean();
+                break;
+            case PenUpdate.HAS_SMOOTHED:
+                update.smoothed = readBoolean();
+                break;
+            case PenUpdate.HAS_COLOR:
+                update.color = readColor();
+                break;
+            case PenUpdate.HAS_SEQ:
+                update.seq = (int) readNumber();
+                break;
+            case PenUpdate.HAS_STROKE_ID:
+                update.strokeId = (int) readNumber();
+                break;
+            case PenUpdate.HAS_TIMESTAMP:
+                update.timestamp = (long) readNumber();
+                break;
+            default:
+                skipValue();
+                return;
+        }
+        update.fields |= key;
+    }
+
+    private boolean readBoolean() throws JSONException {
+        char c = peek();
+        if (c == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        if (c == 'f') {
+            expectLiteral("false");
+            return false;
+        }
+        //some platforms send the flags as 0/1
+        return (int) readNumber() == 1;
+    }
+
+    private float readFloat() throws JSONException {
+        return (float) readNumber();
+    }
+
+    private double readNumber() throws JSONException {
+        int start = mPos;
+        boolean negative = false;
+        if (mPos < mLength && mData.charAt(mPos) == '-') {
+            negative = true;
+            mPos++;
+        }
+        double value = 0;
+        int digits = 0;
+        while (mPos < mLength) {
+            char c = mData.charAt(mPos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+            mPos++;
+        }
+        if (mPos < mLength && mData.charAt(mPos) == '.') {
+            mPos++;
+            double scale = 0.1;
+            while (mPos < mLength) {
+                char c = mData.charAt(mPos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value += (c - '0') * scale;
+                scale /= 10;
+                digits++;
+                mPos++;
+            }
+        }
+        if (digits == 0) {
+            mPos = start;
+            throw syntaxError("Expected a number");
+        }
+        if (mPos < mLength && (mData.charAt(mPos) == 'e' || mData.charAt(mPos) == 'E')) {
+            mPos++;
+            boolean negativeExponent = false;
+            if (mPos < mLength && (mData.charAt(mPos) == '-' || mData.charAt(mPos) == '+')) {
+                negativeExponent = mData.charAt(mPos) == '-';
+                mPos++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            while (mPos < mLength) {
+                char c = mData.charAt(mPos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                exponent = exponent * 10 + (c - '0');
+                exponentDigits++;
+                mPos++;
+            }
+            if (exponentDigits == 0) {
+                throw syntaxError("Expected an exponent");
+            }
+            value *= Math.pow(10, negativeExponent ? -exponent : exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    private int readColor() throws JSONException {
+        expect('"');
+        int start = mPos;
+        int end = skipStringBody();
+        int length = end - start;
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(mData.charAt(i));
+        }
+        int slot = (hash & 0x7fffffff) % COLOR_CACHE_SIZE;
+        String cached = mColorKeys[slot];
+        if (cached != null && cached.length() == length && mData.regionMatches(true, start, cached, 0, length)) {
+            return mColorValues[slot];
+        }
+
+        String value = mData.substring(start, end).toLowerCase();
+        int color;
+        try {
+            color = Color.parseColor(value);
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Invalid color " + value);
+        }
+        mColorKeys[slot] = value;
+        mColorValues[slot] = color;
+        return color;
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        switch (c) {
+            case '"':
+                mPos++;
+                skipStringBody();
+                break;
+            case '{':
+            case '[':
+                skipContainer();
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            default:
+                readNumber();
+                break;
+        }
+    }
+
+    private void skipContainer() throws JSONException {
+        int depth = 0;
+        while (mPos < mLength) {
+            char c = mData.charAt(mPos++);
+            if (c == '"') {
+                skipStringBody();
+            }
+            else if (c == '{' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw syntaxError("Unterminated object");
+    }
+
+    //moves past the closing quote and returns its position
+    private int skipStringBody() throws JSONException {
+        while (mPos < mLength) {
+            char c = mData.charAt(mPos++);
+            if (c == '"') {
+                return mPos - 1;
+            }
+            if (c == '\\') {
+                mPos++;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void expectLiteral(String literal) throws JSONException {
+        if (!mData.startsWith(literal, mPos)) {
+            throw syntaxError("Expected " + literal);
+        }
+        mPos += literal.length();
+    }
+
+    private void expect(char expected) throws JSONException {
+        if (next() != expected) {
+            mPos--;
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    private char next() throws JSONException {
+        if (mPos >= mLength) {
+            throw syntaxError("Unexpected end of data");
+        }
+        return mData.charAt(mPos++);
+    }
+
+    private char peek() throws JSONException {
+        if (mPos >= mLength) {
+            throw syntaxError("Unexpected end of data");
+        }
+        return mData.charAt(mPos);
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength && Character.isWhitespace(mData.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos);
+    }
+}
@@ -0,0 +1,237 @@
+package com.tokbox.android.annotations;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Defines the snapshot of the annotations sent to a participant who joined late. A snapshot is
+ * split in chunks that fit in a signal. Each chunk is a JSON object with the snapshot id, its index,
+ * the number of chunks, the canvas of the sender and a list of items: the paths, with their points
+ * encoded by {@link AnnotationsBinaryCodec}, and the texts. The items are in drawing order.
+ * A path carries the sequence number of the last pen update of its author it was drawn from, so
+ * the receiver can skip the updates the snapshot covers. The paths and texts carry the stroke id
+ * the eraser signals refer to.
+ */
+final class AnnotationsSnapshot {
+
+    static final String ITEM_PATH = "path";
+    static final String ITEM_TEXT = "text";
+
+    //size of the items of a chunk, below the 8KB signal limit
+    static final int MAX_CHUNK_ITEMS_SIZE = 6000;
+    //points of a path item, so it fits in a chunk
+    static final int MAX_PATH_POINTS = 512;
+    static final int MAX_CHUNKS = 256;
+    static final long ASSEMBLY_TIMEOUT = 10000;
+
+    private AnnotationsSnapshot() {
+    }
+
+    /**
+     * Defines the builder of the chunks of a snapshot
+     */
+    static final class Writer {
+        private final int mId;
+        private final float mCanvasWidth;
+        private final float mCanvasHeight;
+        private final boolean mMirrored;
+        private final String mPlatform;
+        private final AnnotationsBinaryCodec mCodec = new AnnotationsBinaryCodec();
+
+        private final ArrayList<JSONArray> mChunkItems = new ArrayList<>();
+        private JSONArray mItems = new JSONArray();
+        private int mItemsSize = 0;
+
+        /**
+         * Constructor
+         * @param id id of the snapshot
+         * @param canvasWidth width of the sender canvas
+         * @param canvasHeight height of the sender canvas
+         * @param mirrored whether the sender canvas is mirrored
+         * @param platform platform of the sender
+         */
+        Writer(int id, float canvasWidth, float canvasHeight, boolean mirrored, String platform) {
+            mId = id;
+            mCanvasWidth = canvasWidth;
+            mCanvasHeight = canvasHeight;
+            mMirrored = mirrored;
+            mPlatform = platform;
+        }
+
+        /**
+         * Adds a path. A long path is split in pieces sharing their end points.
+         * @param cid connection id of the author
+         * @param color color of the path
+         * @param lineWidth width of the path
+         * @param path the path, in the sender canvas
+         * @param seq sequence number of the last pen update of the path, or -1 if unknown
+         * @param strokeId id of the stroke in the signals of its author, or -1 if unknown
+         */
+        void addPath(String cid, int color, float lineWidth, AnnotationsPath path, int seq, int strokeId)
+                throws JSONException {
+            int count = path.getPointCount();
+            for (int start = 0; start < Math.max(count - 1, 1) && count > 0; start += MAX_PATH_POINTS - 1) {
+                JSONObject item = new JSONObject();
+                item.put("type", ITEM_PATH);
+                item.put("cid", cid);
+                item.put("color", String.format("#%06X", (0xFFFFFF & color)));
+                item.put("lineWidth", lineWidth);
+                item.put("points", mCodec.encodePoints(path, start, Math.min(count, start + MAX_PATH_POINTS)));
+                if (seq >= 0) {
+                    item.put("seq", seq);
+                }
+                if (strokeId >= 0) {
+                    item.put("strokeId", strokeId);
+                }
+                addItem(item);
+            }
+        }
+
+        /**
+         * Adds a text
+         * @param cid connection id of the author
+         * @param color color of the text
+         * @param x x-position of the text, in the sender canvas
+         * @param y y-position of the text, in the sender canvas
+         * @param text the text
+         * @param strokeId id of the text in the signals of its author, or -1 if unknown
+         */
+        void addText(String cid, int color, float x, float y, String text, int strokeId) throws JSONException {
+            JSONObject item = new JSONObject();
+            item.put("type", ITEM_TEXT);
+            item.put("cid", cid);
+            item.put("color", String.format("#%06X", (0xFFFFFF & color)));
+            item.put("x", x);
+            item.put("y", y);
+            item.put("text", text);
+            if (strokeId >= 0) {
+                item.put("strokeId", strokeId);
+            }
+            addItem(item);
+        }
+
+        /**
+         * Returns the signal data of the chunks
+         */
+        List<String> getChunks() throws JSONException {
+            if (mItems.length() > 0) {
+                mChunkItems.add(mItems);
+                mItems = new JSONArray();
+                mItemsSize = 0;
+            }
+            ArrayList<String> chunks = new ArrayList<>();
+            for (int i = 0; i < mChunkItems.size(); i++) {
+                JSONObject chunk = new JSONObject();
+                chunk.put("id", mId);
+                chunk.put("index", i);
+                chunk.put("count", mChunkItems.size());
+                chunk.put("canvasWidth", mCanvasWidth);
+                chunk.put("canvasHeight", mCanvasHeight);
+                chunk.put("mirrored", mMirrored);
+                chunk.put("platform", mPlatform);
+                chunk.put("items", mChunkItems.get(i));
+                chunks.add(chunk.toString());
+            }
+            return chunks;
+        }
+
+        //the items that do not fit in MAX_CHUNKS chunks are dropped
+        private void addItem(JSONObject item) {
+            int size = item.toString().length() + 1;
+            if (mItemsSize + size > MAX_CHUNK_ITEMS_SIZE && mItems.length() > 0) {
+                mChunkItems.add(mItems);
+                mItems = new JSONArray();
+                mItemsSize = 0;
+            }
+            if (mChunkItems.size() < MAX_CHUNKS) {
+                mItems.put(item);
+                mItemsSize += size;
+            }
+        }
+    }
+
+    /**
+     * Defines the reassembly of the chunks of a snapshot. One snapshot is assembled at a time,
+     * and a snapshot not completed within the timeout is dropped.
+     */
+    static final class Assembler {
+        private String mSenderId;
+        private int mId;
+        private JSONObject[] mChunks;
+        private int mReceived;
+        private long mStarted;
+
+        /**
+         * Adds a received chunk
+         * @param senderId connection id of the sender
+         * @param data the signal data
+         * @param now current time, in milliseconds
+         * @return the chunks of the snapshot in order once it is complete, or null
+         */
+        JSONObject[] add(String senderId, String data, long now) throws JSONException {
+            JSONObject chunk = new JSONObject(data);
+            int id = chunk.getInt("id");
+            int index = chunk.getInt("index");
+            int count = chunk.getInt("count");
+            if (count <= 0 || count > MAX_CHUNKS || index < 0 || index >= count) {
+                throw new JSONException("Invalid snapshot chunk " + index + "/" + count);
+            }
+
+            if (mChunks != null && now - mStarted > ASSEMBLY_TIMEOUT) {
+                reset();
+            }
+            if (mChunks == null) {
+                mSenderId = senderId;
+                mId = id;
+                mChunks = new JSONObject[count];
+                mReceived = 0;
+                mStarted = now;
+            }
+            else if (!mSenderId.equals(senderId) || mId != id) {
+                return null;
+            }
+            if (count != mChunks.length) {
+                reset();
+                throw new JSONException("Inconsistent snapshot chunk count");
+            }
+
+            if (mChunks[index] == null) {
+                mChunks[index] = chunk;
+                mReceived++;
+            }
+            if (mReceived < mChunks.length) {
+                return null;
+            }
+            JSONObject[] chunks = mChunks;
+            reset();
+            return chunks;
+        }
+
+        /**
+         * Drops the snapshot being assembled if it timed out
+         * @param now current time, in milliseconds
+         * @return the connection id of its sender, or null if there was none or it did not time out
+         */
+        String expire(long now) {
+            if (mChunks == null || now - mStarted < ASSEMBLY_TIMEOUT) {
+                return null;
+            }
+            String senderId = mSenderId;
+            reset();
+            return senderId;
+        }
+
+        /**
+         * Drops the snapshot being assembled
+         */
+        void reset() {
+            mSenderId = null;
+            mChunks = null;
+            mReceived = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.tokbox.android.annotations;
+
+import android.graphics.RectF;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Defines a uniform grid of the annotatables bounding boxes, used for hit-testing and region queries
+ */
+class AnnotationsSpatialIndex {
+
+    private static final float CELL_SIZE = 128f;
+
+    private static final Comparator<Annotatable> Z_ORDER = new Comparator<Annotatable>() {
+        @Override
+        public int compare(Annotatable lhs, Annotatable rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final LongSparseArray<ArrayList<Annotatable>> mCells = new LongSparseArray<ArrayList<Annotatable>>();
+    //stamp to report each annotatable once per query, even if it spans several cells
+    private int mQueryMark = 0;
+
+    /**
+     * Adds an annotatable to the cells covered by its bounds
+     */
+    void insert(Annotatable annotatable) {
+        RectF bounds = annotatable.getBounds();
+        int left = cell(bounds.left);
+        int top = cell(bounds.top);
+        int right = cell(bounds.right);
+        int bottom = cell(bounds.bottom);
+
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                long key = key(cx, cy);
+                ArrayList<Annotatable> cell = mCells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<Annotatable>();
+                    mCells.put(key, cell);
+                }
+                cell.add(annotatable);
+            }
+        }
+    }
+
+    /**
+     * Removes an annotatable from the cells covered by its bounds
+     */
+    void remove(Annotatable annotatable) {
+        RectF bounds = annotatable.getBounds();
+        int left = cell(bounds.left);
+        int top = cell(bounds.top);
+        int right = cell(bounds.right);
+        int bottom = cell(bounds.bottom);
+
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                long key = key(cx, cy);
+                ArrayList<Annotatable> cell = mCells.get(key);
+                if (cell != null) {
+                    cell.remove(annotatable);
+                    if (cell.isEmpty()) {
+                        mCells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the annotatables
+     */
+    void clear() {
+        mCells.clear();
+    }
+
+    /**
+     * Returns the annotatables whose bounds intersect a region, in drawing order
+     */
+    ArrayList<Annotatable> query(float left, float top, float right, float bottom) {
+        ArrayList<Annotatable> result = new ArrayList<Annotatable>();
+        int mark = ++mQueryMark;
+
+        for (int cy = cell(top); cy <= cell(bottom); cy++) {
+            for (int cx = cell(left); cx <= cell(right); cx++) {
+                ArrayList<Annotatable> cell = mCells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    Annotatable annotatable = cell.get(i);
+                    if (annotatable.queryMark != mark && annotatable.getBounds().intersects(left, top, right, bottom)) {
+                        annotatable.queryMark = mark;
+                        result.add(annotatable);
+                    }
+                }
+            }
+        }
+        Collections.sort(result, Z_ORDER);
+        return result;
+    }
+
+    /**
+     * Returns the topmost annotatable drawn under a point, or null if there is none
+     * @param x x-position
+     * @param y y-position
+     * @param radius tolerance around the point
+     * @param cid connection id the annotatable must belong to, or null for any connection
+     */
+    Annotatable hitTest(float x, float y, float radius, String cid) {
+        ArrayList<Annotatable> candidates = query(x - radius, y - radius, x + radius, y + radius);
+
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            Annotatable annotatable = candidates.get(i);
+            if (cid != null && !cid.equals(annotatable.getCId())) {
+                continue;
+            }
+            if (annotatable.getType() == Annotatable.AnnotatableType.PATH) {
+                float tolerance = radius + annotatable.getPaint().getStrokeWidth() / 2;
+                if (isNearPath(annotatable.getPath(), x, y, tolerance)) {
+                    return annotatable;
+                }
+            } else {
+                //the bounds of a text are already tight
+                return annotatable;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNearPath(AnnotationsPath path, float x, float y, float tolerance) {
+        int count = path.getPointCount();
+        float squaredTolerance = tolerance * tolerance;
+
+        if (count == 1) {
+            return squaredDistance(x, y, path.getPointX(0), path.getPointY(0)) <= squaredTolerance;
+        }
+        for (int i = 1; i < count; i++) {
+            if (squaredSegmentDistance(x, y, path.getPointX(i - 1), path.getPointY(i - 1),
+                    path.getPointX(i), path.getPointY(i)) <= squaredTolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static float squaredSegmentDistance(float x, float y, float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float length = dx * dx + dy * dy;
+        if (length == 0) {
+            return squaredDistance(x, y, x0, y0);
+        }
+        float t = ((x - x0) * dx + (y - y0) * dy) / length;
+        t = Math.max(0, Math.min(1, t));
+        return squaredDistance(x, y, x0 + t * dx, y0 + t * dy);
+    }
+
+    private static float squaredDistance(float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        return dx * dx + dy * dy;
+    }
+
+    private static int cell(float value) {
+        return (int) Math.floor(value / CELL_SIZE);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
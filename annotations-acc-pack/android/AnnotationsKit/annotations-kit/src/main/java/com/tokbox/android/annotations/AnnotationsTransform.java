@@ -0,0 +1,91 @@
+package com.tokbox.android.annotations;
+
+/**
+ * Defines the mapping from the canvas of a remote sender to the local view.
+ * It is an axis-aligned affine transform, so each point maps with a multiply-add per axis.
+ */
+final class AnnotationsTransform {
+
+    //inputs the transform was computed for
+    private float mCanvasWidth = -1;
+    private float mCanvasHeight = -1;
+    private boolean mFlipped;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private int mGeneration = -1;
+
+    private float mScaleX = 1;
+    private float mTranslateX = 0;
+    private float mScaleY = 1;
+    private float mTranslateY = 0;
+
+    /**
+     * Returns whether the transform was computed for these inputs
+     * @param canvasWidth width of the sender canvas
+     * @param canvasHeight height of the sender canvas
+     * @param flipped whether the x-axis is mirrored
+     * @param videoWidth width of the local video
+     * @param videoHeight height of the local video
+     * @param generation generation of the local view geometry
+     */
+    boolean matches(float canvasWidth, float canvasHeight, boolean flipped, int videoWidth, int videoHeight, int generation) {
+        return mGeneration == generation && mCanvasWidth == canvasWidth && mCanvasHeight == canvasHeight
+                && mFlipped == flipped && mVideoWidth == videoWidth && mVideoHeight == videoHeight;
+    }
+
+    /**
+     * Computes the transform
+     * @param canvasWidth width of the sender canvas
+     * @param canvasHeight height of the sender canvas
+     * @param flipped whether the x-axis is mirrored
+     * @param videoWidth width of the local video
+     * @param videoHeight height of the local video
+     * @param generation generation of the local view geometry
+     * @param localWidth width of the local canvas
+     * @param localHeight height of the local canvas
+     * @param offsetY vertical offset of the view
+     * @param viewWidth width of the view, used to mirror the x-axis
+     */
+    void set(float canvasWidth, float canvasHeight, boolean flipped, int videoWidth, int videoHeight, int generation,
+             float localWidth, float localHeight, float offsetY, float viewWidth) {
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mFlipped = flipped;
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        mGeneration = generation;
+
+        float scale;
+        float canvasRatio = localWidth / localHeight;
+        if (canvasRatio < 0) {
+            scale = localWidth / canvasWidth;
+        } else {
+            scale = localHeight / canvasHeight;
+        }
+
+        //centered on both canvases: local = localCenter - scale * (remoteCenter - remote)
+        mScaleX = scale;
+        mTranslateX = localWidth / 2f - scale * canvasWidth / 2f;
+        mScaleY = scale;
+        mTranslateY = localHeight / 2f - scale * canvasHeight / 2f - offsetY;
+
+        if (flipped) {
+            mScaleX = -mScaleX;
+            mTranslateX = viewWidth - mTranslateX;
+        }
+    }
+
+    /**
+     * Returns the local x-position of a remote point
+     */
+    float mapX(float x) {
+        return mScaleX * x + mTranslateX;
+    }
+
+    /**
+     * Returns the local y-position of a remote point
+     */
+    float mapY(float y) {
+        return mScaleY * y + mTranslateY;
+    }
+}
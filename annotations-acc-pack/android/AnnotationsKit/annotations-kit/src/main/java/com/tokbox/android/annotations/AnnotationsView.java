@@ -9,9 +9,11 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
-import android.graphics.PointF;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextPaint;
 import android.text.TextWatcher;
@@ -36,6 +38,7 @@ import com.opentok.android.Publisher;
 import com.opentok.android.Session;
 import com.opentok.android.Subscriber;
 import com.tokbox.android.accpack.AccPackSession;
+import com.tokbox.android.accpack.LatencyHistogram;
 import com.tokbox.android.annotations.config.OpenTokConfig;
 import com.tokbox.android.logging.OTKAnalytics;
 import com.tokbox.android.logging.OTKAnalyticsData;
@@ -43,9 +46,13 @@ import com.tokbox.android.annotations.utils.AnnotationsVideoRenderer;
 
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.UUID;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.lang.Math;
 
 import org.json.JSONArray;
@@ -60,12 +67,18 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     private static final String LOG_TAG = AnnotationsView.class.getSimpleName();
     private static final String SIGNAL_TYPE = "otAnnotation";
     private static final String SIGNAL_PLATFORM = "android";
+    //not an otAnnotation type: the older clients show the annotations on any signal of those
+    private static final String CAPS_SIGNAL_TYPE = "annotationsKit_caps";
+    private static final String PEN_FORMAT_BINARY = "binary1";
+    private static final String SNAPSHOT_SIGNAL_TYPE = "otAnnotation_snapshot";
+    //snapshot requests sent again when one is invalid or times out
+    private static final int MAX_SNAPSHOT_REQUESTS = 2;
 
-    private AnnotationsPath mCurrentPath = null;
     private AnnotationsText mCurrentText = null;
     private Paint mCurrentPaint;
 
-    private AnnotationsVideoRenderer videoRenderer;
+    //read by the decoding thread too
+    private volatile AnnotationsVideoRenderer videoRenderer;
 
     private int mCurrentColor = 0;
     private int mSelectedColor = 0;
@@ -74,6 +87,10 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     private AnnotationsManager mAnnotationsManager;
 
     private static final float TOLERANCE = 5;
+    private static final float ERASER_RADIUS = 20;
+    private static final int MAX_BATCHED_POINTS = 32;
+    //a JSON pen update is ~350 bytes, and a signal is limited to 8KB
+    private static final int MAX_BATCHED_JSON_POINTS = 16;
 
     private int width;
     private int height;
@@ -100,9 +117,10 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     private OTKAnalytics mAnalytics;
 
     private boolean isScreensharing = false;
+    private boolean mDirectedAnnotations = false;
+    private ScreenshotMode mScreenshotMode = ScreenshotMode.Frame;
 
     private boolean mSignalMirrored = false;
-    private boolean isStartPoint = false;
     private boolean mMirrored = false;
 
     private String canvasId;
@@ -113,6 +131,256 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     private ViewGroup mContentView;
     private String mType;
 
+    //retained raster layer with the committed annotatables
+    private Bitmap mCommittedBitmap;
+    private Canvas mCommittedCanvas;
+    private boolean mCommittedDirty = true;
+
+    //child drawing the strokes in flight, so that a new point does not redraw the committed layer
+    private LiveStrokesView mLiveStrokes;
+
+    //dirty region of the pending invalidation of the strokes in flight, flushed once per frame
+    private final Rect mDirtyRect = new Rect();
+    private boolean mInvalidatePending = false;
+    private final Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mInvalidatePending = false;
+            if (!mDirtyRect.isEmpty()) {
+                mLiveStrokes.invalidate(mDirtyRect);
+                mDirtyRect.setEmpty();
+            }
+        }
+    };
+
+    //local geometry used to map the remote annotations, refreshed after layout or configuration changes
+    private int mGeometryGeneration = 0;
+    //published to the decoding thread, null until it is computed again
+    private volatile Geometry mGeometry;
+    private final HashMap<String, AnnotationsTransform> mTransforms = new HashMap<>();
+
+    //in-flight strokes, one for the local user and one per remote connection
+    private final Stroke mLocalStroke = new Stroke();
+    private final HashMap<String, Stroke> mRemoteStrokes = new HashMap<>();
+
+    //decoder of the pen signals received through onSignalReceived
+    private final AnnotationsSignalParser mSignalParser = new AnnotationsSignalParser();
+    private final AnnotationsSignalParser.PenUpdate mPenUpdate = new AnnotationsSignalParser.PenUpdate();
+
+    //decodes the annotations signals on the session decoding thread
+    private final AccPackSession.SignalDecoder<Object> mSignalDecoder = new AccPackSession.SignalDecoder<Object>() {
+        //used only by the decoding thread
+        private final AnnotationsSignalParser mParser = new AnnotationsSignalParser();
+        private final AnnotationsSignalParser.PenUpdate mUpdate = new AnnotationsSignalParser.PenUpdate();
+        private final HashMap<String, AnnotationsTransform> mDecoderTransforms = new HashMap<>();
+
+        @Override
+        public Object decodeSignal(AccPackSession session, String type, String data, Connection connection) throws Exception {
+            if (!isRemoteAnnotation(session, type, connection)) {
+                return null;
+            }
+            Object annotation = decodeAnnotation(mParser, type, data);
+            if (annotation instanceof AnnotationsSignalParser.PenSignal) {
+                return mapPenSignal(connection.getConnectionId(), (AnnotationsSignalParser.PenSignal) annotation);
+            }
+            return annotation;
+        }
+
+        //maps the updates to the local view, so that the main thread only appends them to the paths
+        private AnnotationsSignalParser.PenSignal mapPenSignal(String cid, AnnotationsSignalParser.PenSignal signal) {
+            Geometry geometry = mGeometry;
+            if (geometry == null) {
+                //mapped on the main thread once the layout is known
+                return signal;
+            }
+            AnnotationsVideoRenderer renderer = videoRenderer;
+            Mapping mapping = renderer != null
+                    ? new Mapping(geometry, renderer.getVideoWidth(), renderer.getVideoHeight(), renderer.isMirrored())
+                    : new Mapping(geometry, 0, 0, false);
+            AnnotationsTransform transform = mDecoderTransforms.get(cid);
+            if (transform == null) {
+                transform = new AnnotationsTransform();
+                mDecoderTransforms.put(cid, transform);
+            }
+            float[] points = new float[signal.size() * 4];
+            for (int i = 0; i < signal.size(); i++) {
+                signal.get(i, mUpdate);
+                updateTransform(transform, mUpdate.canvasWidth, mUpdate.canvasHeight,
+                        mUpdate.mirrored != mapping.mirrored, mapping.videoWidth, mapping.videoHeight, geometry);
+                points[i * 4] = transform.mapX(mUpdate.fromX);
+                points[i * 4 + 1] = transform.mapY(mUpdate.fromY);
+                points[i * 4 + 2] = transform.mapX(mUpdate.toX);
+                points[i * 4 + 3] = transform.mapY(mUpdate.toY);
+            }
+            return signal.withLocalPoints(points, mapping);
+        }
+
+        @Override
+        public void onSignalDecoded(AccPackSession session, String type, Object update, Connection connection) {
+            handleAnnotation(type, update, connection);
+        }
+    };
+
+    //pen updates not sent yet, flushed once per frame
+    private JSONArray mPendingPoints = new JSONArray();
+    private boolean mFlushPending = false;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPending = false;
+            flushPoints();
+        }
+    };
+
+    //sequence numbers of the pen updates and stroke ids of each session, used on the main
+    //thread. They are shared by the views of a session, so a recreated view continues them
+    //and the receivers do not drop its updates as late ones. The entry goes away with the session.
+    private static final WeakHashMap<AccPackSession, PenCounters> sPenCounters = new WeakHashMap<>();
+    private PenCounters mPenCounters = new PenCounters();
+
+    //received pen updates waiting for a missing one, per connection
+    private final HashMap<String, AnnotationsReorderBuffer> mReorderBuffers = new HashMap<>();
+    private boolean mReorderPending = false;
+    private final Runnable mReorderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReorderPending = false;
+            releaseTimedOutUpdates();
+        }
+    };
+
+    //pen updates not sent yet when every participant can decode the binary encoding
+    private AnnotationsSignalParser.PenSignal.Builder mPendingBinaryPoints = new AnnotationsSignalParser.PenSignal.Builder();
+    private final AnnotationsSignalParser.PenUpdate mOutgoingUpdate = new AnnotationsSignalParser.PenUpdate();
+    private final AnnotationsBinaryCodec mBinaryCodec = new AnnotationsBinaryCodec();
+
+    //whether each connection that advertised its capabilities can decode the binary pen signals
+    private final HashMap<String, Boolean> mBinaryPenPeers = new HashMap<>();
+    //connections that can send and receive the snapshots
+    private final HashSet<String> mSnapshotPeers = new HashSet<>();
+    //connections that can apply the eraser signals
+    private final HashSet<String> mEraserPeers = new HashSet<>();
+    private boolean mBinaryPen = false;
+    //whether the signal decoder and the connection listener are added to the session
+    private boolean mSignalsRegistered = false;
+    private boolean mAttached = false;
+    private final Session.ConnectionListener mConnectionListener = new Session.ConnectionListener() {
+        @Override
+        public void onConnectionCreated(Session session, Connection connection) {
+            updatePenFormat();
+        }
+
+        @Override
+        public void onConnectionDestroyed(Session session, Connection connection) {
+            mBinaryPenPeers.remove(connection.getConnectionId());
+            mSnapshotPeers.remove(connection.getConnectionId());
+            mEraserPeers.remove(connection.getConnectionId());
+            mReorderBuffers.remove(connection.getConnectionId());
+            updatePenFormat();
+        }
+    };
+
+    //snapshot sent to the participants who join late
+    private int mNextSnapshotId = 0;
+    private final AnnotationsSnapshot.Assembler mSnapshotAssembler = new AnnotationsSnapshot.Assembler();
+    private boolean mSnapshotApplied = false;
+    private int mSnapshotRequests = 0;
+    private final Runnable mSnapshotTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String holderId = mSnapshotAssembler.expire(SystemClock.uptimeMillis());
+            if (holderId != null) {
+                Log.w(LOG_TAG, "Snapshot timed out");
+                requestSnapshot(holderId);
+            }
+        }
+    };
+
+    //time from the remote touch to the local drawing of the pen updates
+    private final LatencyHistogram mLatencyHistogram = new LatencyHistogram();
+
+    /*
+     * Draws the strokes in flight above the committed layer. With hardware acceleration the
+     * dirty rectangle of an invalidation is ignored and the whole view is recorded again, so the
+     * strokes are kept in their own view: a new point only records this one again.
+     */
+    private class LiveStrokesView extends View {
+
+        LiveStrokesView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            for (Stroke stroke : mRemoteStrokes.values()) {
+                if (stroke.path != null) {
+                    canvas.drawPath(stroke.path, stroke.paint);
+                }
+            }
+            if (mLocalStroke.path != null) {
+                canvas.drawPath(mLocalStroke.path, mLocalStroke.paint);
+            }
+        }
+    }
+
+    //local geometry the remote annotations are mapped to. It is immutable, so it can be read by the
+    //decoding thread.
+    private static final class Geometry {
+        final int generation;
+        final int displayWidth;
+        final int displayHeight;
+        final int actionBarHeight;
+        final int viewWidth;
+
+        Geometry(int generation, int displayWidth, int displayHeight, int actionBarHeight, int viewWidth) {
+            this.generation = generation;
+            this.displayWidth = displayWidth;
+            this.displayHeight = displayHeight;
+            this.actionBarHeight = actionBarHeight;
+            this.viewWidth = viewWidth;
+        }
+    }
+
+    //view state the decoding thread mapped a pen signal for
+    private static final class Mapping {
+        final Geometry geometry;
+        final int videoWidth;
+        final int videoHeight;
+        final boolean mirrored;
+
+        Mapping(Geometry geometry, int videoWidth, int videoHeight, boolean mirrored) {
+            this.geometry = geometry;
+            this.videoWidth = videoWidth;
+            this.videoHeight = videoHeight;
+            this.mirrored = mirrored;
+        }
+
+        boolean matches(Geometry geometry, int videoWidth, int videoHeight, boolean mirrored) {
+            return this.geometry == geometry && this.videoWidth == videoWidth
+                    && this.videoHeight == videoHeight && this.mirrored == mirrored;
+        }
+    }
+
+    //sequence number of the next pen update sent, and id of the next local stroke
+    private static class PenCounters {
+        int nextSeq = 0;
+        int nextStrokeId = 0;
+    }
+
+    //state of a stroke being drawn
+    private static class Stroke {
+        AnnotationsPath path;
+        Paint paint;
+        int color;
+        float lineWidth;
+        //whether the last point received was the start point
+        boolean startPoint;
+        //id of the stroke in the signals, -1 if unknown
+        int id = -1;
+        //sequence number of the last pen update of the stroke, -1 if unknown
+        int lastSeq = -1;
+    }
+
     /**
      * Monitors state changes in the Annotations component.
      *
@@ -120,7 +388,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     public  interface AnnotationsListener {
 
         /**
-         * Invoked when a new screencapture is ready
+         * Invoked on the main thread when a new screencapture is ready
          *
          * @param bmp Bitmap of the screencapture.
          */
@@ -146,6 +414,19 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         void onError(String error);
     }
 
+    /**
+     * Screenshot capture modes
+     *
+     */
+    public enum ScreenshotMode {
+        /** The video frame, converted on the CPU */
+        Frame,
+        /** The video frame as it is displayed, rendered and read back on the GPU. Converted on the CPU while the video is paused */
+        RenderedFrame,
+        /** The video frame as it is displayed with the annotations, rendered and read back on the GPU. Without the annotations while the video is paused */
+        RenderedFrameWithAnnotations
+    }
+
     /**
      * Annotations actions
      *
@@ -156,6 +437,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         Text("otAnnotation_text"),
         Color("otAnnotation_color"),
         Capture("otAnnotation_capture"),
+        Eraser("otAnnotation_eraser"),
         Done("otAnnotation_done");
 
         private String type;
@@ -197,7 +479,6 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mContext = context;
         this.mSession = session;
         this.mPartnerId = partnerId;
-        this.mSession.setSignalListener(this);
         this.isScreensharing = isScreensharing;
         init();
     }
@@ -220,7 +501,6 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mContext = context;
         this.mSession = session;
         this.mPartnerId = partnerId;
-        this.mSession.setSignalListener(this);
         this.isScreensharing = isScreensharing;
         this.mLocal = local;
         init();
@@ -243,7 +523,6 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mContext = context;
         this.mSession = session;
         this.mPartnerId = partnerId;
-        this.mSession.setSignalListener(this);
         this.isScreensharing = false;
         this.mRemote = remote;
         init();
@@ -302,6 +581,61 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
      */
     public void restart(){
         clearAll(false, mSession.getConnection().getConnectionId());
+        if (!mAttached) {
+            //a view restarted before it is dropped must stop decoding the signals
+            unregisterSignals();
+        }
+    }
+
+    /**
+     * Sets whether the annotations are sent only to the participant whose stream is annotated,
+     * instead of to the whole session. It applies to the views annotating a subscriber.
+     * @param directed Whether to send the annotations to the stream owner only (<code>true</code>) or not (<code>false</code>).
+     */
+    public void setDirectedAnnotations(boolean directed) {
+        this.mDirectedAnnotations = directed;
+    }
+
+    /**
+     * Sets how the screenshots are captured. The default mode is {@link ScreenshotMode#Frame}.
+     * @param mode the capture mode
+     */
+    public void setScreenshotMode(ScreenshotMode mode) {
+        this.mScreenshotMode = mode;
+    }
+
+    /**
+     * Returns a snapshot of the latency of the remote pen annotations, from the touch on the sender
+     * device to the drawing on this one. It relies on the clocks of both devices being in sync.
+     * The signal counters are returned by {@link AccPackSession#getSignalMetrics()}.
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return new LatencyHistogram(mLatencyHistogram);
+    }
+
+    /**
+     * Clears the latencies of the remote pen annotations
+     */
+    public void resetLatencyHistogram() {
+        mLatencyHistogram.reset();
+    }
+
+    /**
+     * Enables or disables the eraser. When it is enabled, touching the view erases the local
+     * annotations under the finger.
+     * @param enabled Whether to enable the eraser (<code>true</code>) or not (<code>false</code>).
+     */
+    public void enableEraser(boolean enabled) {
+        if (enabled) {
+            mode = Mode.Eraser;
+            this.setVisibility(VISIBLE);
+            if (mListener != null) {
+                mListener.onAnnotationsSelected(mode);
+            }
+        }
+        else if (mode == Mode.Eraser) {
+            mode = null;
+        }
     }
 
     @Override
@@ -309,6 +643,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
         super.onConfigurationChanged(newConfig);
         resize();
+        invalidateGeometry();
     }
 
     private void init(){
@@ -327,6 +662,31 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         if ( mSession != null ) {
             mAnalyticsData.setSessionId(mSession.getSessionId());
             mAnalyticsData.setConnectionId(mSession.getConnection().getConnectionId());
+
+            //the pen batches can be merged while they wait
+            mSession.setSignalPolicy(Mode.Pen.toString(), AccPackSession.SIGNAL_PRIORITY_NORMAL, true);
+            mSession.setSignalPolicy(Mode.Text.toString(), AccPackSession.SIGNAL_PRIORITY_NORMAL, false);
+            mSession.setSignalPolicy(Mode.Eraser.toString(), AccPackSession.SIGNAL_PRIORITY_NORMAL, false);
+            //clear undoes the last annotation, so it stays in order with the strokes it applies to
+            mSession.setSignalPolicy(Mode.Clear.toString(), AccPackSession.SIGNAL_PRIORITY_NORMAL, false);
+            //done removes all the annotations, so the ones still queued are not worth sending
+            mSession.setSignalPolicy(Mode.Done.toString(), AccPackSession.SIGNAL_PRIORITY_CONTROL, false);
+            mSession.addSupersededSignal(Mode.Done.toString(), Mode.Pen.toString());
+            mSession.addSupersededSignal(Mode.Done.toString(), Mode.Text.toString());
+            mSession.addSupersededSignal(Mode.Done.toString(), Mode.Eraser.toString());
+            mSession.addSupersededSignal(Mode.Done.toString(), Mode.Clear.toString());
+            mSession.setSignalPolicy(CAPS_SIGNAL_TYPE, AccPackSession.SIGNAL_PRIORITY_NORMAL, false);
+            //the live annotations go first, and a snapshot missing a chunk would be useless
+            mSession.setSignalPolicy(SNAPSHOT_SIGNAL_TYPE, AccPackSession.SIGNAL_PRIORITY_LOW, false, false);
+
+            mPenCounters = sPenCounters.get(mSession);
+            if (mPenCounters == null) {
+                mPenCounters = new PenCounters();
+                sPenCounters.put(mSession, mPenCounters);
+            }
+
+            registerSignals();
+            sendCapabilities(null);
         }
         if ( mPartnerId != null ) {
             mAnalyticsData.setPartnerId(mPartnerId);
@@ -334,6 +694,8 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         mAnalytics. setData(mAnalyticsData);
 
         setWillNotDraw(false);
+        mLiveStrokes = new LiveStrokesView(getContext());
+        addView(mLiveStrokes, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
         mAnnotationsManager = new AnnotationsManager();
         mCurrentColor = getResources().getColor(R.color.picker_color_orange);
         mSelectedColor = mCurrentColor;
@@ -342,6 +704,23 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         addLogEvent(OpenTokConfig.LOG_ACTION_INITIALIZE, OpenTokConfig.LOG_VARIATION_SUCCESS);
     }
 
+    private void registerSignals() {
+        if (!mSignalsRegistered && mSession != null) {
+            mSession.addSignalDecoder(SIGNAL_TYPE + "*", mSignalDecoder, true);
+            mSession.addSignalDecoder(CAPS_SIGNAL_TYPE, mSignalDecoder, true);
+            mSession.addConnectionListener(mConnectionListener, true);
+            mSignalsRegistered = true;
+        }
+    }
+
+    private void unregisterSignals() {
+        if (mSignalsRegistered) {
+            mSession.removeSignalDecoder(mSignalDecoder);
+            mSession.removeConnectionListener(mConnectionListener);
+            mSignalsRegistered = false;
+        }
+    }
+
     private void resize(){
         int widthPixels = 0;
         int heightPixels = 0;
@@ -365,7 +744,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         }
         params.width = this.width;
         this.setLayoutParams(params);
-
+        invalidateGeometry();
     }
 
     private void getScreenRealSize(){
@@ -402,6 +781,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
         this.width = realWidth;
         this.height = realHeight;
+        invalidateGeometry();
     }
 
     private int getDisplayHeight() {
@@ -439,6 +819,70 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         return screenWidth;
     }
 
+    private void invalidateGeometry() {
+        mGeometry = null;
+        mGeometryGeneration++;
+    }
+
+    private Geometry updateGeometry() {
+        Geometry geometry = mGeometry;
+        if (geometry == null) {
+            geometry = new Geometry(mGeometryGeneration, getDisplayWidth(), getDisplayHeight(),
+                    getActionBarHeight(), this.width);
+            mGeometry = geometry;
+        }
+        return geometry;
+    }
+
+    private int getCanvasHeight() {
+        Geometry geometry = updateGeometry();
+        return geometry.displayHeight - geometry.actionBarHeight;
+    }
+
+    private AnnotationsTransform getTransform(String cid, float canvasWidth, float canvasHeight, boolean flipped) {
+        Geometry geometry = updateGeometry();
+
+        int videoWidth = 0;
+        int videoHeight = 0;
+        if (videoRenderer != null) {
+            videoWidth = videoRenderer.getVideoWidth();
+            videoHeight = videoRenderer.getVideoHeight();
+        }
+
+        AnnotationsTransform transform = mTransforms.get(cid);
+        if (transform == null) {
+            transform = new AnnotationsTransform();
+            mTransforms.put(cid, transform);
+        }
+        updateTransform(transform, canvasWidth, canvasHeight, flipped, videoWidth, videoHeight, geometry);
+        return transform;
+    }
+
+    private static void updateTransform(AnnotationsTransform transform, float canvasWidth, float canvasHeight,
+                                        boolean flipped, int videoWidth, int videoHeight, Geometry geometry) {
+        if (!transform.matches(canvasWidth, canvasHeight, flipped, videoWidth, videoHeight, geometry.generation)) {
+            float localWidth = videoWidth != 0 ? videoWidth : geometry.displayWidth;
+            float localHeight = videoHeight != 0 ? videoHeight : geometry.displayHeight;
+            transform.set(canvasWidth, canvasHeight, flipped, videoWidth, videoHeight, geometry.generation,
+                    localWidth, localHeight, geometry.actionBarHeight, geometry.viewWidth);
+        }
+    }
+
+    //returns whether the decoding thread mapped the update for the current view state
+    private boolean isMappedForView(AnnotationsSignalParser.PenUpdate update) {
+        if (!(update.mapping instanceof Mapping)) {
+            return false;
+        }
+        Geometry geometry = updateGeometry();
+        int videoWidth = 0;
+        int videoHeight = 0;
+        if (videoRenderer != null) {
+            videoWidth = videoRenderer.getVideoWidth();
+            videoHeight = videoRenderer.getVideoHeight();
+        }
+        return ((Mapping) update.mapping).matches(geometry, videoWidth, videoHeight, mMirrored);
+    }
+
     private int getStatusBarHeight() {
         int result = 0;
         int resourceId = getResources().getIdentifier("status_bar_height", "dimen", "android");
@@ -486,54 +930,97 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         invalidate();
     }
 
-    private void beginTouch(float x, float y) {
-        mCurrentPath.moveTo(x, y);
+    private void beginTouch(Stroke stroke, float x, float y) {
+        stroke.path.moveTo(x, y);
     }
 
-    private void moveTouch(float x, float y, boolean curved) {
-        if ( mCurrentPath!= null && mCurrentPath.getPoints()!= null && mCurrentPath.getPoints().size() > 0 ) {
-            float mX = mCurrentPath.getEndPoint().x;
-            float mY = mCurrentPath.getEndPoint().y;
+    private void moveTouch(Stroke stroke, float x, float y, boolean curved) {
+        AnnotationsPath path = stroke.path;
+        if ( path != null && path.getPointCount() > 0 ) {
+            float mX = path.getEndX();
+            float mY = path.getEndY();
 
             float dx = Math.abs(x - mX);
             float dy = Math.abs(y - mY);
             if (dx >= TOLERANCE || dy >= TOLERANCE) {
                 if (curved) {
-                    mCurrentPath.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
+                    path.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
                 } else {
-                    mCurrentPath.lineTo(x, y);
+                    path.lineTo(x, y);
                 }
             }
         }
     }
 
-    private void upTouch() {
-        upTouch(false);
+    private void penTouch(float x, float y) {
+        moveTouch(mLocalStroke, x, y, true);
+        queuePoint(x, y, false, false);
+        mLocalStroke.path.addPoint(x, y);
+        invalidatePathTail(mLocalStroke.path, mLocalStroke.paint);
+    }
+
+    private void upTouch(Stroke stroke) {
+        upTouch(stroke, false);
     }
 
-    private void upTouch(boolean curved) {
-        float mLastX = mCurrentPath.getEndPoint().x;
-        float mLastY = mCurrentPath.getEndPoint().y;
-        int index = mCurrentPath.getPoints().size()-1; //-2
-        float mX = mCurrentPath.getPoints().get(index).x;
-        float mY = mCurrentPath.getPoints().get(index).y;
+    private void upTouch(Stroke stroke, boolean curved) {
+        AnnotationsPath path = stroke.path;
+        float mLastX = path.getEndX();
+        float mLastY = path.getEndY();
+        int index = path.getPointCount()-1; //-2
+        float mX = path.getPointX(index);
+        float mY = path.getPointY(index);
         if (curved) {
-            mCurrentPath.quadTo(mLastX, mLastY, (mX + mLastX) / 2, (mY + mLastY) / 2);
+            path.quadTo(mLastX, mLastY, (mX + mLastX) / 2, (mY + mLastY) / 2);
         } else {
-            mCurrentPath.lineTo(mX, mY);
+            path.lineTo(mX, mY);
+        }
+    }
+
+    private void invalidateRegion(float left, float top, float right, float bottom) {
+        mDirtyRect.union((int) Math.floor(left), (int) Math.floor(top), (int) Math.ceil(right), (int) Math.ceil(bottom));
+        if (!mInvalidatePending) {
+            mInvalidatePending = true;
+            postOnAnimation(mInvalidateRunnable);
+        }
+    }
+
+    private void invalidateSegment(float fromX, float fromY, float toX, float toY, float strokeWidth) {
+        //half the stroke plus one pixel for the antialiasing
+        float padding = strokeWidth / 2 + 1;
+        invalidateRegion(Math.min(fromX, toX) - padding, Math.min(fromY, toY) - padding,
+                Math.max(fromX, toX) + padding, Math.max(fromY, toY) + padding);
+    }
+
+    private void invalidatePathTail(AnnotationsPath path, Paint paint) {
+        int size = path.getPointCount();
+        if (size == 0) {
+            return;
         }
+        //a smoothed segment starts at the middle of the previous one, so the last three points bound it
+        int end = size - 1;
+        int previous = Math.max(size - 2, 0);
+        int first = Math.max(size - 3, 0);
+        invalidateSegment(path.getPointX(first), path.getPointY(first), path.getPointX(end), path.getPointY(end), paint.getStrokeWidth());
+        invalidateSegment(path.getPointX(previous), path.getPointY(previous), path.getPointX(end), path.getPointY(end), paint.getStrokeWidth());
+    }
+
+    //the committed layer is drawn by this view
+    private void invalidateCommittedRegion(RectF region) {
+        invalidate((int) Math.floor(region.left), (int) Math.floor(region.top),
+                (int) Math.ceil(region.right), (int) Math.ceil(region.bottom));
     }
 
     private void clearAll(boolean incoming, String cid){
+        //a stroke the sender was still drawing is dropped too
+        Stroke stroke = incoming ? mRemoteStrokes.remove(cid) : null;
+        if (stroke != null && stroke.path != null) {
+            mLiveStrokes.invalidate();
+        }
 
-        if (mAnnotationsManager.getAnnotatableList().size() > 0) {
-            int i = mAnnotationsManager.getAnnotatableList().size() - 1;
-            while (i >= 0) {
-                Annotatable annotatable = mAnnotationsManager.getAnnotatableList().get(i);
-                if (annotatable.getCId().equals(cid)) {
-                    mAnnotationsManager.getAnnotatableList().remove(i);
-                    i--;
-                }
+        if (mAnnotationsManager.getAnnotatableCount() > 0) {
+            if (!mAnnotationsManager.removeAnnotatables(cid).isEmpty()) {
+                invalidateCommittedLayer();
                 invalidate();
             }
             if (!incoming && !isScreensharing) {
@@ -544,20 +1031,11 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
 
     private void clearCanvas(boolean incoming, String cid) {
-        boolean removed = false;
-        if (mAnnotationsManager.getAnnotatableList().size() > 0) {
-            int i = mAnnotationsManager.getAnnotatableList().size() - 1;
-
-            while (!removed && i >= 0){
-                Annotatable annotatable = mAnnotationsManager.getAnnotatableList().get(i);
-
-                if (annotatable.getCId().equals(cid)) {
-                    mAnnotationsManager.getAnnotatableList().remove(i);
-                    removed = true;
-                }
-                i--;
+        if (mAnnotationsManager.getAnnotatableCount() > 0) {
+            Annotatable removed = mAnnotationsManager.removeLastAnnotatable(cid);
+            if (removed != null) {
+                eraseFromCommittedLayer(removed);
             }
-            invalidate();
 
             if (!incoming && !isScreensharing){
                 sendAnnotation(mode.toString(), "");
@@ -565,40 +1043,214 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         }
     }
 
+    private void eraseAt(float x, float y) {
+        String cid = mSession.getConnection().getConnectionId();
+        Annotatable annotatable = mAnnotationsManager.hitTest(x, y, ERASER_RADIUS, cid);
+
+        if (annotatable != null) {
+            mAnnotationsManager.removeAnnotatable(annotatable);
+            eraseFromCommittedLayer(annotatable);
+            if (annotatable.strokeId >= 0) {
+                sendEraser(buildSignalFromErase(cid, annotatable.strokeId));
+            }
+        }
+    }
+
+    //the eraser is sent only to the participants able to apply it, the others would just show
+    //their annotations
+    private void sendEraser(String data) {
+        if ( mSession == null || isScreensharing ) {
+            return;
+        }
+        Connection target = mDirectedAnnotations ? getAnnotatedConnection() : null;
+        if (target != null) {
+            if (mEraserPeers.contains(target.getConnectionId())) {
+                mSession.queueSignal(Mode.Eraser.toString(), data, target);
+            }
+            return;
+        }
+        List<Connection> peers = new ArrayList<>();
+        boolean all = true;
+        for (Connection connection : mSession.getConnections()) {
+            if (mEraserPeers.contains(connection.getConnectionId())) {
+                peers.add(connection);
+            }
+            else {
+                all = false;
+            }
+        }
+        if (all) {
+            mSession.queueSignal(Mode.Eraser.toString(), data, null);
+        }
+        else {
+            for (Connection connection : peers) {
+                mSession.queueSignal(Mode.Eraser.toString(), data, connection);
+            }
+        }
+    }
+
+    private void eraseAnnotation(Connection connection, String data) {
+        try {
+            JSONArray updates = new JSONArray(data);
+
+            for (int i = 0; i < updates.length(); i++) {
+                JSONObject json = updates.getJSONObject(i);
+                int strokeId = ((Number) json.get("strokeId")).intValue();
+
+                //the stroke ids stay the same whatever was dropped or merged on the way
+                for (Annotatable annotatable : mAnnotationsManager.getAnnotatables(connection.getConnectionId(), strokeId)) {
+                    mAnnotationsManager.removeAnnotatable(annotatable);
+                    eraseFromCommittedLayer(annotatable);
+                }
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void createTextAnnotatable(EditText editText, float x, float y) {
         Log.i(LOG_TAG, "Create Text Annotatable");
-        mCurrentPaint = new Paint();
-        mCurrentPaint.setAntiAlias(true);
-        mCurrentPaint.setColor(mCurrentColor);
-        mCurrentPaint.setTextSize(mTextSize);
+        mCurrentPaint = createTextPaint(mCurrentColor);
         mCurrentText = new AnnotationsText(editText, x, y);
     }
 
-    private void createPathAnnotatable(boolean incoming) {
+    private Paint createTextPaint(int color) {
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setColor(color);
+        paint.setTextSize(mTextSize);
+        return paint;
+    }
+
+    private void createPathAnnotatable(Stroke stroke) {
         Log.i(LOG_TAG, "Create Path Annotatable");
-        mCurrentPaint = new Paint();
-        mCurrentPaint.setAntiAlias(true);
-        mCurrentPaint.setColor(mCurrentColor);
-        mCurrentPaint.setStyle(Paint.Style.STROKE);
-        mCurrentPaint.setStrokeJoin(Paint.Join.ROUND);
-        mCurrentPaint.setStrokeWidth(mLineWidth);
-        if (mode != null && mode == Mode.Pen) {
-            mCurrentPath = new AnnotationsPath();
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setColor(stroke.color);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeWidth(stroke.lineWidth);
+        stroke.paint = paint;
+        stroke.path = new AnnotationsPath();
+    }
+
+    private Stroke getRemoteStroke(String cid) {
+        Stroke stroke = mRemoteStrokes.get(cid);
+        if (stroke == null) {
+            stroke = new Stroke();
+            stroke.color = mCurrentColor;
+            stroke.lineWidth = mLineWidth;
+            mRemoteStrokes.put(cid, stroke);
         }
+        return stroke;
     }
 
     private void addAnnotatable(String cid) throws Exception {
         Log.i(LOG_TAG, "Add Annotatable");
         if (mode != null) {
-            if (mode.equals(Mode.Pen)) {
-                mCurrentAnnotatable = new Annotatable(mode, mCurrentPath, mCurrentPaint, cid);
-                mCurrentAnnotatable.setType(Annotatable.AnnotatableType.PATH);
-            } else {
-                mCurrentAnnotatable = new Annotatable(mode, mCurrentText, mCurrentPaint, cid);
-                mCurrentAnnotatable.setType(Annotatable.AnnotatableType.TEXT);
-            }
+            mCurrentAnnotatable = new Annotatable(mode, mCurrentText, mCurrentPaint, cid);
+            mCurrentAnnotatable.setType(Annotatable.AnnotatableType.TEXT);
             mAnnotationsManager.addAnnotatable(mCurrentAnnotatable);
+            commitAnnotatable(mCurrentAnnotatable);
+        }
+    }
+
+    private void addAnnotatable(Stroke stroke, String cid) {
+        if (stroke.path == null) {
+            return;
+        }
+        Log.i(LOG_TAG, "Add Annotatable");
+        try {
+            mCurrentAnnotatable = new Annotatable(Mode.Pen, stroke.path, stroke.paint, cid);
+            mCurrentAnnotatable.setType(Annotatable.AnnotatableType.PATH);
+            mCurrentAnnotatable.penSeq = stroke.lastSeq;
+            mCurrentAnnotatable.strokeId = stroke.id;
+            mAnnotationsManager.addAnnotatable(mCurrentAnnotatable);
+            commitAnnotatable(mCurrentAnnotatable);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, e.toString());
+        }
+
+        //the stroke is drawn by the committed layer from now on
+        stroke.path = null;
+        stroke.paint = null;
+        stroke.startPoint = false;
+        stroke.lastSeq = -1;
+        mLiveStrokes.invalidate();
+    }
+
+    private void drawAnnotatable(Canvas canvas, Annotatable drawing) {
+        if (drawing.getType().equals(Annotatable.AnnotatableType.PATH)) {
+            canvas.drawPath(drawing.getPath(), drawing.getPaint());
+        }
+
+        if (drawing.getType().equals(Annotatable.AnnotatableType.TEXT)) {
+            canvas.drawText(drawing.getText().getEditText().getText().toString(), drawing.getText().x, drawing.getText().y, drawing.getPaint());
+        }
+    }
+
+    private void commitAnnotatable(Annotatable annotatable) {
+        //draw only the new annotatable, unless the whole layer has to be rebuilt anyway
+        if (mCommittedCanvas != null && !mCommittedDirty) {
+            drawAnnotatable(mCommittedCanvas, annotatable);
+        }
+        invalidateCommittedRegion(annotatable.getBounds());
+    }
+
+    private void eraseFromCommittedLayer(Annotatable annotatable) {
+        RectF region = annotatable.getBounds();
+
+        //redraw only the annotatables that overlap the erased one
+        if (mCommittedCanvas != null && !mCommittedDirty) {
+            mCommittedCanvas.save();
+            mCommittedCanvas.clipRect(region);
+            mCommittedCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            for (Annotatable drawing : mAnnotationsManager.queryAnnotatables(region)) {
+                drawAnnotatable(mCommittedCanvas, drawing);
+            }
+            mCommittedCanvas.restore();
+        }
+        invalidateCommittedRegion(region);
+    }
+
+    private void invalidateCommittedLayer() {
+        mCommittedDirty = true;
+    }
+
+    private void createCommittedLayer(int w, int h) {
+        releaseCommittedLayer();
+        if (w > 0 && h > 0) {
+            mCommittedBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            mCommittedCanvas = new Canvas(mCommittedBitmap);
+        }
+        mCommittedDirty = true;
+    }
+
+    //returns a copy of the committed annotations, the layer keeps changing while the copy is captured
+    private Bitmap copyCommittedLayer() {
+        if (mCommittedBitmap == null) {
+            return null;
+        }
+        if (mCommittedDirty) {
+            rebuildCommittedLayer();
+        }
+        return mCommittedBitmap.copy(Bitmap.Config.ARGB_8888, false);
+    }
+
+    private void releaseCommittedLayer() {
+        if (mCommittedBitmap != null) {
+            mCommittedBitmap.recycle();
+            mCommittedBitmap = null;
         }
+        mCommittedCanvas = null;
+    }
+
+    private void rebuildCommittedLayer() {
+        mCommittedBitmap.eraseColor(Color.TRANSPARENT);
+        for (Annotatable drawing : mAnnotationsManager.getAnnotatables()) {
+            drawAnnotatable(mCommittedCanvas, drawing);
+        }
+        mCommittedDirty = false;
     }
 
     private Bitmap getScreenshot(){
@@ -612,11 +1264,309 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
     private void sendAnnotation(String type, String annotation) {
         if ( mSession != null  && !isScreensharing) {
-            mSession.sendSignal(type, annotation);
+            mSession.queueSignal(type, annotation, mDirectedAnnotations ? getAnnotatedConnection() : null);
+        }
+    }
+
+    private void queuePoint(float x, float y, boolean startPoint, boolean endPoint) {
+        int seq = mPenCounters.nextSeq++;
+        mLocalStroke.lastSeq = seq;
+        long timestamp = System.currentTimeMillis();
+        //a batch is sent in one format
+        if (mBinaryPen) {
+            if (mPendingPoints.length() > 0) {
+                flushPoints();
+            }
+            mPendingBinaryPoints.add(buildPointUpdate(x, y, startPoint, endPoint, seq, timestamp, mOutgoingUpdate));
+        }
+        else {
+            if (mPendingBinaryPoints.size() > 0) {
+                flushPoints();
+            }
+            mPendingPoints.put(buildPointUpdate(x, y, startPoint, endPoint, seq, timestamp));
+        }
+
+        //the stroke boundaries are sent right away, so the remote side starts and ends the path on time
+        if (startPoint || endPoint || mPendingPoints.length() >= MAX_BATCHED_JSON_POINTS
+                || mPendingBinaryPoints.size() >= MAX_BATCHED_POINTS) {
+            flushPoints();
+        }
+        else if (!mFlushPending) {
+            mFlushPending = true;
+            postOnAnimation(mFlushRunnable);
+        }
+    }
+
+    private void flushPoints() {
+        if (mFlushPending) {
+            removeCallbacks(mFlushRunnable);
+            mFlushPending = false;
+        }
+        if (mPendingPoints.length() > 0) {
+            sendAnnotation(Mode.Pen.toString(), mPendingPoints.toString());
+            mPendingPoints = new JSONArray();
+        }
+        if (mPendingBinaryPoints.size() > 0) {
+            sendAnnotation(Mode.Pen.toString(), mBinaryCodec.encode(getAnnotatedConnectionId(),
+                    mSession.getConnection().getConnectionId(), mPendingBinaryPoints.build()));
+            mPendingBinaryPoints = new AnnotationsSignalParser.PenSignal.Builder();
+        }
+    }
+
+    //a hello is sent once to all, when the view is created, and answered by a reply to its sender
+    private void sendCapabilities(Connection replyTo) {
+        sendCapabilities(replyTo, false);
+    }
+
+    //a snapshot request is a reply asking its recipient for the snapshot again
+    private void sendCapabilities(Connection replyTo, boolean snapshotRequest) {
+        boolean reply = replyTo != null;
+        JSONObject jsonObject = new JSONObject();
+        try {
+            jsonObject.put("platform", SIGNAL_PLATFORM);
+            jsonObject.put("penFormats", new JSONArray().put(PEN_FORMAT_BINARY));
+            jsonObject.put("snapshot", true);
+            jsonObject.put("eraser", true);
+            jsonObject.put("reply", reply);
+            if (snapshotRequest) {
+                jsonObject.put("snapshotRequest", true);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
+        //sent even when screensharing, as this view still receives the annotations
+        mSession.queueSignal(CAPS_SIGNAL_TYPE, jsonObject.toString(), replyTo);
+    }
+
+    private void capabilitiesAnnotation(Connection connection, String data) {
+        String cid = connection.getConnectionId();
+        boolean binary = false;
+        boolean snapshot = false;
+        boolean hello = false;
+        boolean snapshotRequest = false;
+        boolean eraser = false;
+        try {
+            JSONObject jsonObject = new JSONObject(data);
+            JSONArray formats = jsonObject.optJSONArray("penFormats");
+            for (int i = 0; formats != null && i < formats.length(); i++) {
+                binary |= PEN_FORMAT_BINARY.equals(formats.optString(i));
+            }
+            snapshot = jsonObject.optBoolean("snapshot");
+            eraser = jsonObject.optBoolean("eraser");
+            hello = !jsonObject.optBoolean("reply");
+            snapshotRequest = jsonObject.optBoolean("snapshotRequest");
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Invalid capabilities signal: " + e.toString());
+        }
+        //a new participant does not know the capabilities of this one yet
+        boolean unknown = !mBinaryPenPeers.containsKey(cid);
+        mBinaryPenPeers.put(cid, binary);
+        if (snapshot) {
+            mSnapshotPeers.add(cid);
+        }
+        if (eraser) {
+            mEraserPeers.add(cid);
+        }
+        updatePenFormat();
+        if (unknown) {
+            sendCapabilities(connection);
+        }
+        //a hello comes from a view just created, which needs the current annotations
+        if (unknown && hello && snapshot && isSnapshotHolder(cid)) {
+            sendSnapshot(connection);
+        }
+        //the snapshot this view sent was invalid or late
+        else if (snapshotRequest && snapshot) {
+            sendSnapshot(connection);
+        }
+    }
+
+    //the holder is the participant with the smallest connection id able to send the snapshot
+    private boolean isSnapshotHolder(String joinerId) {
+        String cid = mSession.getConnection().getConnectionId();
+        for (Connection connection : mSession.getConnections()) {
+            String peerId = connection.getConnectionId();
+            if (!peerId.equals(joinerId) && mSnapshotPeers.contains(peerId) && peerId.compareTo(cid) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private String buildSignalFromText(float x, float y, String text, boolean start, boolean end) {
+    private void sendSnapshot(Connection connection) {
+        if (mAnnotationsManager.getAnnotatableCount() == 0) {
+            return;
+        }
+        boolean mirrored = videoRenderer != null && videoRenderer.isMirrored();
+        AnnotationsSnapshot.Writer writer = new AnnotationsSnapshot.Writer(mNextSnapshotId++, this.width,
+                getCanvasHeight(), mirrored, SIGNAL_PLATFORM);
+        try {
+            for (Annotatable annotatable : mAnnotationsManager.getAnnotatables()) {
+                Paint paint = annotatable.getPaint();
+                if (annotatable.getType() == Annotatable.AnnotatableType.PATH) {
+                    writer.addPath(annotatable.getCId(), paint.getColor(), paint.getStrokeWidth(), annotatable.getPath(),
+                            annotatable.penSeq, annotatable.strokeId);
+                }
+                else {
+                    AnnotationsText text = annotatable.getText();
+                    writer.addText(annotatable.getCId(), paint.getColor(), text.getX(), text.getY(),
+                            text.getEditText().getText().toString(), annotatable.strokeId);
+                }
+            }
+            List<String> chunks = writer.getChunks();
+            Log.i(LOG_TAG, "Send snapshot in " + chunks.size() + " signals");
+            for (String chunk : chunks) {
+                mSession.queueSignal(SNAPSHOT_SIGNAL_TYPE, chunk, connection);
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Snapshot cannot be sent: " + e.toString());
+        }
+    }
+
+    private void snapshotAnnotation(Connection connection, String data) {
+        //one snapshot is enough, the annotations received since are drawn from their signals
+        if (mSnapshotApplied) {
+            return;
+        }
+        removeCallbacks(mSnapshotTimeoutRunnable);
+        try {
+            JSONObject[] chunks = mSnapshotAssembler.add(connection.getConnectionId(), data, SystemClock.uptimeMillis());
+            if (chunks != null) {
+                applySnapshot(connection.getConnectionId(), chunks);
+                mSnapshotApplied = true;
+            }
+            else {
+                postDelayed(mSnapshotTimeoutRunnable, AnnotationsSnapshot.ASSEMBLY_TIMEOUT);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Invalid snapshot signal: " + e.toString());
+            mSnapshotAssembler.reset();
+            requestSnapshot(connection.getConnectionId());
+        }
+    }
+
+    //asks the holder of an invalid or late snapshot for a new one
+    private void requestSnapshot(String holderId) {
+        Connection holder = mSession.findConnection(holderId);
+        if (mSnapshotApplied || mSnapshotRequests >= MAX_SNAPSHOT_REQUESTS || holder == null) {
+            return;
+        }
+        mSnapshotRequests++;
+        sendCapabilities(holder, true);
+    }
+
+    //rebuilds the annotatables of a snapshot in one pass. The paths whose pen updates were
+    //received already are skipped, and so are the updates of the paths added.
+    private void applySnapshot(String holderId, JSONObject[] chunks) throws Exception {
+        mMirrored = videoRenderer != null && videoRenderer.isMirrored();
+        String localId = mSession.getConnection().getConnectionId();
+        HashMap<String, Integer> coveredSeqs = new HashMap<>();
+        try {
+            applySnapshotChunks(holderId, chunks, localId, coveredSeqs);
+        } finally {
+            for (Map.Entry<String, Integer> entry : coveredSeqs.entrySet()) {
+                getReorderBuffer(entry.getKey()).cover(entry.getValue());
+                //a stroke in flight that ended before is drawn from the snapshot
+                Stroke stroke = mRemoteStrokes.get(entry.getKey());
+                if (stroke != null && stroke.path != null && stroke.lastSeq >= 0
+                        && stroke.lastSeq - entry.getValue() <= 0) {
+                    stroke.path = null;
+                    stroke.paint = null;
+                    stroke.startPoint = false;
+                    stroke.lastSeq = -1;
+                    mLiveStrokes.invalidate();
+                }
+            }
+            releaseTimedOutUpdates();
+            invalidate();
+        }
+    }
+
+    private void applySnapshotChunks(String holderId, JSONObject[] chunks, String localId,
+                                     HashMap<String, Integer> coveredSeqs) throws Exception {
+        for (JSONObject chunk : chunks) {
+            AnnotationsTransform transform = getTransform(holderId, (float) chunk.getDouble("canvasWidth"),
+                    (float) chunk.getDouble("canvasHeight"), chunk.getBoolean("mirrored") != mMirrored);
+            JSONArray items = chunk.getJSONArray("items");
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                String cid = item.getString("cid");
+                int color = Color.parseColor(item.getString("color").toLowerCase());
+                if (AnnotationsSnapshot.ITEM_PATH.equals(item.getString("type"))) {
+                    int seq = item.optInt("seq", -1);
+                    if (seq >= 0 && !cid.equals(localId)) {
+                        AnnotationsReorderBuffer buffer = mReorderBuffers.get(cid);
+                        if (buffer != null && buffer.isApplied(seq)) {
+                            continue;
+                        }
+                        Integer covered = coveredSeqs.get(cid);
+                        if (covered == null || seq - covered > 0) {
+                            coveredSeqs.put(cid, seq);
+                        }
+                    }
+                    float[] points = mBinaryCodec.decodePoints(item.getString("points"));
+                    if (points.length == 0) {
+                        continue;
+                    }
+                    Stroke stroke = new Stroke();
+                    stroke.color = color;
+                    stroke.lineWidth = (float) item.getDouble("lineWidth");
+                    createPathAnnotatable(stroke);
+                    float x = transform.mapX(points[0]);
+                    float y = transform.mapY(points[1]);
+                    beginTouch(stroke, x, y);
+                    stroke.path.addPoint(x, y);
+                    for (int p = 2; p < points.length; p += 2) {
+                        x = transform.mapX(points[p]);
+                        y = transform.mapY(points[p + 1]);
+                        moveTouch(stroke, x, y, true);
+                        stroke.path.addPoint(x, y);
+                    }
+                    upTouch(stroke);
+                    stroke.lastSeq = seq;
+                    stroke.id = item.optInt("strokeId", -1);
+                    addAnnotatable(stroke, cid);
+                }
+                else if (AnnotationsSnapshot.ITEM_TEXT.equals(item.getString("type"))) {
+                    addSnapshotText(cid, transform.mapX((float) item.getDouble("x")),
+                            transform.mapY((float) item.getDouble("y")), item.getString("text"), color,
+                            item.optInt("strokeId", -1));
+                }
+            }
+        }
+    }
+
+    //the binary pen signals are sent only once every other participant advertised it can decode them,
+    //a participant that never sent its capabilities gets the JSON ones
+    private void updatePenFormat() {
+        List<Connection> connections = mSession.getConnections();
+        boolean binary = !connections.isEmpty();
+        for (Connection connection : connections) {
+            Boolean peer = mBinaryPenPeers.get(connection.getConnectionId());
+            binary &= peer != null && peer;
+        }
+        mBinaryPen = binary;
+    }
+
+    //the connection of the annotated subscriber, null when annotating the local publisher
+    private Connection getAnnotatedConnection() {
+        if ( mRemote != null && mRemote.getStream() != null ){
+            return mSession.findConnection(mRemote.getStream().getConnection().getConnectionId());
+        }
+        return null;
+    }
+
+    private String getAnnotatedConnectionId() {
+        if ( mRemote != null && mRemote.getStream() != null ){
+            return mRemote.getStream().getConnection().getConnectionId();
+        }
+        if ( mLocal != null && mLocal.getStream() != null ) {
+            return mLocal.getStream().getConnection().getConnectionId();
+        }
+        return null;
+    }
+
+    private String buildSignalFromText(float x, float y, String text, boolean start, boolean end, int strokeId) {
         JSONArray jsonArray = new JSONArray();
         JSONObject jsonObject = new JSONObject();
 
@@ -647,10 +1597,11 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
             jsonObject.put("videoWidth", videoWidth);
             jsonObject.put("videoHeight", videoHeight);
             jsonObject.put("canvasWidth", this.width);
-            jsonObject.put("canvasHeight", getDisplayHeight() - getActionBarHeight());
+            jsonObject.put("canvasHeight", getCanvasHeight());
             jsonObject.put("mirrored", mirrored);
             jsonObject.put("text", text);
             jsonObject.put("font", "16px Arial"); //TODO: Fix font type
+            jsonObject.put("strokeId", strokeId);
             jsonObject.put("platform", SIGNAL_PLATFORM);
             jsonArray.put(jsonObject);
         } catch (JSONException e) {
@@ -660,9 +1611,24 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     }
 
 
-    private String buildSignalFromPoint(float x, float y, boolean startPoint, boolean endPoint) {
+    private String buildSignalFromErase(String cid, int strokeId) {
         JSONArray jsonArray = new JSONArray();
         JSONObject jsonObject = new JSONObject();
+
+        try {
+            jsonObject.put("fromId", mSession.getConnection().getConnectionId());
+            jsonObject.put("cid", cid);
+            jsonObject.put("strokeId", strokeId);
+            jsonObject.put("platform", SIGNAL_PLATFORM);
+            jsonArray.put(jsonObject);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return jsonArray.toString();
+    }
+
+    private JSONObject buildPointUpdate(float x, float y, boolean startPoint, boolean endPoint, int seq, long timestamp) {
+        JSONObject jsonObject = new JSONObject();
         boolean mirrored = false;
 
         int videoWidth = 0;
@@ -684,8 +1650,8 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                 }
             }
             jsonObject.put("fromId", mSession.getConnection().getConnectionId());
-            jsonObject.put("fromX", mCurrentPath.getEndPoint().x);
-            jsonObject.put("fromY", mCurrentPath.getEndPoint().y);
+            jsonObject.put("fromX", mLocalStroke.path.getEndX());
+            jsonObject.put("fromY", mLocalStroke.path.getEndY());
             jsonObject.put("toX", x);
             jsonObject.put("toY", y);
             jsonObject.put("color", String.format("#%06X", (0xFFFFFF & mCurrentColor)));
@@ -693,214 +1659,233 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
             jsonObject.put("videoWidth", videoWidth);
             jsonObject.put("videoHeight", videoHeight);
             jsonObject.put("canvasWidth", this.width);
-            jsonObject.put("canvasHeight", getDisplayHeight() - getActionBarHeight());
+            jsonObject.put("canvasHeight", getCanvasHeight());
             jsonObject.put("mirrored", mirrored);
             jsonObject.put("smoothed", false);
             jsonObject.put("startPoint", startPoint);
             jsonObject.put("endPoint", endPoint);
+            jsonObject.put("seq", seq);
+            jsonObject.put("strokeId", mLocalStroke.id);
+            jsonObject.put("ts", timestamp);
             jsonObject.put("platform", SIGNAL_PLATFORM);
-
-            jsonArray.put(jsonObject);
         } catch (JSONException e) {
             e.printStackTrace();
         }
 
-        return jsonArray.toString();
+        return jsonObject;
     }
 
-    private void penAnnotations(Connection connection, String data) {
-        mode = Mode.Pen;
-
-        // Build object from JSON array
-        try {
-            JSONArray updates = new JSONArray(data);
-
-            for (int i = 0; i < updates.length(); i++) {
-                JSONObject json = updates.getJSONObject(i);
-
-                String id = (String) json.get("id");
-                if (json.get("mirrored") instanceof Number) {
-                    Number value = (Number) json.get("mirrored");
-                    mSignalMirrored = value.intValue() == 1;
-                } else {
-                    mSignalMirrored = (boolean) json.get("mirrored");
-                }
-
-                boolean initialPoint = false;
-                boolean secondPoint = false;
-                boolean endPoint = false;
-
-                if (!json.isNull("endPoint")) {
-                    if (json.get("endPoint") instanceof Number) {
-                        Number value = (Number) json.get("endPoint");
-                        endPoint = value.intValue() == 1;
-                    } else {
-                        endPoint = (boolean) json.get("endPoint");
-                    }
-                }
-                if (!json.isNull("startPoint")) {
-                    if (json.get("startPoint") instanceof Number) {
-                        Number value = (Number) json.get("startPoint");
-                        initialPoint = value.intValue() == 1;
-                    } else {
-                        initialPoint = (boolean) json.get("startPoint");
-                    }
-
-                    if (initialPoint) {
-
-                        isStartPoint = true;
-                    } else {
-                        // If the start point flag was already set, we received the next point in the sequence
-                        if (isStartPoint) {
-                            secondPoint = true;
-                            isStartPoint = false;
-                        }
-                    }
-                }
-                if (!json.isNull("color")) {
-                    mCurrentColor = Color.parseColor(((String) json.get("color")).toLowerCase());
-                }
-                if (!json.isNull("lineWidth")){
-                    mLineWidth = ((Number) json.get("lineWidth")).floatValue();
-                }
+    private AnnotationsSignalParser.PenUpdate buildPointUpdate(float x, float y, boolean startPoint, boolean endPoint, int seq,
+                                                               long timestamp, AnnotationsSignalParser.PenUpdate update) {
+        update.reset();
+        update.fields = AnnotationsSignalParser.PenUpdate.REQUIRED | AnnotationsSignalParser.PenUpdate.HAS_START_POINT
+                | AnnotationsSignalParser.PenUpdate.HAS_END_POINT | AnnotationsSignalParser.PenUpdate.HAS_SMOOTHED
+                | AnnotationsSignalParser.PenUpdate.HAS_COLOR | AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH
+                | AnnotationsSignalParser.PenUpdate.HAS_SEQ | AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID
+                | AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP;
+        update.fromX = mLocalStroke.path.getEndX();
+        update.fromY = mLocalStroke.path.getEndY();
+        update.toX = x;
+        update.toY = y;
+        update.color = mCurrentColor;
+        update.lineWidth = 2;
+        update.canvasWidth = this.width;
+        update.canvasHeight = getCanvasHeight();
+        update.mirrored = videoRenderer != null && videoRenderer.isMirrored();
+        update.startPoint = startPoint;
+        update.endPoint = endPoint;
+        update.seq = seq;
+        update.strokeId = mLocalStroke.id;
+        update.timestamp = timestamp;
+        return update;
+    }
 
-                float scale = 1;
-                float localWidth = 0;
-                float localHeight = 0;
-                if (videoRenderer != null) {
-                    localWidth = (float) videoRenderer.getVideoWidth();
-                    localHeight = (float) videoRenderer.getVideoHeight();
-                }
+    private void penAnnotations(Connection connection, AnnotationsSignalParser.PenSignal signal) {
+        mode = Mode.Pen;
 
-                if (localWidth == 0) {
-                    localWidth = getDisplayWidth();
-                }
-                if (localHeight == 0) {
-                    localHeight = getDisplayHeight();
+        String cid = connection.getConnectionId();
+        AnnotationsReorderBuffer buffer = getReorderBuffer(cid);
+        AnnotationsSignalParser.PenUpdate update = mPenUpdate;
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < signal.size(); i++) {
+            signal.get(i, update);
+            if (buffer.isRestarted(update)) {
+                //the sender started its sequence again, the pending updates come first
+                flushReorderBuffer(cid, false);
+                buffer.reset();
+            }
+            if (buffer.offer(update, now)) {
+                applyPenUpdate(cid, update, i == signal.size() - 1);
+                //the updates received ahead of this one
+                while (buffer.poll(update, now)) {
+                    applyPenUpdate(cid, update, false);
                 }
+            }
+        }
+        scheduleReorderTimeout();
+    }
 
-                Map<String, Float> canvas = new HashMap<>();
-                canvas.put("width", localWidth);
-                canvas.put("height", localHeight);
-
-                Map<String, Float> iCanvas = new HashMap<>();
-                iCanvas.put("width", ((Number) json.get("canvasWidth")).floatValue());
-                iCanvas.put("height", ((Number) json.get("canvasHeight")).floatValue());
+    private AnnotationsReorderBuffer getReorderBuffer(String cid) {
+        AnnotationsReorderBuffer buffer = mReorderBuffers.get(cid);
+        if (buffer == null) {
+            buffer = new AnnotationsReorderBuffer(AnnotationsReorderBuffer.DEFAULT_GAP_TIMEOUT,
+                    AnnotationsReorderBuffer.DEFAULT_MAX_PENDING);
+            mReorderBuffers.put(cid, buffer);
+        }
+        return buffer;
+    }
 
-                float canvasRatio = canvas.get("width") / canvas.get("height");
+    //applies the pending updates of a connection, skipping the missing ones
+    private void flushReorderBuffer(String cid, boolean remove) {
+        AnnotationsReorderBuffer buffer = remove ? mReorderBuffers.remove(cid) : mReorderBuffers.get(cid);
+        if (buffer != null) {
+            while (buffer.flush(mPenUpdate)) {
+                applyPenUpdate(cid, mPenUpdate, false);
+            }
+        }
+    }
 
-                if (canvasRatio < 0) {
-                    scale = canvas.get("width") / iCanvas.get("width");
-                } else {
-                    scale = canvas.get("height") / iCanvas.get("height");
-                }
+    private void releaseTimedOutUpdates() {
+        long now = SystemClock.uptimeMillis();
+        for (Map.Entry<String, AnnotationsReorderBuffer> entry : mReorderBuffers.entrySet()) {
+            while (entry.getValue().poll(mPenUpdate, now)) {
+                applyPenUpdate(entry.getKey(), mPenUpdate, false);
+            }
+        }
+        scheduleReorderTimeout();
+    }
 
-                float centerX = canvas.get("width") / 2f;
-                float centerY = canvas.get("height") / 2f;
+    private void scheduleReorderTimeout() {
+        long deadline = -1;
+        for (AnnotationsReorderBuffer buffer : mReorderBuffers.values()) {
+            long gapDeadline = buffer.getGapDeadline();
+            if (gapDeadline >= 0 && (deadline < 0 || gapDeadline < deadline)) {
+                deadline = gapDeadline;
+            }
+        }
+        if (mReorderPending) {
+            removeCallbacks(mReorderRunnable);
+            mReorderPending = false;
+        }
+        if (deadline >= 0) {
+            mReorderPending = true;
+            postDelayed(mReorderRunnable, Math.max(0, deadline - SystemClock.uptimeMillis()));
+        }
+    }
 
-                float iCenterX = iCanvas.get("width") / 2f;
-                float iCenterY = iCanvas.get("height") / 2f;
+    private void applyPenUpdate(String cid, AnnotationsSignalParser.PenUpdate update, boolean lastOfSignal) {
+        if (update.has(AnnotationsSignalParser.PenUpdate.HAS_TIMESTAMP)) {
+            mLatencyHistogram.record(System.currentTimeMillis() - update.timestamp);
+        }
+        Stroke stroke = getRemoteStroke(cid);
+        if (update.has(AnnotationsSignalParser.PenUpdate.HAS_STROKE_ID)) {
+            if (stroke.path != null && update.strokeId != stroke.id) {
+                //the end of the previous stroke was missed
+                addAnnotatable(stroke, cid);
+                stroke.startPoint = false;
+            }
+            stroke.id = update.strokeId;
+        }
+        else {
+            stroke.id = -1;
+        }
+        stroke.lastSeq = update.has(AnnotationsSignalParser.PenUpdate.HAS_SEQ) ? update.seq : -1;
 
+        mSignalMirrored = update.mirrored;
 
-                float fromX = centerX - (scale * (iCenterX - ((Number) json.get("fromX")).floatValue()));
-                float toX = centerX - (scale * (iCenterX - ((Number) json.get("toX")).floatValue()));
+        boolean initialPoint = false;
+        boolean secondPoint = false;
+        boolean endPoint = update.endPoint;
 
-                float fromY = centerY - (scale * (iCenterY - ((Number) json.get("fromY")).floatValue()));
-                float toY = centerY - (scale * (iCenterY - ((Number) json.get("toY")).floatValue()));
+        if (update.has(AnnotationsSignalParser.PenUpdate.HAS_START_POINT)) {
+            initialPoint = update.startPoint;
 
-                fromY = fromY - getActionBarHeight();
-                toY = toY - getActionBarHeight();
+            if (initialPoint) {
 
-                if (mSignalMirrored) {
-                    Log.i(LOG_TAG, "Signal is mirrored");
-                    fromX = this.width - fromX;
-                    toX = this.width - toX;
-                }
-                mMirrored = videoRenderer.isMirrored();
-                if (mMirrored) {
-                    Log.i("CanvasOffset", "Feed is mirrored");
-                    // Revert (Double negative)
-                    fromX = this.width - fromX;
-                    toX = this.width - toX;
+                stroke.startPoint = true;
+            } else {
+                // If the start point flag was already set, we received the next point in the sequence
+                if (stroke.startPoint) {
+                    secondPoint = true;
+                    stroke.startPoint = false;
                 }
+            }
+        }
+        if (update.has(AnnotationsSignalParser.PenUpdate.HAS_COLOR)) {
+            stroke.color = update.color;
+        }
+        if (update.has(AnnotationsSignalParser.PenUpdate.HAS_LINE_WIDTH)){
+            stroke.lineWidth = update.lineWidth;
+        }
 
-                boolean smoothed = false;
+        mMirrored = videoRenderer != null && videoRenderer.isMirrored();
+        float fromX;
+        float fromY;
+        float toX;
+        float toY;
+        if (isMappedForView(update)) {
+            fromX = update.localFromX;
+            fromY = update.localFromY;
+            toX = update.localToX;
+            toY = update.localToY;
+        } else {
+            AnnotationsTransform transform = getTransform(cid, update.canvasWidth,
+                    update.canvasHeight, mSignalMirrored != mMirrored);
+            fromX = transform.mapX(update.fromX);
+            toX = transform.mapX(update.toX);
+            fromY = transform.mapY(update.fromY);
+            toY = transform.mapY(update.toY);
+        }
 
-                if (!json.isNull("smoothed")) {
-                    if (json.get("smoothed") instanceof Number) {
-                        Number value = (Number) json.get("smoothed");
-                        smoothed = value.intValue() == 1;
-                    } else {
-                        smoothed = (boolean) json.get("smoothed");
-                    }
-                }
-                if (smoothed) {
-                    if (isStartPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-                    } else if (secondPoint) {
-                        beginTouch((toX + mCurrentPath.getEndPoint().x) / 2, (toY + mCurrentPath.getEndPoint().y) / 2);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-                    } else {
-                        moveTouch(toX, toY, true);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-
-                        if (endPoint) {
-                            try {
-                                addAnnotatable(connection.getConnectionId());
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, e.toString());
-                            }
-                            mAnnotationsActive = false;
-                        }
-                    }
-                } else {
-                    if (isStartPoint && endPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(fromX, fromY));
-                        // We have a straight line
-                        beginTouch(fromX, fromY);
-                        moveTouch(toX, toY, false);
-                        upTouch();
-                        try {
-                            addAnnotatable(connection.getConnectionId());
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, e.toString());
-                        }
-                    } else if (isStartPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(fromX, fromY));
-                        beginTouch(toX, toY);
-                    } else if (endPoint) {
-                        moveTouch(toX, toY, false);
-                        upTouch();
-                        try {
-                            addAnnotatable(connection.getConnectionId());
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, e.toString());
-                        }
-                        mAnnotationsActive = false;
-                    } else {
-                        moveTouch(toX, toY, false);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-                    }
-                }
+        if (stroke.path == null && !stroke.startPoint) {
+            //the start of the stroke was missed, continue it from here
+            createPathAnnotatable(stroke);
+            stroke.path.addPoint(fromX, fromY);
+            beginTouch(stroke, fromX, fromY);
+            secondPoint = false;
+        }
 
-                if (mType.contains("ios") && (i == updates.length()-1)){
-                    try {
-                        addAnnotatable(connection.getConnectionId());
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, e.toString());
-                    }
-                }
-                invalidate(); // Need this to finalize the drawing on the screen
+        boolean ended = false;
+        if (update.smoothed) {
+            if (stroke.startPoint) {
+                createPathAnnotatable(stroke);
+                stroke.path.addPoint(toX, toY);
+            } else if (secondPoint) {
+                beginTouch(stroke, (toX + stroke.path.getEndX()) / 2, (toY + stroke.path.getEndY()) / 2);
+                stroke.path.addPoint(toX, toY);
+            } else {
+                moveTouch(stroke, toX, toY, true);
+                stroke.path.addPoint(toX, toY);
+                ended = endPoint;
+            }
+        } else {
+            if (stroke.startPoint && endPoint) {
+                createPathAnnotatable(stroke);
+                stroke.path.addPoint(fromX, fromY);
+                // We have a straight line
+                beginTouch(stroke, fromX, fromY);
+                moveTouch(stroke, toX, toY, false);
+                upTouch(stroke);
+                ended = true;
+            } else if (stroke.startPoint) {
+                createPathAnnotatable(stroke);
+                stroke.path.addPoint(fromX, fromY);
+                beginTouch(stroke, toX, toY);
+            } else if (endPoint) {
+                moveTouch(stroke, toX, toY, false);
+                upTouch(stroke);
+                ended = true;
+            } else {
+                moveTouch(stroke, toX, toY, false);
+                stroke.path.addPoint(toX, toY);
             }
+        }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
+        invalidatePathTail(stroke.path, stroke.paint);
+        invalidateSegment(fromX, fromY, toX, toY, stroke.paint.getStrokeWidth());
+
+        if (ended || (mType.contains("ios") && lastOfSignal)) {
+            addAnnotatable(stroke, cid);
         }
     }
 
@@ -955,83 +1940,66 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                     }
                 }
 
-                float scale = 1;
-                float localWidth = 0;
-                float localHeight = 0;
-                if (videoRenderer != null) {
-                    localWidth = (float) videoRenderer.getVideoWidth();
-                    localHeight = (float) videoRenderer.getVideoHeight();
-                }
-
-                if (localWidth == 0) {
-                    localWidth = getDisplayWidth();
-                }
-                if (localHeight == 0) {
-                    localHeight = getDisplayHeight();
-                }
+                AnnotationsTransform transform = getTransform(connection.getConnectionId(),
+                        ((Number) json.get("canvasWidth")).floatValue(), ((Number) json.get("canvasHeight")).floatValue(), false);
 
-                Map<String, Float> canvas = new HashMap<>();
-                canvas.put("width", localWidth);
-                canvas.put("height", localHeight);
-
-                Map<String, Float> iCanvas = new HashMap<>();
-                iCanvas.put("width", ((Number) json.get("canvasWidth")).floatValue());
-                iCanvas.put("height", ((Number) json.get("canvasHeight")).floatValue());
-                float canvasRatio = canvas.get("width") / canvas.get("height");
-
-                if (canvasRatio < 0) {
-                    scale = canvas.get("width") / iCanvas.get("width");
-                } else {
-                    scale = canvas.get("height") / iCanvas.get("height");
-                }
+                float textX = transform.mapX(((Number) json.get("fromX")).floatValue());
+                float textY = transform.mapY(((Number) json.get("fromY")).floatValue());
 
-                Log.i(LOG_TAG, "Scale: " + scale);
-
-                float centerX = canvas.get("width") / 2f;
-                float centerY = canvas.get("height") / 2f;
-
-                float iCenterX = iCanvas.get("width") / 2f;
-                float iCenterY = iCanvas.get("height") / 2f;
-
-
-                float textX = centerX - (scale * (iCenterX - ((Number) json.get("fromX")).floatValue()));
-                float textY = centerY - (scale * (iCenterY - ((Number) json.get("fromY")).floatValue()));
-
-                textY = textY - getActionBarHeight();
-
-                EditText editText = new EditText(getContext());
-                editText.setVisibility(VISIBLE);
-                editText.setImeOptions(EditorInfo.IME_ACTION_DONE);
+                addRemoteText(connection.getConnectionId(), textX, textY, text, json.optInt("strokeId", -1));
+            }
 
-                // Add whatever you want as size
-                int editTextHeight = 70;
-                int editTextWidth = 200;
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
 
-                RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(editTextWidth, editTextHeight);
+    private void addRemoteText(String cid, float textX, float textY, String text, int strokeId) throws Exception {
+        EditText editText = addRemoteEditText(textX, textY, text);
+        editText.requestFocus();
 
-                //You could adjust the position
-                params.topMargin = (int) (textX);
-                params.leftMargin = (int) (textY);
-                this.addView(editText, params);
-                editText.setVisibility(VISIBLE);
-                editText.setSingleLine();
-                editText.setImeOptions(EditorInfo.IME_ACTION_DONE);
-                editText.requestFocus();
-                editText.setText(text);
-                editText.setTextSize(mTextSize);
+        createTextAnnotatable(editText, textX, textY);
+        mCurrentText.getEditText().setText(text.toString());
 
-                createTextAnnotatable(editText, textX, textY);
-                mCurrentText.getEditText().setText(text.toString());
+        mAnnotationsActive = false;
+        addAnnotatable(cid);
+        mCurrentAnnotatable.strokeId = strokeId;
+        mCurrentText = null;
+    }
 
-                mAnnotationsActive = false;
-                addAnnotatable(connection.getConnectionId());
-                mCurrentText = null;
-                invalidate(); // Need this to finalize the drawing on the screen
-            }
+    //adds a text of a snapshot, leaving the mode, the color and the text being edited as they are
+    private void addSnapshotText(String cid, float textX, float textY, String text, int color, int strokeId)
+            throws Exception {
+        EditText editText = addRemoteEditText(textX, textY, text);
+        Annotatable annotatable = new Annotatable(Mode.Text, new AnnotationsText(editText, textX, textY),
+                createTextPaint(color), cid);
+        annotatable.setType(Annotatable.AnnotatableType.TEXT);
+        annotatable.strokeId = strokeId;
+        mAnnotationsManager.addAnnotatable(annotatable);
+        commitAnnotatable(annotatable);
+    }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+    private EditText addRemoteEditText(float textX, float textY, String text) {
+        EditText editText = new EditText(getContext());
+        editText.setVisibility(VISIBLE);
+        editText.setImeOptions(EditorInfo.IME_ACTION_DONE);
+
+        // Add whatever you want as size
+        int editTextHeight = 70;
+        int editTextWidth = 200;
+
+        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(editTextWidth, editTextHeight);
+
+        //You could adjust the position
+        params.topMargin = (int) (textX);
+        params.leftMargin = (int) (textY);
+        this.addView(editText, params);
+        editText.setVisibility(VISIBLE);
+        editText.setSingleLine();
+        editText.setImeOptions(EditorInfo.IME_ACTION_DONE);
+        editText.setText(text);
+        editText.setTextSize(mTextSize);
+        return editText;
     }
 
     //add log events
@@ -1050,14 +2018,37 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         return true;
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        registerSignals();
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        mAttached = false;
+        unregisterSignals();
         this.loaded = false;
+        releaseCommittedLayer();
+        removeCallbacks(mInvalidateRunnable);
+        mInvalidatePending = false;
+        mDirtyRect.setEmpty();
+        flushPoints();
+        removeCallbacks(mReorderRunnable);
+        mReorderPending = false;
+        removeCallbacks(mSnapshotTimeoutRunnable);
     }
 
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        if (changed) {
+            invalidateGeometry();
+        }
+        mLiveStrokes.measure(MeasureSpec.makeMeasureSpec(r - l, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(b - t, MeasureSpec.EXACTLY));
+        mLiveStrokes.layout(0, 0, r - l, b - t);
     }
 
     @Override
@@ -1070,40 +2061,55 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
             if (mode == Mode.Pen) {
                 switch (event.getAction()) {
                     case MotionEvent.ACTION_DOWN: {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        beginTouch(x, y);
-                        mCurrentPath.addPoint(new PointF(x,y));
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x,y, true, false));
-                        invalidate();
+                        mLocalStroke.id = mPenCounters.nextStrokeId++;
+                        mLocalStroke.color = mCurrentColor;
+                        mLocalStroke.lineWidth = mLineWidth;
+                        createPathAnnotatable(mLocalStroke);
+                        beginTouch(mLocalStroke, x, y);
+                        mLocalStroke.path.addPoint(x, y);
+                        queuePoint(x, y, true, false);
+                        invalidatePathTail(mLocalStroke.path, mLocalStroke.paint);
                         addLogEvent(OpenTokConfig.LOG_ACTION_START_DRAWING, OpenTokConfig.LOG_VARIATION_SUCCESS);
                     }
                     break;
                     case MotionEvent.ACTION_MOVE: {
-                        moveTouch(x, y, true);
-
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x,y, false, false));
-                        mCurrentPath.addPoint(new PointF(x,y));
-                        invalidate();
+                        if (mLocalStroke.path == null) {
+                            break;
+                        }
+                        //the samples batched by the system since the last event come first
+                        for (int i = 0; i < event.getHistorySize(); i++) {
+                            penTouch(event.getHistoricalX(i), event.getHistoricalY(i));
+                        }
+                        penTouch(x, y);
                     }
                     break;
                     case MotionEvent.ACTION_UP: {
-                        upTouch();
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x,y, false, true));
-                        try {
-                            addAnnotatable(mSession.getConnection().getConnectionId());
-
-                        }catch (Exception e){
-                            Log.e(LOG_TAG, e.toString());
+                        if (mLocalStroke.path == null) {
+                            break;
                         }
-                        mAnnotationsActive = false;
-                        invalidate();
+                        upTouch(mLocalStroke);
+                        queuePoint(x, y, false, true);
+                        invalidatePathTail(mLocalStroke.path, mLocalStroke.paint);
+                        invalidateSegment(mLocalStroke.path.getEndX(), mLocalStroke.path.getEndY(), x, y, mLocalStroke.paint.getStrokeWidth());
+                        addAnnotatable(mLocalStroke, mSession.getConnection().getConnectionId());
                         addLogEvent(OpenTokConfig.LOG_ACTION_END_DRAWING, OpenTokConfig.LOG_VARIATION_SUCCESS);
                     }
                     break;
                 }
 
                 addLogEvent(OpenTokConfig.LOG_ACTION_FREEHAND, OpenTokConfig.LOG_VARIATION_SUCCESS);
+            } else if (mode == Mode.Eraser) {
+                switch (event.getAction()) {
+                    case MotionEvent.ACTION_DOWN:
+                    case MotionEvent.ACTION_MOVE: {
+                        eraseAt(x, y);
+                    }
+                    break;
+                    case MotionEvent.ACTION_UP: {
+                        addLogEvent(OpenTokConfig.LOG_ACTION_ERASER, OpenTokConfig.LOG_VARIATION_SUCCESS);
+                    }
+                    break;
+                }
             } else {
                 if (mode == Mode.Text) {
                     final String myString;
@@ -1162,13 +2168,15 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                             if (actionId == EditorInfo.IME_ACTION_DONE) {
                                 InputMethodManager imm = (InputMethodManager) v.getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
                                 imm.hideSoftInputFromWindow(v.getWindowToken(), 0);
-                                sendAnnotation(mode.toString(), buildSignalFromText(x, y, mCurrentText.getEditText().getText().toString(), false, true));
+                                int textId = mPenCounters.nextStrokeId++;
+                                sendAnnotation(mode.toString(), buildSignalFromText(x, y, mCurrentText.getEditText().getText().toString(), false, true, textId));
 
                                 //Create annotatable text and add it to the canvas
                                 mAnnotationsActive = false;
 
                                 try {
                                     addAnnotatable(mSession.getConnection().getConnectionId());
+                                    mCurrentAnnotatable.strokeId = textId;
 
                                 }catch (Exception e){
                                     Log.e(LOG_TAG, e.toString());
@@ -1193,6 +2201,17 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        if (mCommittedBitmap == null) {
+            //the layer is released when the view is detached
+            createCommittedLayer(getWidth(), getHeight());
+        }
+        if (mCommittedBitmap != null) {
+            if (mCommittedDirty) {
+                rebuildCommittedLayer();
+            }
+            canvas.drawBitmap(mCommittedBitmap, 0, 0, null);
+        }
+
         if (mAnnotationsActive) {
             if (mCurrentText != null && mCurrentText.getEditText() != null && !mCurrentText.getEditText().getText().toString().isEmpty()) {
                 TextPaint textpaint = new TextPaint(mCurrentPaint);
@@ -1220,26 +2239,14 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                     canvas.drawText(mCurrentText.getEditText().getText().toString(), mCurrentText.getX(), 340, mCurrentPaint);
                 }
             }
-            if ( mCurrentPath != null ) {
-                canvas.drawPath(mCurrentPath, mCurrentPaint);
-            }
         }
-
-        for (Annotatable drawing : mAnnotationsManager.getAnnotatableList()) {
-            if (drawing.getType().equals(Annotatable.AnnotatableType.PATH)) {
-                canvas.drawPath(drawing.getPath(), drawing.getPaint());
-            }
-
-            if (drawing.getType().equals(Annotatable.AnnotatableType.TEXT)) {
-                canvas.drawText(drawing.getText().getEditText().getText().toString(), drawing.getText().x, drawing.getText().y, drawing.getPaint());
-            }
-        }
-
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        createCommittedLayer(w, h);
+        invalidateGeometry();
     }
 
     @Override
@@ -1262,15 +2269,27 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
             //screenshot capture
             mode = Mode.Capture;
             if (videoRenderer != null) {
-                Bitmap bmp = videoRenderer.captureScreenshot();
+                AnnotationsVideoRenderer.ScreenshotCallback callback = new AnnotationsVideoRenderer.ScreenshotCallback() {
+                    @Override
+                    public void onScreenshotCaptured(Bitmap bmp) {
+                        if (bmp != null) {
 
-                if (bmp != null) {
+                            if (mListener != null) {
+                                mListener.onScreencaptureReady(bmp);
+                            }
 
-                    if (mListener != null) {
-                        mListener.onScreencaptureReady(bmp);
+                            addLogEvent(OpenTokConfig.LOG_ACTION_SCREENCAPTURE, OpenTokConfig.LOG_VARIATION_SUCCESS);
+                        }
                     }
-
-                    addLogEvent(OpenTokConfig.LOG_ACTION_SCREENCAPTURE, OpenTokConfig.LOG_VARIATION_SUCCESS);
+                };
+                if (mScreenshotMode == ScreenshotMode.Frame) {
+                    //the frame is converted on background threads
+                    videoRenderer.captureScreenshot(callback);
+                }
+                else {
+                    //the annotations are drawn with the vertical offset of the transforms
+                    videoRenderer.captureRenderedScreenshot(mScreenshotMode == ScreenshotMode.RenderedFrameWithAnnotations
+                            ? copyCommittedLayer() : null, updateGeometry().actionBarHeight, callback);
                 }
             }
         }
@@ -1315,39 +2334,75 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
     @Override
     public void onSignalReceived(Session session, String type, String data, Connection connection) {
-        mType = type;
+        if (isRemoteAnnotation(session, type, connection)) {
+            try {
+                handleAnnotation(type, decodeAnnotation(mSignalParser, type, data), connection);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Ensure that we only handle signals from other users on the current canvas
+    private static boolean isRemoteAnnotation(Session session, String type, Connection connection) {
         String mycid = session.getConnection().getConnectionId();
         String cid = connection.getConnectionId();
 
-        if (!cid.equals(mycid)) { // Ensure that we only handle signals from other users on the current canvas
-            if (type.contains(SIGNAL_TYPE)) {
-                this.setVisibility(VISIBLE);
-                if (!loaded){
-                    resize();
-                    loaded = true;
-                }
+        return !cid.equals(mycid) && (type.contains(SIGNAL_TYPE) || type.equals(CAPS_SIGNAL_TYPE));
+    }
+
+    //returns the decoded pen updates for the pen signals, and the signal data for the rest
+    private static Object decodeAnnotation(AnnotationsSignalParser parser, String type, String data) throws JSONException {
+        if (type.contains(Mode.Pen.toString())) {
+            return parser.decode(data);
+        }
+        return data;
+    }
 
-                if (type.contains(Mode.Pen.toString())) {
-                    Log.i(LOG_TAG, "New pen annotations is received");
-                    penAnnotations(connection, data);
+    private void handleAnnotation(String type, Object update, Connection connection) {
+        if (type.equals(CAPS_SIGNAL_TYPE)) {
+            capabilitiesAnnotation(connection, (String) update);
+            return;
+        }
+        mType = type;
+        this.setVisibility(VISIBLE);
+        if (!loaded){
+            resize();
+            loaded = true;
+        }
+
+        if (type.contains(Mode.Pen.toString())) {
+            Log.i(LOG_TAG, "New pen annotations is received");
+            penAnnotations(connection, (AnnotationsSignalParser.PenSignal) update);
+        } else {
+            String data = (String) update;
+            if (type.equalsIgnoreCase(Mode.Clear.toString())) {
+                Log.i(LOG_TAG, "New clear annotations is received");
+                mode = Mode.Clear;
+                flushReorderBuffer(connection.getConnectionId(), false);
+                clearCanvas(true, connection.getConnectionId());
+            } else {
+                if (type.equalsIgnoreCase(Mode.Done.toString())) {
+                    Log.i(LOG_TAG, "New done annotations is received");
+                    mode = Mode.Done;
+                    flushReorderBuffer(connection.getConnectionId(), true);
+                    clearAll(true, connection.getConnectionId());
                 } else {
-                    if (type.equalsIgnoreCase(Mode.Clear.toString())) {
-                        Log.i(LOG_TAG, "New clear annotations is received");
-                        mode = Mode.Clear;
-                        clearCanvas(true, connection.getConnectionId());
+                    if (type.equalsIgnoreCase(Mode.Text.toString())) {
+                        Log.i(LOG_TAG, "New text annotations is received");
+                        try {
+                            textAnnotation(connection, data);
+                        }catch (Exception e) {
+                            Log.e(LOG_TAG, e.toString());
+                        }
                     } else {
-                        if (type.equalsIgnoreCase(Mode.Done.toString())) {
-                            Log.i(LOG_TAG, "New done annotations is received");
-                            mode = Mode.Done;
-                            clearAll(true, connection.getConnectionId());
+                        if (type.equalsIgnoreCase(Mode.Eraser.toString())) {
+                            Log.i(LOG_TAG, "New eraser annotations is received");
+                            eraseAnnotation(connection, data);
                         } else {
-                            if (type.equalsIgnoreCase(Mode.Text.toString())) {
-                                Log.i(LOG_TAG, "New text annotations is received");
-                                try {
-                                    textAnnotation(connection, data);
-                                }catch (Exception e) {
-                                    Log.e(LOG_TAG, e.toString());
-                                }
+                            if (type.equals(SNAPSHOT_SIGNAL_TYPE)) {
+                                Log.i(LOG_TAG, "New snapshot annotations is received");
+                                snapshotAnnotation(connection, data);
                             }
                         }
                     }
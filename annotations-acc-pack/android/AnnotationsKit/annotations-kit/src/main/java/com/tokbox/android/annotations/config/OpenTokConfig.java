@@ -14,6 +14,7 @@ public class OpenTokConfig {
     public static final String LOG_ACTION_TEXT = "Text";
     public static final String LOG_ACTION_SCREENCAPTURE = "ScreenCapture";
     public static final String LOG_ACTION_ERASE = "Erase";
+    public static final String LOG_ACTION_ERASER = "Eraser";
     public static final String LOG_ACTION_DONE = "DONE";
     public static final String LOG_ACTION_USE_TOOLBAR = "UseToolbar";
 
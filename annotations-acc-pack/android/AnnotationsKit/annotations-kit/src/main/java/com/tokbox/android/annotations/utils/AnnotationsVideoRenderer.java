@@ -2,8 +2,16 @@ package com.tokbox.android.annotations.utils;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
+import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+import android.view.SurfaceHolder;
 import android.view.View;
 
 import com.opentok.android.BaseVideoRenderer;
@@ -12,6 +20,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -19,11 +29,32 @@ import javax.microedition.khronos.opengles.GL10;
 
 public class AnnotationsVideoRenderer extends BaseVideoRenderer {
 
+    private static final String LOG_TAG = AnnotationsVideoRenderer.class.getSimpleName();
+
     private Context mContext;
 
     private GLSurfaceView mView;
     private MyRenderer mRenderer;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    //time to wait for the GL thread before a rendered screenshot is converted on the CPU instead
+    private static final long RENDERED_SCREENSHOT_TIMEOUT = 500;
+    //pixels of the last screenshot, reused by the next one
+    private int[] mPixels;
+
+    /**
+     * Monitors the screenshots captured asynchronously
+     */
+    public interface ScreenshotCallback {
+
+        /**
+         * Invoked on the main thread when the screenshot is ready
+         *
+         * @param bitmap the screenshot, or null if there is no frame to capture or another capture is in progress
+         */
+        void onScreenshotCaptured(Bitmap bitmap);
+    }
+
     public int getDefaultWidth() {
         return defaultWidth;
     }
@@ -54,7 +85,7 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
         private ShortBuffer mDrawListBuffer;
 
         boolean mVideoFitEnabled = true;
-        boolean mVideoDisabled = false;
+        volatile boolean mVideoDisabled = false;
 
         // number of coordinates per vertex in this array
         static final int COORDS_PER_VERTEX = 3;
@@ -85,28 +116,69 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
         private final String fragmentShaderCode = "precision mediump float;\n"
                 + "uniform sampler2D Ytex;\n"
                 + "uniform sampler2D Utex,Vtex;\n"
+                + "uniform vec2 Yscale,UVscale;\n"
                 + "varying vec2 vTextureCoord;\n"
                 + "void main(void) {\n"
                 + "  float nx,ny,r,g,b,y,u,v;\n"
                 + "  mediump vec4 txl,ux,vx;"
                 + "  nx=vTextureCoord[0];\n"
                 + "  ny=vTextureCoord[1];\n"
-                + "  y=texture2D(Ytex,vec2(nx,ny)).r;\n"
-                + "  u=texture2D(Utex,vec2(nx,ny)).r;\n"
-                + "  v=texture2D(Vtex,vec2(nx,ny)).r;\n"
+                + "  y=texture2D(Ytex,vec2(nx,ny)*Yscale).r;\n"
+                + "  u=texture2D(Utex,vec2(nx,ny)*UVscale).r;\n"
+                + "  v=texture2D(Vtex,vec2(nx,ny)*UVscale).r;\n"
                 + "  y=1.1643*(y-0.0625);\n"
                 + "  u=u-0.5;\n" + "  v=v-0.5;\n" + "  r=y+1.5958*v;\n"
                 + "  g=y-0.39173*u-0.81290*v;\n" + "  b=y+2.017*u;\n"
                 + "  gl_FragColor=vec4(r,g,b,1.0);\n" + "}\n";
 
+        //draws the annotations overlay of the captures, premultiplied
+        private final String overlayShaderCode = "precision mediump float;\n"
+                + "uniform sampler2D Otex;\n"
+                + "varying vec2 vTextureCoord;\n"
+                + "void main(void) {\n"
+                + "  gl_FragColor=texture2D(Otex,vTextureCoord);\n" + "}\n";
+
+        //latest frame delivered, not drawn yet. The producer swaps it and never waits for the GL thread.
+        final AtomicReference<Frame> mPendingFrame = new AtomicReference<>();
+        //frame pipeline counters, updated by the producer and the GL thread
+        final RendererStats mStats = new RendererStats();
+        volatile boolean mTraceEnabled = false;
+        //guards the current and pinned frames, never held during GL calls
         ReentrantLock mFrameLock = new ReentrantLock();
-        Frame mCurrentFrame;
+        //frame drawn, replaced on the GL thread only
+        volatile Frame mCurrentFrame;
+        //whether the textures hold the current frame
+        private boolean mFrameUploaded;
+        //frame being captured, recycled once the capture is done if it was replaced meanwhile
+        Frame mPinnedFrame;
+        boolean mPinnedFrameReplaced;
 
         private int mProgram;
         private int mTextureWidth;
         private int mTextureHeight;
+        //allocated size of the textures, they only grow and smaller frames use a part of them
+        private int mTextureAllocWidth;
+        private int mTextureAllocHeight;
+
+        //GLES3 only: the planes are streamed through two pixel buffers used in turn
+        private boolean mPixelBuffersEnabled;
+        private final int[] mPixelBuffers = new int[2];
+        private int mPixelBufferIndex;
         private int mViewportWidth;
         private int mViewportHeight;
+        //whether the GL thread has a surface to render to, cleared when it is paused or destroyed
+        volatile boolean mSurfaceReady;
+        //scale of the frame in the viewport, x and y
+        private final float[] mFrameScale = new float[2];
+
+        //offscreen target of the captures, and the pixels read back from it
+        private int mOverlayProgram;
+        private final int[] mCaptureFramebuffer = new int[1];
+        private final int[] mCaptureTexture = new int[1];
+        private final int[] mOverlayTexture = new int[1];
+        private int mCaptureWidth;
+        private int mCaptureHeight;
+        private ByteBuffer mCapturePixels;
 
         public MyRenderer() {
             ByteBuffer bb = ByteBuffer.allocateDirect(mXYZCoords.length * 4);
@@ -147,9 +219,40 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
             // program
             GLES20.glLinkProgram(mProgram);
 
-            int positionHandle = GLES20.glGetAttribLocation(mProgram,
+            setVertexAttributes(mProgram);
+
+            GLES20.glUseProgram(mProgram);
+            int i = GLES20.glGetUniformLocation(mProgram, "Ytex");
+            GLES20.glUniform1i(i, 0); /* Bind Ytex to texture unit 0 */
+
+            i = GLES20.glGetUniformLocation(mProgram, "Utex");
+            GLES20.glUniform1i(i, 1); /* Bind Utex to texture unit 1 */
+
+            i = GLES20.glGetUniformLocation(mProgram, "Vtex");
+            GLES20.glUniform1i(i, 2); /* Bind Vtex to texture unit 2 */
+
+            mTextureWidth = 0;
+            mTextureHeight = 0;
+
+            //the GL objects of the previous context are gone
+            mTextureIds[0] = 0;
+            mTextureAllocWidth = 0;
+            mTextureAllocHeight = 0;
+            mPixelBuffers[0] = 0;
+            mPixelBuffers[1] = 0;
+            mPixelBuffersEnabled = isGles3();
+            mOverlayProgram = 0;
+            mCaptureFramebuffer[0] = 0;
+            mCaptureTexture[0] = 0;
+            mOverlayTexture[0] = 0;
+            mCaptureWidth = 0;
+            mCaptureHeight = 0;
+        }
+
+        private void setVertexAttributes(int program) {
+            int positionHandle = GLES20.glGetAttribLocation(program,
                     "aPosition");
-            int textureHandle = GLES20.glGetAttribLocation(mProgram,
+            int textureHandle = GLES20.glGetAttribLocation(program,
                     "aTextureCoord");
 
             GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX,
@@ -163,19 +266,6 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
                     TEXTURECOORDS_PER_VERTEX * 4, mTextureBuffer);
 
             GLES20.glEnableVertexAttribArray(textureHandle);
-
-            GLES20.glUseProgram(mProgram);
-            int i = GLES20.glGetUniformLocation(mProgram, "Ytex");
-            GLES20.glUniform1i(i, 0); /* Bind Ytex to texture unit 0 */
-
-            i = GLES20.glGetUniformLocation(mProgram, "Utex");
-            GLES20.glUniform1i(i, 1); /* Bind Utex to texture unit 1 */
-
-            i = GLES20.glGetUniformLocation(mProgram, "Vtex");
-            GLES20.glUniform1i(i, 2); /* Bind Vtex to texture unit 2 */
-
-            mTextureWidth = 0;
-            mTextureHeight = 0;
         }
 
         static void initializeTexture(int name, int id, int width, int height) {
@@ -194,23 +284,36 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
                     GLES20.GL_UNSIGNED_BYTE, null);
         }
 
+        //must be called with mProgram in use
         void setupTextures(Frame frame) {
-            if (mTextureIds[0] != 0) {
-                GLES20.glDeleteTextures(3, mTextureIds, 0);
+            if (mTextureIds[0] == 0) {
+                GLES20.glGenTextures(3, mTextureIds, 0);
             }
-            GLES20.glGenTextures(3, mTextureIds, 0);
 
             int w = frame.getWidth();
             int h = frame.getHeight();
-            int hw = (w + 1) >> 1;
-            int hh = (h + 1) >> 1;
+            if (w > mTextureAllocWidth || h > mTextureAllocHeight) {
+                //grows to fit both sizes, so that rotations do not reallocate again
+                mTextureAllocWidth = Math.max(w, mTextureAllocWidth);
+                mTextureAllocHeight = Math.max(h, mTextureAllocHeight);
+                int hw = (mTextureAllocWidth + 1) >> 1;
+                int hh = (mTextureAllocHeight + 1) >> 1;
+
+                initializeTexture(GLES20.GL_TEXTURE0, mTextureIds[0], mTextureAllocWidth, mTextureAllocHeight);
+                initializeTexture(GLES20.GL_TEXTURE1, mTextureIds[1], hw, hh);
+                initializeTexture(GLES20.GL_TEXTURE2, mTextureIds[2], hw, hh);
+            }
 
-            initializeTexture(GLES20.GL_TEXTURE0, mTextureIds[0], w, h);
-            initializeTexture(GLES20.GL_TEXTURE1, mTextureIds[1], hw, hh);
-            initializeTexture(GLES20.GL_TEXTURE2, mTextureIds[2], hw, hh);
+            //only the part of the textures holding the frame is sampled
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(mProgram, "Yscale"),
+                    (float) w / mTextureAllocWidth, (float) h / mTextureAllocHeight);
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(mProgram, "UVscale"),
+                    (float) ((w + 1) >> 1) / ((mTextureAllocWidth + 1) >> 1),
+                    (float) ((h + 1) >> 1) / ((mTextureAllocHeight + 1) >> 1));
 
-            mTextureWidth = frame.getWidth();
-            mTextureHeight = frame.getHeight();
+            mTextureWidth = w;
+            mTextureHeight = h;
+            mFrameUploaded = false;
         }
 
         void updateTextures(Frame frame) {
@@ -227,11 +330,31 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
             bb.clear();
 
             if (bb.remaining() == y_size + uv_size * 2) {
-                bb.position(0);
-
                 GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
                 GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
 
+                if (mPixelBuffersEnabled && fillPixelBuffer(bb)) {
+                    //the offsets are in the bound pixel buffer, the texture updates do not wait for the copy
+                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[0]);
+                    GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                            height, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, 0);
+
+                    GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[1]);
+                    GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, half_width,
+                            half_height, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, y_size);
+
+                    GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[2]);
+                    GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, half_width,
+                            half_height, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, y_size + uv_size);
+
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                    return;
+                }
+
+                bb.position(0);
                 GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
                 GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[0]);
                 GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
@@ -258,11 +381,51 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
 
         }
 
+        //copies the planes into the next pixel buffer and leaves it bound, false if it failed
+        private boolean fillPixelBuffer(ByteBuffer planes) {
+            if (mPixelBuffers[0] == 0) {
+                GLES30.glGenBuffers(2, mPixelBuffers, 0);
+            }
+            mPixelBufferIndex ^= 1;
+            int size = planes.remaining();
+
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mPixelBuffers[mPixelBufferIndex]);
+            //orphans the storage, the driver keeps the previous one until its texture update is done
+            GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+            ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size,
+                    GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+            if (mapped == null) {
+                Log.w(LOG_TAG, "Pixel buffer mapping failed, uploading the frames from client memory");
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                mPixelBuffersEnabled = false;
+                return false;
+            }
+            mapped.put(planes);
+            if (!GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER)) {
+                //the buffer content was lost
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                return false;
+            }
+            return true;
+        }
+
+        //a context created for GLES2 is a GLES3 one on most devices supporting it
+        private static boolean isGles3() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                return false;
+            }
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            //"OpenGL ES <major>.<minor> <vendor information>"
+            return version != null && version.startsWith("OpenGL ES ") && version.length() > 10
+                    && version.charAt(10) >= '3' && version.charAt(10) <= '9';
+        }
+
         @Override
         public void onSurfaceChanged(GL10 gl, int width, int height) {
             GLES20.glViewport(0, 0, width, height);
             mViewportWidth = width;
             mViewportHeight = height;
+            mSurfaceReady = width > 0 && height > 0;
         }
 
         @Override
@@ -270,41 +433,22 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
             gl.glClearColor(0, 0, 0, 1);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-            mFrameLock.lock();
-            if (mCurrentFrame != null && !mVideoDisabled) {
+            latchFrame();
+            Frame frame = mCurrentFrame;
+            if (frame != null && !mVideoDisabled) {
                 GLES20.glUseProgram(mProgram);
+                uploadFrame(frame);
 
-                if (mTextureWidth != mCurrentFrame.getWidth()
-                        || mTextureHeight != mCurrentFrame.getHeight()) {
-                    setupTextures(mCurrentFrame);
-                }
-                updateTextures(mCurrentFrame);
-
+                boolean traced = beginTraceSection("AnnotationsVideoRenderer.draw");
+                long start = System.nanoTime();
                 Matrix.setIdentityM(mScaleMatrix, 0);
-                float scaleX = 1.0f, scaleY = 1.0f;
-                float ratio = (float) mCurrentFrame.getWidth()
-                        / mCurrentFrame.getHeight();
-                float vratio = (float) mViewportWidth / mViewportHeight;
-
-
-                if (mVideoFitEnabled) {
-                    if (ratio > vratio) {
-                        scaleY = vratio / ratio;
-                    } else {
-                        scaleX = ratio / vratio;
-                    }
-                } else {
-                    if (ratio < vratio) {
-                        scaleY = vratio / ratio;
-                    } else {
-                        scaleX = ratio / vratio;
-                    }
-                }
+                updateFrameScale(frame);
+                float scaleX = mFrameScale[0], scaleY = mFrameScale[1];
 
 //                Log.i("RenderFrame", "Scale: " + scaleX + ", " + scaleY);
 
                 Matrix.scaleM(mScaleMatrix, 0,
-                        scaleX * (mCurrentFrame.isMirroredX() ? -1.0f : 1.0f),
+                        scaleX * (frame.isMirroredX() ? -1.0f : 1.0f),
                         scaleY, 1);
 
                 int mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram,
@@ -314,22 +458,273 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
 
                 GLES20.glDrawElements(GLES20.GL_TRIANGLES, mVertexIndex.length,
                         GLES20.GL_UNSIGNED_SHORT, mDrawListBuffer);
+                mStats.recordRendered(System.nanoTime() - start);
+                endTraceSection(traced);
             } else {
                 //black frame when video is disabled
                 gl.glClearColor(0, 0, 0, 1);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             }
+        }
+
+        //makes the latest delivered frame the current one, releases it if the video is disabled
+        private void latchFrame() {
+            Frame frame = mPendingFrame.getAndSet(null);
+            if (frame == null && (!mVideoDisabled || mCurrentFrame == null)) {
+                return;
+            }
+            mFrameLock.lock();
+            if (mCurrentFrame != null) {
+                recycleFrame(mCurrentFrame);
+            }
+            mCurrentFrame = null;
+            if (frame != null) {
+                if (mVideoDisabled) {
+                    frame.recycle();
+                } else {
+                    mCurrentFrame = frame;
+                }
+            }
             mFrameLock.unlock();
+            mFrameUploaded = false;
+        }
+
+        //uploads the current frame to the textures, unless they already hold it
+        private boolean uploadFrame(Frame frame) {
+            if (mTextureWidth != frame.getWidth() || mTextureHeight != frame.getHeight()) {
+                setupTextures(frame);
+            }
+            if (!mFrameUploaded) {
+                boolean traced = beginTraceSection("AnnotationsVideoRenderer.upload");
+                long start = System.nanoTime();
+                updateTextures(frame);
+                mStats.recordUpload(System.nanoTime() - start);
+                endTraceSection(traced);
+                mFrameUploaded = mTextureWidth != 0;
+            }
+            return mTextureWidth != 0;
+        }
+
+        //systrace sections, available from API 18. Returns whether the section must be ended.
+        boolean beginTraceSection(String name) {
+            if (mTraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.beginSection(name);
+                return true;
+            }
+            return false;
+        }
+
+        static void endTraceSection(boolean traced) {
+            if (traced && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.endSection();
+            }
+        }
+
+        private void updateFrameScale(Frame frame) {
+            float scaleX = 1.0f, scaleY = 1.0f;
+            float ratio = (float) frame.getWidth()
+                    / frame.getHeight();
+            float vratio = (float) mViewportWidth / mViewportHeight;
+
+
+            if (mVideoFitEnabled) {
+                if (ratio > vratio) {
+                    scaleY = vratio / ratio;
+                } else {
+                    scaleX = ratio / vratio;
+                }
+            } else {
+                if (ratio < vratio) {
+                    scaleY = vratio / ratio;
+                } else {
+                    scaleX = ratio / vratio;
+                }
+            }
+            mFrameScale[0] = scaleX;
+            mFrameScale[1] = scaleY;
+        }
+
+        /**
+         * Renders the current frame as it is displayed, at its own size, into an offscreen buffer
+         * and reads it back. It must be called on the GL thread.
+         * @param overlay the annotations drawn over the view, or null
+         * @param overlayOffsetY vertical offset of the overlay in the view, in pixels
+         * @return the capture, or null if there is no frame to capture
+         */
+        Bitmap captureFrame(Bitmap overlay, float overlayOffsetY) {
+            latchFrame();
+            Frame frame = mCurrentFrame;
+            if (frame == null || mVideoDisabled) {
+                return null;
+            }
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+
+            GLES20.glUseProgram(mProgram);
+            if (!uploadFrame(frame) || !setupCaptureTarget(width, height)) {
+                return null;
+            }
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mCaptureFramebuffer[0]);
+            GLES20.glViewport(0, 0, width, height);
+            GLES20.glClearColor(0, 0, 0, 1);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            //glReadPixels returns the bottom row first, so the capture is drawn upside down
+            float mirror = frame.isMirroredX() ? -1.0f : 1.0f;
+            Matrix.setIdentityM(mScaleMatrix, 0);
+            Matrix.scaleM(mScaleMatrix, 0, mirror, -1.0f, 1);
+            drawQuad(mProgram);
+
+            if (overlay != null && mViewportWidth > 0 && mViewportHeight > 0) {
+                //the overlay covers the viewport, the frame covers mFrameScale of it
+                updateFrameScale(frame);
+                drawOverlay(overlay, 1.0f / mFrameScale[0], -1.0f / mFrameScale[1],
+                        -2.0f * overlayOffsetY / mViewportHeight);
+            }
+
+            mCapturePixels.clear();
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mCapturePixels);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(0, 0, mViewportWidth, mViewportHeight);
+
+            //the RGBA bytes are the memory layout of ARGB_8888
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCapturePixels.rewind();
+            bitmap.copyPixelsFromBuffer(mCapturePixels);
+            return bitmap;
+        }
+
+        //(re)allocates the offscreen buffer when the frame size changes
+        private boolean setupCaptureTarget(int width, int height) {
+            if (mCaptureFramebuffer[0] != 0 && mCaptureWidth == width && mCaptureHeight == height) {
+                return true;
+            }
+            if (mCaptureFramebuffer[0] == 0) {
+                GLES20.glGenFramebuffers(1, mCaptureFramebuffer, 0);
+                GLES20.glGenTextures(1, mCaptureTexture, 0);
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCaptureTexture[0]);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mCaptureFramebuffer[0]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mCaptureTexture[0], 0);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                Log.e(LOG_TAG, "Incomplete capture framebuffer: " + status);
+                mCaptureWidth = 0;
+                mCaptureHeight = 0;
+                return false;
+            }
+
+            if (mCapturePixels == null || mCapturePixels.capacity() < width * height * 4) {
+                mCapturePixels = ByteBuffer.allocateDirect(width * height * 4);
+                mCapturePixels.order(ByteOrder.nativeOrder());
+            }
+            mCaptureWidth = width;
+            mCaptureHeight = height;
+            return true;
+        }
+
+        //the offset moves the overlay in the viewport, in normalized coordinates
+        private void drawOverlay(Bitmap overlay, float scaleX, float scaleY, float offsetY) {
+            if (mOverlayProgram == 0) {
+                mOverlayProgram = GLES20.glCreateProgram();
+                GLES20.glAttachShader(mOverlayProgram, loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode));
+                GLES20.glAttachShader(mOverlayProgram, loadShader(GLES20.GL_FRAGMENT_SHADER, overlayShaderCode));
+                GLES20.glLinkProgram(mOverlayProgram);
+                GLES20.glGenTextures(1, mOverlayTexture, 0);
+            }
+            //texture unit 3, the units 0 to 2 keep the frame planes
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOverlayTexture[0]);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, overlay, 0);
+
+            GLES20.glUseProgram(mOverlayProgram);
+            setVertexAttributes(mOverlayProgram);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mOverlayProgram, "Otex"), 3);
+            Matrix.setIdentityM(mScaleMatrix, 0);
+            Matrix.scaleM(mScaleMatrix, 0, scaleX, scaleY, 1);
+            Matrix.translateM(mScaleMatrix, 0, 0, offsetY, 0);
+
+            //the bitmap is premultiplied
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            drawQuad(mOverlayProgram);
+            GLES20.glDisable(GLES20.GL_BLEND);
+
+            GLES20.glUseProgram(mProgram);
+            setVertexAttributes(mProgram);
+        }
+
+        private void drawQuad(int program) {
+            int mMVPMatrixHandle = GLES20.glGetUniformLocation(program,
+                    "uMVPMatrix");
+            GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
+                    mScaleMatrix, 0);
+
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, mVertexIndex.length,
+                    GLES20.GL_UNSIGNED_SHORT, mDrawListBuffer);
         }
 
         public void displayFrame(Frame frame) {
+            Frame superseded = mPendingFrame.getAndSet(frame);
+            if (superseded != null) {
+                //never drawn, so neither uploaded nor pinned
+                superseded.recycle();
+                mStats.recordReplaced();
+            }
+        }
+
+        //returns the current frame, kept until unpinFrame is called
+        Frame pinCurrentFrame() {
+            mFrameLock.lock();
+            try {
+                if (mPinnedFrame != null || mCurrentFrame == null || mVideoDisabled) {
+                    return null;
+                }
+                mPinnedFrame = mCurrentFrame;
+                mPinnedFrameReplaced = false;
+                return mPinnedFrame;
+            } finally {
+                mFrameLock.unlock();
+            }
+        }
+
+        void unpinFrame() {
             mFrameLock.lock();
-            if (this.mCurrentFrame != null) {
-                this.mCurrentFrame.recycle();
+            if (mPinnedFrame != null && mPinnedFrameReplaced) {
+                mPinnedFrame.recycle();
             }
-            this.mCurrentFrame = frame;
+            mPinnedFrame = null;
             mFrameLock.unlock();
+        }
 
+        //must be called with the frame lock held
+        private void recycleFrame(Frame frame) {
+            if (frame == mPinnedFrame) {
+                mPinnedFrameReplaced = true;
+            }
+            else {
+                frame.recycle();
+            }
         }
 
         public static int loadShader(int type, String shaderCode) {
@@ -341,19 +736,16 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
             return shader;
         }
 
+        //the current frame is released by the GL thread on its next draw
         public void disableVideo(boolean b) {
-            mFrameLock.lock();
-
             mVideoDisabled = b;
 
             if (mVideoDisabled) {
-                if (this.mCurrentFrame != null) {
-                    this.mCurrentFrame.recycle();
+                Frame frame = mPendingFrame.getAndSet(null);
+                if (frame != null) {
+                    frame.recycle();
                 }
-                this.mCurrentFrame = null;
             }
-
-            mFrameLock.unlock();
         }
 
         public void enableVideoFit(boolean enableVideoFit) {
@@ -372,10 +764,25 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
         mView.setRenderer(mRenderer);
 
         mView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        mView.getHolder().addCallback(new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(SurfaceHolder holder) {
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder holder) {
+                mRenderer.mSurfaceReady = false;
+            }
+        });
     }
 
     public boolean isMirrored() {
-        return mRenderer.mCurrentFrame != null && mRenderer.mCurrentFrame.isMirroredX();
+        Frame frame = mRenderer.mCurrentFrame;
+        return frame != null && frame.isMirroredX();
     }
 
     public void enableVideoFit(boolean enableVideoFit) {
@@ -386,87 +793,201 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
         return mRenderer.mVideoFitEnabled;
     }
 
+    /**
+     * Returns the number of frames received and replaced by a newer one before they were drawn
+     */
+    public long getSupersededFrameCount() {
+        return getStats().getReplacedCount();
+    }
+
+    /**
+     * Returns a snapshot of the frame pipeline statistics
+     */
+    public RendererStats getStats() {
+        return new RendererStats(mRenderer.mStats, System.currentTimeMillis());
+    }
+
+    /**
+     * Clears the frame pipeline statistics
+     */
+    public void resetStats() {
+        mRenderer.mStats.reset();
+    }
+
+    /**
+     * Enables the systrace sections of the frame delivery, upload and draw, from API 18.
+     * Disabled by default.
+     * @param enabled whether the sections are traced
+     */
+    public void setTraceEnabled(boolean enabled) {
+        mRenderer.mTraceEnabled = enabled;
+    }
+
     public int getVideoWidth() {
-        if ( mRenderer.mCurrentFrame != null ) {
-            return mRenderer.mCurrentFrame.getWidth();
+        Frame frame = mRenderer.mCurrentFrame;
+        if ( frame != null ) {
+            return frame.getWidth();
         }
 
         return 0;
     }
 
     public int getVideoHeight() {
-        if ( mRenderer.mCurrentFrame != null ) {
-            return mRenderer.mCurrentFrame.getHeight();
+        Frame frame = mRenderer.mCurrentFrame;
+        if ( frame != null ) {
+            return frame.getHeight();
         }
         return 0;
     }
 
+    /**
+     * Captures the current frame. It blocks until the frame is converted, prefer
+     * {@link #captureScreenshot(ScreenshotCallback)} on the main thread.
+     * @return the screenshot, or null if there is no frame to capture or another capture is in progress
+     */
     public Bitmap captureScreenshot() {
-        ByteBuffer bb;
-        if ( mRenderer.mCurrentFrame != null ) {
-            bb = mRenderer.mCurrentFrame.getBuffer();
-            bb.clear();
-
-            int width = mRenderer.mCurrentFrame.getWidth();
-            int height = mRenderer.mCurrentFrame.getHeight();
-            int half_width = (width + 1) >> 1;
-            int half_height = (height +1) >> 1;
-            int y_size = width * height;
-            int uv_size = half_width * half_height;
+        Frame frame = mRenderer.pinCurrentFrame();
+        if (frame == null) {
+            return null;
+        }
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int[] pixels = null;
+        try {
+            ByteBuffer yuv = getFrameBuffer(frame);
+            if (yuv == null) {
+                return null;
+            }
+            pixels = takePixels(width * height);
+            YuvConverter.convert(yuv, width, height, pixels);
+            return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            mRenderer.unpinFrame();
+            if (pixels != null) {
+                releasePixels(pixels);
+            }
+        }
+    }
 
-            byte[] yuv = new byte[y_size + uv_size * 2];
-            bb.get(yuv);
-            int[] intArray = new int[width*height];
+    /**
+     * Captures the current frame. It is converted on background threads, without copying it.
+     * @param callback the callback invoked on the main thread with the screenshot
+     */
+    public void captureScreenshot(final ScreenshotCallback callback) {
+        Frame frame = mRenderer.pinCurrentFrame();
+        ByteBuffer yuv = frame != null ? getFrameBuffer(frame) : null;
+        if (yuv == null) {
+            if (frame != null) {
+                mRenderer.unpinFrame();
+            }
+            deliverScreenshot(callback, null);
+            return;
+        }
 
-            // Decode Yuv data to integer array
-            decodeYUV420(intArray, yuv, width, height);
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final int[] pixels = takePixels(width * height);
+        YuvConverter.convertAsync(yuv, width, height, pixels, new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.unpinFrame();
+                Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+                releasePixels(pixels);
+                deliverScreenshot(callback, bitmap);
+            }
+        });
+    }
 
-            return Bitmap.createBitmap(intArray, width, height, Bitmap.Config.ARGB_8888);
+    /**
+     * Captures the current frame as it is displayed, rendered on the GPU and read back, optionally
+     * with an overlay drawn over the view. It costs one render pass instead of a CPU conversion.
+     * While the view has no surface, e.g. when the renderer is paused, or if the GL thread does not
+     * run the capture in time, the frame is converted on the CPU instead, without the overlay.
+     * @param overlay the annotations drawn over the view, with the size of the view, or null.
+     *                It must not be modified until the callback is invoked.
+     * @param overlayOffsetY vertical offset of the overlay in the view, in pixels
+     * @param callback the callback invoked on the main thread with the screenshot
+     */
+    public void captureRenderedScreenshot(final Bitmap overlay, final float overlayOffsetY,
+                                          final ScreenshotCallback callback) {
+        if (!mRenderer.mSurfaceReady) {
+            captureScreenshot(callback);
+            return;
         }
-
-        return null;
+        //the screenshot is delivered by the GL thread or by the fallback, whichever runs first
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final Runnable fallback = new Runnable() {
+            @Override
+            public void run() {
+                if (claimed.compareAndSet(false, true)) {
+                    captureScreenshot(callback);
+                }
+            }
+        };
+        mMainHandler.postDelayed(fallback, RENDERED_SCREENSHOT_TIMEOUT);
+        mView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mMainHandler.removeCallbacks(fallback);
+                if (!mRenderer.mSurfaceReady) {
+                    //paused after the capture was queued
+                    mMainHandler.post(fallback);
+                }
+                else if (claimed.compareAndSet(false, true)) {
+                    deliverScreenshot(callback, mRenderer.captureFrame(overlay, overlayOffsetY));
+                }
+            }
+        });
     }
 
     static public void decodeYUV420(int[] rgba, byte[] yuv420, int width, int height) {
-        int half_width = (width + 1) >> 1;
-        int half_height = (height +1) >> 1;
-        int y_size = width * height;
-        int uv_size = half_width * half_height;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-
-                double y = (yuv420[j * width + i]) & 0xff;
-                double v = (yuv420[y_size + (j >> 1) * half_width + (i>>1)]) & 0xff;
-                double u = (yuv420[y_size + uv_size + (j >> 1) * half_width + (i>>1)]) & 0xff;
+        YuvConverter.convertRows(ByteBuffer.wrap(yuv420), width, height, rgba, 0, height);
+    }
 
-                double r;
-                double g;
-                double b;
+    //returns a view of the frame planes, or null if the frame is not an I420 one
+    private static ByteBuffer getFrameBuffer(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int size = width * height + 2 * ((width + 1) >> 1) * ((height + 1) >> 1);
+        //the frame position is changed by the GL thread
+        ByteBuffer yuv = frame.getBuffer().duplicate();
+        yuv.clear();
+        if (yuv.remaining() < size) {
+            Log.e(LOG_TAG, "Unexpected frame buffer size " + yuv.remaining() + " for " + width + "x" + height);
+            return null;
+        }
+        return yuv;
+    }
 
-                r = y + 1.402 * (u-128);
-                g = y - 0.34414*(v-128) - 0.71414*(u-128);
-                b = y + 1.772*(v-128);
+    private synchronized int[] takePixels(int size) {
+        int[] pixels = mPixels;
+        mPixels = null;
+        return pixels != null && pixels.length == size ? pixels : new int[size];
+    }
 
-                if (r < 0) r = 0;
-                else if (r > 255) r = 255;
-                if (g < 0) g = 0;
-                else if (g > 255) g = 255;
-                if (b < 0) b = 0;
-                else if (b > 255) b = 255;
+    private synchronized void releasePixels(int[] pixels) {
+        mPixels = pixels;
+    }
 
-                int ir = (int)r;
-                int ig = (int)g;
-                int ib = (int)b;
-                rgba[j * width + i] = 0xff000000 | (ir << 16) | (ig << 8) | ib;
+    private void deliverScreenshot(final ScreenshotCallback callback, final Bitmap bitmap) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onScreenshotCaptured(bitmap);
             }
-        }
+        });
     }
 
     @Override
     public void onFrame(Frame frame) {
+        boolean traced = mRenderer.beginTraceSection("AnnotationsVideoRenderer.onFrame");
+        mRenderer.mStats.recordReceived(System.nanoTime());
         mRenderer.displayFrame(frame);
         mView.requestRender();
+        MyRenderer.endTraceSection(traced);
     }
 
     @Override
@@ -483,6 +1004,7 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
     @Override
     public void onVideoPropertiesChanged(boolean videoEnabled) {
         mRenderer.disableVideo(!videoEnabled);
+        mView.requestRender();
     }
 
     @Override
@@ -492,6 +1014,7 @@ public class AnnotationsVideoRenderer extends BaseVideoRenderer {
 
     @Override
     public void onPause() {
+        mRenderer.mSurfaceReady = false;
         mView.onPause();
     }
 
@@ -0,0 +1,184 @@
+package com.tokbox.android.annotations.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defines a snapshot of the frame pipeline statistics of an {@link AnnotationsVideoRenderer}: the
+ * frames delivered to the renderer, uploaded to the textures and drawn.
+ */
+public final class RendererStats {
+
+    private long mTimestamp = 0;
+    //updated by the thread delivering the frames, so it never waits for the GL thread
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mReplacedCount = new AtomicLong();
+    private final AtomicLong mIntervalCount = new AtomicLong();
+    private final AtomicLong mIntervalTimeNanos = new AtomicLong();
+    private volatile double mJitterNanos = 0;
+    //arrival of the last frame and interval before it, to compute the jitter, on the delivering
+    //thread only. They are cleared there after a reset.
+    private long mLastFrameNanos = -1;
+    private long mLastIntervalNanos = -1;
+    private volatile boolean mIntervalsReset = false;
+    //updated by the GL thread, guarded by this
+    private long mRenderedCount = 0;
+    private long mUploadCount = 0;
+    private long mUploadTimeNanos = 0;
+    private long mMaxUploadTimeNanos = 0;
+    private long mDrawTimeNanos = 0;
+    private long mMaxDrawTimeNanos = 0;
+
+    RendererStats() {
+    }
+
+    RendererStats(RendererStats stats, long timestamp) {
+        mReceivedCount.set(stats.mReceivedCount.get());
+        mReplacedCount.set(stats.mReplacedCount.get());
+        mIntervalCount.set(stats.mIntervalCount.get());
+        mIntervalTimeNanos.set(stats.mIntervalTimeNanos.get());
+        mJitterNanos = stats.mJitterNanos;
+        synchronized (stats) {
+            mRenderedCount = stats.mRenderedCount;
+            mUploadCount = stats.mUploadCount;
+            mUploadTimeNanos = stats.mUploadTimeNanos;
+            mMaxUploadTimeNanos = stats.mMaxUploadTimeNanos;
+            mDrawTimeNanos = stats.mDrawTimeNanos;
+            mMaxDrawTimeNanos = stats.mMaxDrawTimeNanos;
+        }
+        mTimestamp = timestamp;
+    }
+
+    void recordReceived(long nanos) {
+        if (mIntervalsReset) {
+            mIntervalsReset = false;
+            mLastFrameNanos = -1;
+            mLastIntervalNanos = -1;
+            mJitterNanos = 0;
+        }
+        mReceivedCount.incrementAndGet();
+        if (mLastFrameNanos >= 0) {
+            long interval = nanos - mLastFrameNanos;
+            mIntervalCount.incrementAndGet();
+            mIntervalTimeNanos.addAndGet(interval);
+            if (mLastIntervalNanos >= 0) {
+                //smoothed like the RTP interarrival jitter, RFC 3550
+                mJitterNanos += (Math.abs(interval - mLastIntervalNanos) - mJitterNanos) / 16;
+            }
+            mLastIntervalNanos = interval;
+        }
+        mLastFrameNanos = nanos;
+    }
+
+    void recordReplaced() {
+        mReplacedCount.incrementAndGet();
+    }
+
+    synchronized void recordUpload(long nanos) {
+        mUploadCount++;
+        mUploadTimeNanos += nanos;
+        mMaxUploadTimeNanos = Math.max(mMaxUploadTimeNanos, nanos);
+    }
+
+    synchronized void recordRendered(long drawNanos) {
+        mRenderedCount++;
+        mDrawTimeNanos += drawNanos;
+        mMaxDrawTimeNanos = Math.max(mMaxDrawTimeNanos, drawNanos);
+    }
+
+    void reset() {
+        mReceivedCount.set(0);
+        mReplacedCount.set(0);
+        mIntervalCount.set(0);
+        mIntervalTimeNanos.set(0);
+        mJitterNanos = 0;
+        mIntervalsReset = true;
+        synchronized (this) {
+            mRenderedCount = 0;
+            mUploadCount = 0;
+            mUploadTimeNanos = 0;
+            mMaxUploadTimeNanos = 0;
+            mDrawTimeNanos = 0;
+            mMaxDrawTimeNanos = 0;
+        }
+    }
+
+    /**
+     * Returns the time of the snapshot, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the number of frames delivered to the renderer
+     */
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * Returns the number of draws of a video frame. A frame is drawn again when the view is
+     * redrawn before the next one arrives.
+     */
+    public long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    /**
+     * Returns the number of frames replaced by a newer one before they were drawn
+     */
+    public long getReplacedCount() {
+        return mReplacedCount.get();
+    }
+
+    /**
+     * Returns the number of frames uploaded to the textures
+     */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Returns the average time to upload a frame to the textures, in microseconds
+     */
+    public long getAverageUploadTimeMicros() {
+        return mUploadCount > 0 ? mUploadTimeNanos / mUploadCount / 1000 : 0;
+    }
+
+    /**
+     * Returns the longest time to upload a frame to the textures, in microseconds
+     */
+    public long getMaxUploadTimeMicros() {
+        return mMaxUploadTimeNanos / 1000;
+    }
+
+    /**
+     * Returns the average time to issue the draw of a frame, in microseconds. The GPU draws it
+     * afterwards.
+     */
+    public long getAverageDrawTimeMicros() {
+        return mRenderedCount > 0 ? mDrawTimeNanos / mRenderedCount / 1000 : 0;
+    }
+
+    /**
+     * Returns the longest time to issue the draw of a frame, in microseconds
+     */
+    public long getMaxDrawTimeMicros() {
+        return mMaxDrawTimeNanos / 1000;
+    }
+
+    /**
+     * Returns the average time between two delivered frames, in microseconds
+     */
+    public long getAverageFrameIntervalMicros() {
+        long count = mIntervalCount.get();
+        return count > 0 ? mIntervalTimeNanos.get() / count / 1000 : 0;
+    }
+
+    /**
+     * Returns the smoothed variation of the time between two delivered frames, in microseconds
+     */
+    public long getJitterMicros() {
+        return (long) (mJitterNanos / 1000);
+    }
+}
@@ -0,0 +1,138 @@
+package com.tokbox.android.annotations.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines the conversion of the I420 frames to ARGB pixels. It uses 16.16 fixed-point arithmetic
+ * and splits the rows in bands converted in parallel, one per core. The frame is read in place.
+ */
+final class YuvConverter {
+
+    //BT.601 full range coefficients, in 16.16 fixed point
+    private static final int R_V = 91881;   //1.402
+    private static final int G_U = 22554;   //0.34414
+    private static final int G_V = 46802;   //0.71414
+    private static final int B_U = 116130;  //1.772
+    private static final int HALF = 1 << 15;
+
+    //bands smaller than this are not worth a task
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService sExecutor;
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Converts a frame on the worker threads
+     * @param yuv the Y, U and V planes of the frame. Its content must not change until done runs.
+     * @param width width of the frame
+     * @param height height of the frame
+     * @param argb the pixels to fill, width * height at least
+     * @param done run on a worker thread once the pixels are filled
+     */
+    static void convertAsync(final ByteBuffer yuv, final int width, final int height, final int[] argb,
+                             final Runnable done) {
+        if (height <= 0) {
+            done.run();
+            return;
+        }
+        int bands = Math.max(1, Math.min(THREADS, height / MIN_BAND_ROWS));
+        int rows = (height + bands - 1) / bands;
+        final AtomicInteger remaining = new AtomicInteger((height + rows - 1) / rows);
+        ExecutorService executor = getExecutor();
+        for (int start = 0; start < height; start += rows) {
+            final int firstRow = start;
+            final int lastRow = Math.min(height, start + rows);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        convertRows(yuv, width, height, argb, firstRow, lastRow);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            done.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts a frame on the worker threads and waits for the result
+     * @param yuv the Y, U and V planes of the frame
+     * @param width width of the frame
+     * @param height height of the frame
+     * @param argb the pixels to fill, width * height at least
+     */
+    static void convert(ByteBuffer yuv, int width, int height, int[] argb) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        convertAsync(yuv, width, height, argb, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * Converts rows of a frame on the calling thread
+     * @param firstRow index of the first row
+     * @param lastRow index after the last row
+     */
+    static void convertRows(ByteBuffer yuv, int width, int height, int[] argb, int firstRow, int lastRow) {
+        int halfWidth = (width + 1) >> 1;
+        int ySize = width * height;
+        int uvSize = halfWidth * ((height + 1) >> 1);
+        for (int j = firstRow; j < lastRow; j++) {
+            int yIndex = j * width;
+            int uIndex = ySize + (j >> 1) * halfWidth;
+            int vIndex = uIndex + uvSize;
+            int end = yIndex + width;
+            //two pixels of a row share their chroma
+            for (int i = yIndex; i < end; i += 2) {
+                int u = (yuv.get(uIndex++) & 0xff) - 128;
+                int v = (yuv.get(vIndex++) & 0xff) - 128;
+                int r = R_V * v + HALF;
+                int g = -G_U * u - G_V * v + HALF;
+                int b = B_U * u + HALF;
+                argb[i] = toArgb((yuv.get(i) & 0xff) << 16, r, g, b);
+                if (i + 1 < end) {
+                    argb[i + 1] = toArgb((yuv.get(i + 1) & 0xff) << 16, r, g, b);
+                }
+            }
+        }
+    }
+
+    private static int toArgb(int y, int r, int g, int b) {
+        return 0xff000000 | (clamp((y + r) >> 16) << 16) | (clamp((y + g) >> 16) << 8) | clamp((y + b) >> 16);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "YuvConverter-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
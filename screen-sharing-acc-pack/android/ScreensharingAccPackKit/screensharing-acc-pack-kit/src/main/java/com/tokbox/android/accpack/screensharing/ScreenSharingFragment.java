@@ -57,6 +57,7 @@ public class ScreenSharingFragment extends Fragment implements AccPackSession.Se
     private static final String STATE_RESULT_CODE = "result_code";
     private static final String STATE_RESULT_DATA = "result_data";
     private static final String ERROR = "ScreenSharing error";
+    private static final String ANNOTATIONS_SIGNAL_TYPE = "annotations";
     private static final int REQUEST_MEDIA_PROJECTION = 1;
 
     private AccPackSession mSession;
@@ -103,9 +104,8 @@ public class ScreenSharingFragment extends Fragment implements AccPackSession.Se
 
     @Override
     public void onSignalReceived(Session session, String type, String data, Connection connection) {
-        if (type.equals("annotations")){
-            Log.i(LOG_TAG, "New annotation received");
-        }
+        //only the annotations signals are routed to the fragment
+        Log.i(LOG_TAG, "New annotation received");
     }
 
     @Override
@@ -175,6 +175,7 @@ public class ScreenSharingFragment extends Fragment implements AccPackSession.Se
 
         fragment.mSession = session;
         fragment.mSession.setSessionListener(fragment);
+        fragment.mSession.addSignalListener(ANNOTATIONS_SIGNAL_TYPE, fragment);
         fragment.mApiKey = apiKey;
 
         return fragment;
@@ -411,6 +412,9 @@ public class ScreenSharingFragment extends Fragment implements AccPackSession.Se
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if ( mSession != null ) {
+            mSession.removeSignalListener(this);
+        }
         tearDownMediaProjection();
         removeScreensharingBar();
         addLogEvent(OpenTokConfig.LOG_ACTION_DESTROY, OpenTokConfig.LOG_VARIATION_SUCCESS);